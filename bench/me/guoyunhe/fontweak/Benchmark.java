@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One benchmark, measured like JMH does in average time mode: warmup
+ * iterations, then measurement iterations of at least ITERATION_TIME each,
+ * reported as mean time per operation with a 99.9% confidence interval.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public abstract class Benchmark {
+
+    static final int WARMUP_ITERATIONS = 2;
+    static final int ITERATIONS = 5;
+    static final long ITERATION_TIME = 1000000000L; // ns
+
+    // Student's t for 99.9% two-sided, by degrees of freedom
+    private static final double[] T999 = {
+        0, 636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587
+    };
+
+    public final String name;
+
+    // Keeps results alive so the JIT cannot drop the work
+    static volatile Object sink;
+
+    /**
+     * Measured times of one benchmark and size.
+     */
+    public static class Result {
+        public String benchmark;
+        public int size;
+        // Microseconds per operation, one per measurement iteration
+        public double[] raw;
+
+        public double getScore() {
+            double sum = 0;
+            for (double value : raw) {
+                sum += value;
+            }
+            return sum / raw.length;
+        }
+
+        public double getError() {
+            if (raw.length < 2) {
+                return Double.NaN;
+            }
+            double mean = getScore();
+            double squares = 0;
+            for (double value : raw) {
+                squares += (value - mean) * (value - mean);
+            }
+            double t = raw.length - 1 < T999.length ? T999[raw.length - 1] : 3.291;
+            return t * Math.sqrt(squares / (raw.length - 1)) / Math.sqrt(raw.length);
+        }
+    }
+
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Prepare data for a size, not measured.
+     *
+     * @param size Number of entries.
+     * @throws Exception If preparing failed.
+     */
+    protected abstract void setup(int size) throws Exception;
+
+    /**
+     * The measured operation.
+     *
+     * @return Something computed, so it is not optimized away.
+     * @throws Exception If the operation failed.
+     */
+    protected abstract Object run() throws Exception;
+
+    /**
+     * Free data of setup().
+     *
+     * @throws Exception If cleaning up failed.
+     */
+    protected void tearDown() throws Exception {
+    }
+
+    /**
+     * Measure at a size.
+     *
+     * @param size Number of entries.
+     * @return Times.
+     * @throws Exception If the benchmark failed.
+     */
+    public Result measure(int size) throws Exception {
+        setup(size);
+        try {
+            List<Double> raw = new ArrayList<>();
+            for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+                long operations = 0;
+                long start = System.nanoTime();
+                long elapsed;
+                do {
+                    sink = run();
+                    operations++;
+                    elapsed = System.nanoTime() - start;
+                } while (elapsed < ITERATION_TIME);
+                if (i >= WARMUP_ITERATIONS) {
+                    raw.add(elapsed / 1000.0 / operations);
+                }
+            }
+
+            Result result = new Result();
+            result.benchmark = name;
+            result.size = size;
+            result.raw = new double[raw.size()];
+            for (int i = 0; i < result.raw.length; i++) {
+                result.raw[i] = raw.get(i);
+            }
+            return result;
+        } finally {
+            tearDown();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Benchmarks of config parsing, writing and the model, run by "ant bench".
+ *
+ * Configs are generated with sizes from 10 to 100000 entries, half matches
+ * and half aliases. Results are printed and written in the JSON format of
+ * JMH, so they can be compared across releases with JMH tools.
+ *
+ * Usage: Benchmarks FILTER SIZES OUTPUT
+ *
+ * FILTER selects benchmarks whose name contains it, empty for all. SIZES is
+ * a comma separated list of entry counts. OUTPUT is the JSON file.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class Benchmarks {
+
+    private static File workDir;
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        String sizes = args.length > 1 ? args[1] : "10,100,1000,10000,100000";
+        File output = new File(args.length > 2 ? args[2] : "build/bench/results.json");
+        workDir = new File(output.getAbsoluteFile().getParentFile(), "work");
+        Files.createDirectories(workDir.toPath());
+
+        List<Benchmark.Result> results = new ArrayList<>();
+        for (Benchmark benchmark : all()) {
+            if (!benchmark.name.contains(filter)) {
+                continue;
+            }
+            for (String size : sizes.split(",")) {
+                Benchmark.Result result = benchmark.measure(Integer.parseInt(size.trim()));
+                System.out.println(String.format(Locale.ROOT, "%-28s %8d %14.3f +- %10.3f us/op",
+                        result.benchmark, result.size, result.getScore(), result.getError()));
+                results.add(result);
+            }
+        }
+        write(output, results);
+        System.out.println("Results written to " + output);
+    }
+
+    static List<Benchmark> all() {
+        List<Benchmark> all = new ArrayList<>();
+        all.add(new Benchmark("FontConfig.readConfig") {
+            private File file;
+
+            @Override
+            protected void setup(int size) throws IOException {
+                file = generate(size);
+            }
+
+            @Override
+            protected Object run() {
+                FontConfig config = new FontConfig(file);
+                config.readConfig();
+                return config.matchList.size() + config.aliasList.size();
+            }
+        });
+
+        // Same files as readConfig, taken from a snapshot instead of parsed
+        all.add(new Benchmark("FontConfig.loadSnapshot") {
+            private File file;
+            private File snapshot;
+
+            @Override
+            protected void setup(int size) throws Exception {
+                file = generate(size);
+                snapshot = new File(workDir, "snapshot-" + size);
+                snapshot.delete();
+                run(); // Parses and writes the snapshot
+            }
+
+            @Override
+            protected Object run() throws Exception {
+                FontConfig config = new FontConfig(file);
+                config.snapshotFile = snapshot;
+                config.load();
+                return config.matchList.size() + config.aliasList.size();
+            }
+        });
+
+        all.add(new Benchmark("FontConfig.writeConfig") {
+            private FontConfig config;
+
+            @Override
+            protected void setup(int size) throws IOException {
+                config = new FontConfig(generate(size));
+                config.readConfig();
+            }
+
+            @Override
+            protected Object run() {
+                config.writeConfig();
+                return config.getFile().length();
+            }
+        });
+
+        all.add(new Benchmark("FontMatch.parseDOM") {
+            private Element root;
+            private List<Element> elements;
+
+            @Override
+            protected void setup(int size) throws Exception {
+                Document doc = newDocument();
+                root = (Element) doc.getDocumentElement();
+                for (FontMatch match : matches(size)) {
+                    match.createDOM(doc);
+                }
+                elements = children(root);
+            }
+
+            @Override
+            protected Object run() {
+                int count = 0;
+                for (Element element : elements) {
+                    FontMatch match = new FontMatch();
+                    match.parseDOM(element);
+                    root.appendChild(element); // Removed by parseDOM()
+                    count += match.familyEdit.length;
+                }
+                return count;
+            }
+        });
+
+        all.add(new Benchmark("FontMatch.createDOM") {
+            private List<FontMatch> matches;
+
+            @Override
+            protected void setup(int size) {
+                matches = matches(size);
+            }
+
+            @Override
+            protected Object run() throws Exception {
+                Document doc = newDocument();
+                for (FontMatch match : matches) {
+                    match.createDOM(doc);
+                }
+                return doc;
+            }
+        });
+
+        all.add(new Benchmark("FontAlias.parseDOM") {
+            private Element root;
+            private List<Element> elements;
+
+            @Override
+            protected void setup(int size) throws Exception {
+                Document doc = newDocument();
+                root = (Element) doc.getDocumentElement();
+                for (FontAlias alias : aliases(size)) {
+                    alias.createDOM(doc);
+                }
+                elements = children(root);
+            }
+
+            @Override
+            protected Object run() {
+                int count = 0;
+                for (Element element : elements) {
+                    FontAlias alias = new FontAlias();
+                    alias.parseDOM(element);
+                    root.appendChild(element);
+                    count += alias.prefer.length();
+                }
+                return count;
+            }
+        });
+
+        all.add(new Benchmark("FontAlias.createDOM") {
+            private List<FontAlias> aliases;
+
+            @Override
+            protected void setup(int size) {
+                aliases = aliases(size);
+            }
+
+            @Override
+            protected Object run() throws Exception {
+                Document doc = newDocument();
+                for (FontAlias alias : aliases) {
+                    alias.createDOM(doc);
+                }
+                return doc;
+            }
+        });
+
+        // Reads the font list cache, only in the cache dir set by "ant bench"
+        if (Boolean.getBoolean("fontweak.bench.cache")) {
+            all.add(new Benchmark("SystemFontList.<init>") {
+                @Override
+                protected void setup(int size) throws IOException {
+                    File cache = new File(SystemFontList.getCacheDir(), "fontlist");
+                    Files.createDirectories(cache.getParentFile().toPath());
+                    try (Writer writer = Files.newBufferedWriter(cache.toPath(), StandardCharsets.UTF_8)) {
+                        writer.write("fontweak-fontlist 1\n0\n");
+                        for (int i = 0; i < size; i++) {
+                            writer.write(family(i) + "\n");
+                        }
+                    }
+                }
+
+                @Override
+                protected Object run() {
+                    return new SystemFontList().get();
+                }
+            });
+        }
+        return all;
+    }
+
+    private static String family(int i) {
+        return "Generated Family " + i;
+    }
+
+    private static String lang(int i) {
+        return FontConfig.LANGUAGES[i % FontConfig.LANGUAGES.length];
+    }
+
+    private static List<FontMatch> matches(int size) {
+        List<FontMatch> matches = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            matches.add(new FontMatch(family(i), lang(i), new String[]{family(i + 1), family(i + 2)}));
+        }
+        return matches;
+    }
+
+    private static List<FontAlias> aliases(int size) {
+        List<FontAlias> aliases = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            aliases.add(new FontAlias(family(i), family(i + 1)));
+        }
+        return aliases;
+    }
+
+    /**
+     * Write a config with size entries, half matches and half aliases.
+     */
+    static File generate(int size) throws IOException {
+        File file = new File(workDir, "fonts-" + size + ".conf");
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("<?xml version=\"1.0\"?>\n<!DOCTYPE fontconfig SYSTEM \"fonts.dtd\">\n<fontconfig>\n");
+            for (FontMatch match : matches((size + 1) / 2)) {
+                writer.write("  <match>\n    <test name=\"family\">\n      <string>" + match.familyTest
+                        + "</string>\n    </test>\n    <test name=\"lang\">\n      <string>" + match.langTest
+                        + "</string>\n    </test>\n    <edit name=\"family\" binding=\"strong\" mode=\"prepend\">\n");
+                for (String family : match.familyEdit) {
+                    writer.write("      <string>" + family + "</string>\n");
+                }
+                writer.write("    </edit>\n  </match>\n");
+            }
+            for (FontAlias alias : aliases(size / 2)) {
+                writer.write("  <alias>\n    <family>" + alias.family + "</family>\n    <prefer>\n      <family>"
+                        + alias.prefer + "</family>\n    </prefer>\n  </alias>\n");
+            }
+            writer.write("</fontconfig>\n");
+        }
+        return file;
+    }
+
+    private static Document newDocument() throws Exception {
+        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Document doc = builder.newDocument();
+        doc.appendChild(doc.createElement("fontconfig"));
+        return doc;
+    }
+
+    private static List<Element> children(Element root) {
+        List<Element> elements = new ArrayList<>();
+        NodeList nodes = root.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                elements.add((Element) nodes.item(i));
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Write results like JMH's "-rf json".
+     */
+    private static void write(File file, List<Benchmark.Result> results) throws IOException {
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                Benchmark.Result result = results.get(i);
+                double score = result.getScore();
+                double error = result.getError();
+                writer.write("    {\n");
+                writer.write("        \"benchmark\" : \"" + Benchmarks.class.getName() + "." + result.benchmark + "\",\n");
+                writer.write("        \"mode\" : \"avgt\",\n");
+                writer.write("        \"threads\" : 1,\n");
+                writer.write("        \"forks\" : 1,\n");
+                writer.write("        \"jdkVersion\" : \"" + System.getProperty("java.version") + "\",\n");
+                writer.write("        \"vmName\" : \"" + System.getProperty("java.vm.name") + "\",\n");
+                writer.write("        \"warmupIterations\" : " + Benchmark.WARMUP_ITERATIONS + ",\n");
+                writer.write("        \"warmupTime\" : \"1 s\",\n");
+                writer.write("        \"measurementIterations\" : " + Benchmark.ITERATIONS + ",\n");
+                writer.write("        \"measurementTime\" : \"1 s\",\n");
+                writer.write("        \"params\" : {\n            \"size\" : \"" + result.size + "\"\n        },\n");
+                writer.write("        \"primaryMetric\" : {\n");
+                writer.write("            \"score\" : " + number(score) + ",\n");
+                writer.write("            \"scoreError\" : " + number(error) + ",\n");
+                writer.write("            \"scoreConfidence\" : [ " + number(score - error) + ", " + number(score + error) + " ],\n");
+                writer.write("            \"scoreUnit\" : \"us/op\",\n");
+                writer.write("            \"rawData\" : [ [ ");
+                for (int j = 0; j < result.raw.length; j++) {
+                    writer.write((j > 0 ? ", " : "") + number(result.raw[j]));
+                }
+                writer.write(" ] ]\n        },\n");
+                writer.write("        \"secondaryMetrics\" : {\n        }\n");
+                writer.write(i < results.size() - 1 ? "    },\n" : "    }\n");
+            }
+            writer.write("]\n");
+        }
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", value);
+    }
+}
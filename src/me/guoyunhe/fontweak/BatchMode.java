@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Apply a FontPolicy to the config files of many users, without window.
+ *
+ * Usage: fontweak batch [--threads N] [--timeout SECONDS] [--roots FILE]
+ * POLICY [ROOT...]
+ *
+ * A root is a fonts.conf file, a directory containing fonts.conf or a home
+ * directory. Files are processed in parallel on a fixed number of threads. A
+ * file that fails or takes longer than the timeout is reported and the others
+ * go on. A file that timed out is not written, unless writing had started.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class BatchMode {
+
+    private final FontPolicy policy;
+    private final int threads;
+    private final long timeout;
+    private final PrintStream out;
+
+    private int succeeded;
+    private int unchanged;
+    private int failed;
+    private long slowest;
+    private File slowestFile;
+
+    public BatchMode(FontPolicy policy, int threads, long timeoutMillis, PrintStream out) {
+        this.policy = policy;
+        this.threads = threads;
+        this.timeout = timeoutMillis;
+        this.out = out;
+    }
+
+    /**
+     * Run from command line.
+     *
+     * @param args Arguments after "batch".
+     * @return Exit code. 0 if all files are done, 1 if some failed, 2 if
+     * arguments are wrong.
+     */
+    public static int run(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long timeout = 60;
+        String rootsFile = null;
+        List<String> rest = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--timeout":
+                        timeout = Long.parseLong(args[++i]);
+                        break;
+                    case "--roots":
+                        rootsFile = args[++i];
+                        break;
+                    default:
+                        rest.add(args[i]);
+                        break;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            rest.clear();
+        }
+        if (rest.isEmpty() || threads < 1) {
+            System.err.println("Usage: fontweak batch [--threads N] [--timeout SECONDS] [--roots FILE] POLICY [ROOT...]");
+            return 2;
+        }
+
+        FontPolicy policy;
+        List<File> roots = new ArrayList<>();
+        try {
+            policy = FontPolicy.load(new File(rest.get(0)));
+            for (String root : rest.subList(1, rest.size())) {
+                roots.add(new File(root));
+            }
+            if (rootsFile != null) {
+                readRoots(rootsFile, roots);
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return 2;
+        }
+
+        BatchMode batch = new BatchMode(policy, threads, timeout * 1000, System.out);
+        return batch.apply(roots) ? 0 : 1;
+    }
+
+    private static void readRoots(String path, List<File> roots) throws IOException {
+        InputStream in = path.equals("-") ? System.in : new FileInputStream(path);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    roots.add(new File(line));
+                }
+            }
+        }
+    }
+
+    /**
+     * Find config file of a root.
+     *
+     * @param root fonts.conf, directory containing it or home directory.
+     * @return Config file, might not exist.
+     */
+    public static File configFile(File root) {
+        if (root.isFile()) {
+            return root;
+        }
+        File direct = new File(root, "fonts.conf");
+        if (direct.isFile()) {
+            return direct;
+        }
+        return new File(root, ".config/fontconfig/fonts.conf");
+    }
+
+    /**
+     * Apply the policy to all roots and print one line per file and a
+     * summary.
+     *
+     * @param roots Roots to process.
+     * @return True if no file failed.
+     */
+    public boolean apply(List<File> roots) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                // Don't let a stuck file keep the JVM alive
+                Thread thread = new Thread(r, "fontweak-batch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CompletionService<Result> service = new ExecutorCompletionService<>(pool);
+        Map<Future<Result>, Task> pending = new LinkedHashMap<>();
+
+        long start = System.nanoTime();
+        for (File root : roots) {
+            Task task = new Task(configFile(root));
+            pending.put(service.submit(task), task);
+        }
+
+        try {
+            long lastCheck = start;
+            while (!pending.isEmpty()) {
+                Future<Result> future = service.poll(100, TimeUnit.MILLISECONDS);
+                if (future != null) {
+                    Task task = pending.remove(future);
+                    if (task != null) {
+                        report(task, future);
+                    }
+                }
+                if (System.nanoTime() - lastCheck > TimeUnit.MILLISECONDS.toNanos(100)) {
+                    checkTimeouts(pending);
+                    lastCheck = System.nanoTime();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        SaveJournal.getDefault().checkpoint();
+
+        long elapsed = System.nanoTime() - start;
+        int total = succeeded + unchanged + failed;
+        out.printf("%d files: %d changed, %d unchanged, %d failed in %.2f s (%.1f files/s)%n",
+                total, succeeded, unchanged, failed, elapsed / 1e9, total / (elapsed / 1e9));
+        if (slowestFile != null) {
+            out.printf("Slowest: %s (%d ms)%n", slowestFile, slowest / 1000000);
+        }
+        return failed == 0;
+    }
+
+    private void checkTimeouts(Map<Future<Result>, Task> pending) {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Future<Result>, Task>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Future<Result>, Task> entry = iterator.next();
+            Task task = entry.getValue();
+            long started = task.started;
+            if (started > 0 && now - started > TimeUnit.MILLISECONDS.toNanos(timeout) && task.timeOut()) {
+                entry.getKey().cancel(true);
+                iterator.remove();
+                failed++;
+                out.printf("TIMEOUT %6d ms  %s%n", (now - started) / 1000000, task.file);
+            }
+        }
+    }
+
+    private void report(Task task, Future<Result> future) {
+        try {
+            Result result = future.get();
+            if (result.time > slowest) {
+                slowest = result.time;
+                slowestFile = task.file;
+            }
+            if (result.changes > 0) {
+                succeeded++;
+                out.printf("OK      %6d ms  %s (%d changes)%n", result.time / 1000000, task.file, result.changes);
+            } else {
+                unchanged++;
+                out.printf("SKIP    %6d ms  %s%n", result.time / 1000000, task.file);
+            }
+        } catch (ExecutionException ex) {
+            failed++;
+            Throwable cause = ex.getCause();
+            out.printf("FAIL    %6d ms  %s: %s%n", (System.nanoTime() - task.started) / 1000000, task.file,
+                    String.valueOf(cause.getMessage() != null ? cause.getMessage() : cause).replace('\n', ' '));
+        } catch (CancellationException | InterruptedException ex) {
+            failed++;
+            out.printf("FAIL    %6s     %s: cancelled%n", "-", task.file);
+        }
+    }
+
+    private static class Result {
+        int changes;
+        long time;
+    }
+
+    private class Task implements Callable<Result> {
+        final File file;
+        volatile long started;
+        private boolean timedOut;
+        private boolean storing;
+
+        Task(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Mark the task as failed by timeout, so it does not write the file.
+         * I/O can not be interrupted, the task may still be running.
+         *
+         * @return False if it is already writing, then it is let finish.
+         */
+        synchronized boolean timeOut() {
+            if (storing) {
+                return false;
+            }
+            timedOut = true;
+            return true;
+        }
+
+        private synchronized boolean startStoring() {
+            if (timedOut) {
+                return false;
+            }
+            storing = true;
+            return true;
+        }
+
+        @Override
+        public Result call() throws Exception {
+            started = System.nanoTime();
+            if (!file.isFile()) {
+                throw new IOException("No fonts.conf");
+            }
+
+            FontConfig config = new FontConfig(file);
+            config.load();
+            Result result = new Result();
+            result.changes = policy.apply(config);
+            if (result.changes > 0) {
+                if (!startStoring()) {
+                    throw new CancellationException("Timed out"); // Reported as failed, keep the file
+                }
+                config.store();
+            }
+            result.time = System.nanoTime() - started;
+            return result;
+        }
+    }
+}
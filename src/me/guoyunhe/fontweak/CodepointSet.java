@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Immutable set of Unicode code points, compressed like a roaring bitmap.
+ *
+ * Code points are split by their high 16 bits into blocks of 65536. Each block
+ * is stored as whichever is smallest: a sorted array of low 16 bits, a bitmap
+ * of 1024 longs, or a list of runs. A font cmap is mostly runs, an
+ * orthography mostly arrays, and a CJK block a bitmap, so intersections only
+ * touch a few kilobytes.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public final class CodepointSet {
+
+    public static final CodepointSet EMPTY = new CodepointSet(new int[0], new Container[0]);
+
+    private static final int ARRAY = 0;
+    private static final int BITMAP = 1;
+    private static final int RUN = 2;
+    private static final int BITMAP_BYTES = 8192;
+
+    private final int[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+
+    private CodepointSet(int[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+        int count = 0;
+        for (Container container : containers) {
+            count += container.cardinality;
+        }
+        this.cardinality = count;
+    }
+
+    /**
+     * Build a set from ranges.
+     *
+     * @param ranges Sorted, not overlapping pairs of first and last code
+     * point, like FontFace.coverage.
+     * @return Set.
+     */
+    public static CodepointSet fromRanges(int[] ranges) {
+        int[] keys = new int[ranges.length / 2 + 1];
+        Container[] containers = new Container[keys.length];
+        int size = 0;
+
+        int i = 0;
+        // Ranges crossing a block are split at the block border
+        int first = ranges.length > 0 ? ranges[0] : 0;
+        char[] runs = new char[16];
+        while (i < ranges.length) {
+            int key = first >>> 16;
+            int runCount = 0;
+            int count = 0;
+            while (i < ranges.length && (first >>> 16) == key) {
+                int last = Math.min(ranges[i + 1], (key << 16) | 0xFFFF);
+                if (runCount * 2 == runs.length) {
+                    runs = Arrays.copyOf(runs, runs.length * 2);
+                }
+                runs[runCount * 2] = (char) first;
+                runs[runCount * 2 + 1] = (char) (last - first);
+                runCount++;
+                count += last - first + 1;
+                if (last == ranges[i + 1]) {
+                    i += 2;
+                    if (i < ranges.length) {
+                        first = ranges[i];
+                    }
+                } else {
+                    first = last + 1;
+                }
+            }
+
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                containers = Arrays.copyOf(containers, size * 2);
+            }
+            keys[size] = key;
+            containers[size] = Container.fromRuns(runs, runCount, count);
+            size++;
+        }
+        return new CodepointSet(Arrays.copyOf(keys, size), Arrays.copyOf(containers, size));
+    }
+
+    /**
+     * @param codepoints Code points in any order, duplicates allowed.
+     * @return Set.
+     */
+    public static CodepointSet of(int... codepoints) {
+        FontScanner.Ranges ranges = new FontScanner.Ranges();
+        for (int c : codepoints) {
+            ranges.add(c, c);
+        }
+        return fromRanges(ranges.toArray());
+    }
+
+    /**
+     * @param codepoint Unicode code point.
+     * @return True if the code point is in the set.
+     */
+    public boolean contains(int codepoint) {
+        int i = Arrays.binarySearch(keys, codepoint >>> 16);
+        return i >= 0 && containers[i].contains((char) codepoint);
+    }
+
+    /**
+     * @return Number of code points.
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * Size of the intersection, without building it.
+     *
+     * @param other Another set.
+     * @return Number of code points in both sets.
+     */
+    public int andCardinality(CodepointSet other) {
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                count += containers[i].andCardinality(other.containers[j]);
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param other Another set.
+     * @return True if all code points of other are in this set.
+     */
+    public boolean containsAll(CodepointSet other) {
+        return andCardinality(other) == other.cardinality;
+    }
+
+    /**
+     * @param other Another set.
+     * @return Code points in both sets.
+     */
+    public CodepointSet and(CodepointSet other) {
+        FontScanner.Ranges ranges = new FontScanner.Ranges();
+        int[] mine = toRanges();
+        int[] theirs = other.toRanges();
+        int i = 0;
+        int j = 0;
+        while (i < mine.length && j < theirs.length) {
+            int first = Math.max(mine[i], theirs[j]);
+            int last = Math.min(mine[i + 1], theirs[j + 1]);
+            ranges.add(first, last);
+            if (mine[i + 1] < theirs[j + 1]) {
+                i += 2;
+            } else {
+                j += 2;
+            }
+        }
+        return fromRanges(ranges.toArray());
+    }
+
+    /**
+     * @param other Another set.
+     * @return Code points in this set or other.
+     */
+    public CodepointSet or(CodepointSet other) {
+        int[] mine = toRanges();
+        int[] theirs = other.toRanges();
+        int[] all = Arrays.copyOf(mine, mine.length + theirs.length);
+        System.arraycopy(theirs, 0, all, mine.length, theirs.length);
+        FontScanner.Ranges ranges = new FontScanner.Ranges();
+        for (int i = 0; i < all.length; i += 2) {
+            ranges.add(all[i], all[i + 1]);
+        }
+        return fromRanges(ranges.toArray());
+    }
+
+    /**
+     * @return Code points as sorted pairs of first and last code point.
+     */
+    public int[] toRanges() {
+        FontScanner.Ranges ranges = new FontScanner.Ranges();
+        for (int i = 0; i < keys.length; i++) {
+            containers[i].addTo(ranges, keys[i] << 16);
+        }
+        return ranges.toArray();
+    }
+
+    /**
+     * @return Bytes used by containers, for statistics.
+     */
+    public int getSizeInBytes() {
+        int bytes = keys.length * 4;
+        for (Container container : containers) {
+            bytes += container.getSizeInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Write in a compact form, see read().
+     *
+     * @param out Output.
+     * @throws IOException If writing failed.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeShort(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            out.writeShort(keys[i]);
+            containers[i].write(out);
+        }
+    }
+
+    /**
+     * Read a set written by write().
+     *
+     * @param in Input.
+     * @return Set.
+     * @throws IOException If reading failed or the data is broken.
+     */
+    public static CodepointSet read(DataInput in) throws IOException {
+        int size = in.readUnsignedShort();
+        int[] keys = new int[size];
+        Container[] containers = new Container[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = in.readUnsignedShort();
+            if (i > 0 && keys[i] <= keys[i - 1]) {
+                throw new IOException("Broken code point set");
+            }
+            containers[i] = Container.read(in);
+        }
+        return new CodepointSet(keys, containers);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof CodepointSet && Arrays.equals(toRanges(), ((CodepointSet) obj).toRanges());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toRanges());
+    }
+
+    /**
+     * Low 16 bits of the code points in one block.
+     */
+    private static final class Container {
+        final int type;
+        final int cardinality;
+        // ARRAY: sorted values, RUN: pairs of start and length - 1
+        final char[] values;
+        final long[] bitmap;
+
+        private Container(int type, int cardinality, char[] values, long[] bitmap) {
+            this.type = type;
+            this.cardinality = cardinality;
+            this.values = values;
+            this.bitmap = bitmap;
+        }
+
+        static Container fromRuns(char[] runs, int runCount, int count) {
+            int runBytes = runCount * 4;
+            int arrayBytes = count * 2;
+            if (runBytes <= arrayBytes && runBytes <= BITMAP_BYTES) {
+                return new Container(RUN, count, Arrays.copyOf(runs, runCount * 2), null);
+            }
+            if (arrayBytes < BITMAP_BYTES) {
+                char[] values = new char[count];
+                int n = 0;
+                for (int r = 0; r < runCount; r++) {
+                    int start = runs[r * 2];
+                    for (int v = start; v <= start + runs[r * 2 + 1]; v++) {
+                        values[n++] = (char) v;
+                    }
+                }
+                return new Container(ARRAY, count, values, null);
+            }
+            long[] bitmap = new long[1024];
+            for (int r = 0; r < runCount; r++) {
+                setRange(bitmap, runs[r * 2], runs[r * 2] + runs[r * 2 + 1]);
+            }
+            return new Container(BITMAP, count, null, bitmap);
+        }
+
+        private static void setRange(long[] bitmap, int first, int last) {
+            int firstWord = first >>> 6;
+            int lastWord = last >>> 6;
+            long firstMask = -1L << first;
+            long lastMask = -1L >>> (63 - (last & 63));
+            if (firstWord == lastWord) {
+                bitmap[firstWord] |= firstMask & lastMask;
+                return;
+            }
+            bitmap[firstWord] |= firstMask;
+            for (int w = firstWord + 1; w < lastWord; w++) {
+                bitmap[w] = -1L;
+            }
+            bitmap[lastWord] |= lastMask;
+        }
+
+        // Number of bits set in bitmap from first to last
+        private static int countRange(long[] bitmap, int first, int last) {
+            int firstWord = first >>> 6;
+            int lastWord = last >>> 6;
+            long firstMask = -1L << first;
+            long lastMask = -1L >>> (63 - (last & 63));
+            if (firstWord == lastWord) {
+                return Long.bitCount(bitmap[firstWord] & firstMask & lastMask);
+            }
+            int count = Long.bitCount(bitmap[firstWord] & firstMask);
+            for (int w = firstWord + 1; w < lastWord; w++) {
+                count += Long.bitCount(bitmap[w]);
+            }
+            return count + Long.bitCount(bitmap[lastWord] & lastMask);
+        }
+
+        boolean contains(char value) {
+            switch (type) {
+                case ARRAY:
+                    return Arrays.binarySearch(values, value) >= 0;
+                case BITMAP:
+                    return (bitmap[value >>> 6] & (1L << value)) != 0;
+                default:
+                    int low = 0;
+                    int high = values.length / 2 - 1;
+                    while (low <= high) {
+                        int mid = (low + high) >>> 1;
+                        if (values[mid * 2] <= value) {
+                            low = mid + 1;
+                        } else {
+                            high = mid - 1;
+                        }
+                    }
+                    return high >= 0 && value <= values[high * 2] + values[high * 2 + 1];
+            }
+        }
+
+        int andCardinality(Container other) {
+            // Order the pair so only half of the cases are needed
+            if (type > other.type) {
+                return other.andCardinality(this);
+            }
+            int count = 0;
+            switch (type * 3 + other.type) {
+                case ARRAY * 3 + ARRAY: {
+                    int i = 0;
+                    int j = 0;
+                    while (i < values.length && j < other.values.length) {
+                        if (values[i] < other.values[j]) {
+                            i++;
+                        } else if (values[i] > other.values[j]) {
+                            j++;
+                        } else {
+                            count++;
+                            i++;
+                            j++;
+                        }
+                    }
+                    break;
+                }
+                case ARRAY * 3 + BITMAP:
+                case ARRAY * 3 + RUN:
+                    for (char value : values) {
+                        if (other.contains(value)) {
+                            count++;
+                        }
+                    }
+                    break;
+                case BITMAP * 3 + BITMAP:
+                    for (int w = 0; w < 1024; w++) {
+                        count += Long.bitCount(bitmap[w] & other.bitmap[w]);
+                    }
+                    break;
+                case BITMAP * 3 + RUN:
+                    for (int r = 0; r < other.values.length; r += 2) {
+                        count += countRange(bitmap, other.values[r], other.values[r] + other.values[r + 1]);
+                    }
+                    break;
+                default: {
+                    // RUN and RUN, overlap of intervals
+                    int i = 0;
+                    int j = 0;
+                    while (i < values.length && j < other.values.length) {
+                        int end = values[i] + values[i + 1];
+                        int otherEnd = other.values[j] + other.values[j + 1];
+                        int overlap = Math.min(end, otherEnd) - Math.max(values[i], other.values[j]) + 1;
+                        if (overlap > 0) {
+                            count += overlap;
+                        }
+                        if (end < otherEnd) {
+                            i += 2;
+                        } else {
+                            j += 2;
+                        }
+                    }
+                    break;
+                }
+            }
+            return count;
+        }
+
+        void addTo(FontScanner.Ranges ranges, int base) {
+            switch (type) {
+                case ARRAY:
+                    for (char value : values) {
+                        ranges.add(base | value, base | value);
+                    }
+                    break;
+                case BITMAP:
+                    for (int w = 0; w < 1024; w++) {
+                        long word = bitmap[w];
+                        while (word != 0) {
+                            int bit = Long.numberOfTrailingZeros(word);
+                            int value = base | (w << 6) | bit;
+                            ranges.add(value, value);
+                            word &= word - 1;
+                        }
+                    }
+                    break;
+                default:
+                    for (int r = 0; r < values.length; r += 2) {
+                        ranges.add(base | values[r], base | (values[r] + values[r + 1]));
+                    }
+                    break;
+            }
+        }
+
+        int getSizeInBytes() {
+            return type == BITMAP ? BITMAP_BYTES : values.length * 2;
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeByte(type);
+            out.writeInt(cardinality);
+            if (type == BITMAP) {
+                for (long word : bitmap) {
+                    out.writeLong(word);
+                }
+            } else {
+                out.writeInt(values.length);
+                for (char value : values) {
+                    out.writeChar(value);
+                }
+            }
+        }
+
+        static Container read(DataInput in) throws IOException {
+            int type = in.readUnsignedByte();
+            int cardinality = in.readInt();
+            if (type == BITMAP) {
+                long[] bitmap = new long[1024];
+                for (int w = 0; w < bitmap.length; w++) {
+                    bitmap[w] = in.readLong();
+                }
+                return new Container(type, cardinality, null, bitmap);
+            }
+            int length = in.readInt();
+            if (type > RUN || length < 0 || length > 0x20000) {
+                throw new IOException("Broken code point set");
+            }
+            char[] values = new char[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = in.readChar();
+            }
+            return new Container(type, cardinality, values, null);
+        }
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Headless commands, run when Fontweak is started with arguments.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class Command {
+
+    /**
+     * Run a command.
+     *
+     * @param args Command name and its arguments.
+     * @return Exit code.
+     */
+    public static int run(String[] args) {
+        String[] rest = Arrays.copyOfRange(args, 1, args.length);
+        if (Arrays.asList("batch", "import", "merge", "optimize").contains(args[0])) {
+            SaveJournal.getDefault(); // Finish saves cut off by a crash before reading
+        }
+        switch (args[0]) {
+            case "batch":
+                return BatchMode.run(rest);
+            case "resolve":
+                return resolve(rest);
+            case "daemon":
+                return daemon(rest);
+            case "import":
+                return importRules(rest);
+            case "export":
+                return exportRules(rest);
+            case "diff":
+                return diff(rest);
+            case "merge":
+                return merge(rest);
+            case "optimize":
+                return optimize(rest);
+            default:
+                System.err.println("Usage: fontweak [--metrics-out FILE] [COMMAND [ARGS...]]");
+                System.err.println();
+                System.err.println("Commands:");
+                System.err.println("  batch    Apply a policy to many config files");
+                System.err.println("  resolve  Show what a font family resolves to");
+                System.err.println("  daemon   Answer resolve queries on a Unix socket");
+                System.err.println("  import   Add, change or remove rules from CSV or JSON Lines");
+                System.err.println("  export   Write rules as CSV or JSON Lines");
+                System.err.println("  diff     Show rules and options that differ");
+                System.err.println("  merge    Merge a new baseline config into a config");
+                System.err.println("  optimize Remove and merge rules that change no family chain");
+                return 2;
+        }
+    }
+
+    /**
+     * Usage: fontweak resolve [--config FILE] [--system] FAMILY [LANG|--all]
+     */
+    private static int resolve(String[] args) {
+        File file = null;
+        boolean system = false;
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--config") && i + 1 < args.length) {
+                file = new File(args[++i]);
+            } else if (args[i].equals("--system")) {
+                system = true;
+            } else {
+                rest.add(args[i]);
+            }
+        }
+        if (rest.isEmpty() || rest.size() > 2) {
+            System.err.println("Usage: fontweak resolve [--config FILE] [--system] FAMILY [LANG|--all]");
+            return 2;
+        }
+
+        FontConfig config;
+        try {
+            config = file != null ? new FontConfig(file) : new FontConfig();
+            config.load();
+        } catch (IOException | XMLStreamException ex) {
+            System.err.println(ex.getMessage());
+            return 1;
+        }
+
+        FontResolver resolver = new FontResolver(config);
+        if (system) {
+            resolver.setSystemConfig(SystemFontConfig.load(config.getFile()));
+        }
+        String family = rest.get(0);
+        if (rest.size() == 2 && rest.get(1).equals("--all")) {
+            String[][] chains = resolver.resolveAll(family);
+            for (int i = 0; i < chains.length; i++) {
+                System.out.println(FontConfig.LANGUAGES[i] + ": " + join(chains[i]));
+            }
+        } else {
+            System.out.println(join(resolver.resolve(family, rest.size() == 2 ? rest.get(1) : null)));
+        }
+        return 0;
+    }
+
+    /**
+     * Usage: fontweak daemon [--config FILE] [--system] [--socket PATH]
+     *
+     * ResolveDaemon is found by name, it is only built on Java 16 and later.
+     */
+    private static int daemon(String[] args) {
+        try {
+            Class<?> daemon = Class.forName(Command.class.getPackage().getName() + ".ResolveDaemon");
+            return (Integer) daemon.getMethod("run", String[].class).invoke(null, (Object) args);
+        } catch (ClassNotFoundException | LinkageError ex) {
+            System.err.println("The daemon needs Java 16 or later");
+            return 1;
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Usage: fontweak import [--config FILE] [--dry-run] FILE...
+     *
+     * All files are applied, then the config is written once. Problems go to
+     * stderr, the exit code is 1 if a record was not valid.
+     */
+    private static int importRules(String[] args) {
+        File file = null;
+        boolean dryRun = false;
+        List<File> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--config") && i + 1 < args.length) {
+                file = new File(args[++i]);
+            } else if (args[i].equals("--dry-run")) {
+                dryRun = true;
+            } else {
+                inputs.add(new File(args[i]));
+            }
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: fontweak import [--config FILE] [--dry-run] FILE...");
+            return 2;
+        }
+
+        try {
+            FontConfig config = file != null ? new FontConfig(file) : new FontConfig();
+            config.load();
+            RuleTransfer transfer = new RuleTransfer(config, System.err);
+            for (File input : inputs) {
+                try (Reader reader = Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8)) {
+                    transfer.importRules(reader, RuleTransfer.Format.of(input), input.getPath());
+                }
+            }
+            RuleTransfer.Report report = transfer.getReport();
+            System.out.println(report);
+            if (!dryRun && report.added + report.changed + report.removed > 0) {
+                config.store();
+                SaveJournal.getDefault().checkpoint();
+            }
+            return report.errors > 0 ? 1 : 0;
+        } catch (IOException | XMLStreamException ex) {
+            System.err.println(ex.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Usage: fontweak export [--config FILE] [--format csv|jsonl] [FILE]
+     *
+     * Without FILE the rules are written to stdout, as CSV unless --format
+     * says otherwise.
+     */
+    private static int exportRules(String[] args) {
+        File file = null;
+        File output = null;
+        RuleTransfer.Format format = null;
+        boolean usage = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--config") && i + 1 < args.length) {
+                file = new File(args[++i]);
+            } else if (args[i].equals("--format") && i + 1 < args.length) {
+                String name = args[++i];
+                if (name.equals("csv")) {
+                    format = RuleTransfer.Format.CSV;
+                } else if (name.equals("jsonl")) {
+                    format = RuleTransfer.Format.JSONL;
+                } else {
+                    usage = true;
+                }
+            } else if (output == null && !args[i].startsWith("--")) {
+                output = new File(args[i]);
+            } else {
+                usage = true;
+            }
+        }
+        if (usage) {
+            System.err.println("Usage: fontweak export [--config FILE] [--format csv|jsonl] [FILE]");
+            return 2;
+        }
+        if (format == null) {
+            format = output != null ? RuleTransfer.Format.of(output) : RuleTransfer.Format.CSV;
+        }
+
+        try {
+            FontConfig config = file != null ? new FontConfig(file) : new FontConfig();
+            config.load();
+            try (Writer writer = output != null
+                    ? Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)
+                    : new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) {
+                RuleTransfer.exportRules(config, writer, format);
+            }
+            return 0;
+        } catch (IOException | XMLStreamException ex) {
+            System.err.println(ex.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Usage: fontweak diff FROM TO
+     *
+     * Exit code is 1 if the configs differ, like diff.
+     */
+    private static int diff(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: fontweak diff FROM TO");
+            return 2;
+        }
+        try {
+            FontConfig from = new FontConfig(new File(args[0]));
+            from.load();
+            FontConfig to = new FontConfig(new File(args[1]));
+            to.load();
+            List<ConfigDiff.Change> changes = ConfigDiff.compare(from, to);
+            for (ConfigDiff.Change change : changes) {
+                System.out.println(change);
+            }
+            return changes.isEmpty() ? 0 : 1;
+        } catch (IOException | XMLStreamException ex) {
+            System.err.println(ex.getMessage());
+            return 2;
+        }
+    }
+
+    /**
+     * Usage: fontweak merge [--config FILE] [--base FILE] [--theirs-wins]
+     * [--dry-run] BASELINE
+     *
+     * Without --base the baseline merged last is the base. Conflicts are
+     * printed, the exit code is 1 if there are any.
+     */
+    private static int merge(String[] args) {
+        File file = null;
+        File baseFile = null;
+        File baseline = null;
+        boolean theirsWins = false;
+        boolean dryRun = false;
+        boolean usage = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--config") && i + 1 < args.length) {
+                file = new File(args[++i]);
+            } else if (args[i].equals("--base") && i + 1 < args.length) {
+                baseFile = new File(args[++i]);
+            } else if (args[i].equals("--theirs-wins")) {
+                theirsWins = true;
+            } else if (args[i].equals("--dry-run")) {
+                dryRun = true;
+            } else if (baseline == null && !args[i].startsWith("--")) {
+                baseline = new File(args[i]);
+            } else {
+                usage = true;
+            }
+        }
+        if (usage || baseline == null) {
+            System.err.println("Usage: fontweak merge [--config FILE] [--base FILE] [--theirs-wins] [--dry-run] BASELINE");
+            return 2;
+        }
+
+        try {
+            FontConfig config = file != null ? new FontConfig(file) : new FontConfig();
+            config.load();
+            FontConfig theirs = new FontConfig(baseline);
+            theirs.load();
+            FontConfig base;
+            if (baseFile != null) {
+                base = new FontConfig(baseFile);
+                base.load();
+            } else {
+                base = ConfigMerge.loadBaseline(config);
+            }
+
+            ConfigMerge merge = new ConfigMerge(base, config, theirs);
+            merge.setTheirsWins(theirsWins);
+            List<ConfigMerge.Conflict> conflicts = merge.merge();
+            for (ConfigMerge.Conflict conflict : conflicts) {
+                System.out.println(conflict);
+            }
+            System.out.println(merge.getChanges() + " changes, " + conflicts.size() + " conflicts");
+            if (!dryRun) {
+                if (merge.getChanges() > 0) {
+                    config.store();
+                    SaveJournal.getDefault().checkpoint();
+                }
+                ConfigMerge.rememberBaseline(config.getFile(), baseline);
+            }
+            return conflicts.isEmpty() ? 0 : 1;
+        } catch (IOException | XMLStreamException ex) {
+            System.err.println(ex.getMessage());
+            return 2;
+        }
+    }
+
+    /**
+     * Usage: fontweak optimize [--config FILE] [--dry-run]
+     *
+     * Removed and changed rules are printed, then the sizes before and after.
+     */
+    private static int optimize(String[] args) {
+        File file = null;
+        boolean dryRun = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--config") && i + 1 < args.length) {
+                file = new File(args[++i]);
+            } else if (args[i].equals("--dry-run")) {
+                dryRun = true;
+            } else {
+                System.err.println("Usage: fontweak optimize [--config FILE] [--dry-run]");
+                return 2;
+            }
+        }
+
+        try {
+            FontConfig config = file != null ? new FontConfig(file) : new FontConfig();
+            config.load();
+            ConfigOptimizer optimizer = new ConfigOptimizer(config);
+            ConfigOptimizer.Report report = optimizer.optimize();
+            for (String action : optimizer.getActions()) {
+                System.out.println(action);
+            }
+            System.out.println(report);
+            if (!dryRun && !optimizer.getActions().isEmpty()) {
+                config.store();
+                SaveJournal.getDefault().checkpoint();
+            }
+            return 0;
+        } catch (IOException | XMLStreamException ex) {
+            System.err.println(ex.getMessage());
+            return 1;
+        }
+    }
+
+    private static String join(String[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Structural difference of two FontConfig models: matches by the family and
+ * language they test, aliases by their family, and options. Rules with the
+ * same key are paired in file order, the second serif match with the second
+ * one.
+ *
+ * Values are compared by a fingerprint of their SymbolTable ids first, so
+ * comparing configs of 100k rules takes one pass over each. See
+ * ConfigMerge for merging with a common base.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class ConfigDiff {
+
+    public enum Kind {
+        ADDED, REMOVED, CHANGED
+    }
+
+    /**
+     * A rule or option that differs.
+     */
+    public static class Change {
+        public final Kind kind;
+        // Like "match serif [zh-cn]", "alias Arial" or "option hintstyle"
+        public final String rule;
+        // Families separated by ", " or the option value, null if absent
+        public final String before;
+        public final String after;
+
+        Change(Kind kind, String rule, String before, String after) {
+            this.kind = kind;
+            this.rule = rule;
+            this.before = before;
+            this.after = after;
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+                case ADDED:
+                    return "+ " + rule + ": " + after;
+                case REMOVED:
+                    return "- " + rule + ": " + before;
+                default:
+                    return "~ " + rule + ": " + before + " -> " + after;
+            }
+        }
+    }
+
+    /**
+     * Rules of one config by key and position among rules of that key,
+     * with their values as ids.
+     */
+    static class Side {
+        final FontConfig config;
+        final Map<Long, List<Rule>> matches = new LinkedHashMap<>();
+        final Map<Long, List<Rule>> aliases = new LinkedHashMap<>();
+        final String[] options = new String[FontConfig.OPTIONS.length];
+
+        Side(FontConfig config) {
+            this.config = config;
+            SymbolTable symbols = SymbolTable.FAMILIES;
+            for (FontMatch match : config.matchList) {
+                if (!match.isEmpty()) {
+                    add(matches, match.key(), new Rule(match, symbols.ids(match.familyEdit)));
+                }
+            }
+            for (FontAlias alias : config.aliasList) {
+                if (!alias.isEmpty()) {
+                    add(aliases, alias.key(), new Rule(alias, new int[]{symbols.id(alias.prefer)}));
+                }
+            }
+            for (int i = 0; i < options.length; i++) {
+                options[i] = config.getOption(i);
+            }
+        }
+
+        private static void add(Map<Long, List<Rule>> map, long key, Rule rule) {
+            List<Rule> list = map.get(key);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                map.put(key, list);
+            }
+            list.add(rule);
+        }
+
+        /**
+         * @return Rule at a position among those of a key, null if there
+         * are fewer.
+         */
+        static Rule get(Map<Long, List<Rule>> map, long key, int position) {
+            List<Rule> list = map.get(key);
+            return list == null || position >= list.size() ? null : list.get(position);
+        }
+
+        static int count(Map<Long, List<Rule>> map, long key) {
+            List<Rule> list = map.get(key);
+            return list == null ? 0 : list.size();
+        }
+    }
+
+    /**
+     * A FontMatch or FontAlias with its families as ids.
+     */
+    static class Rule {
+        final IndexedList.Keyed rule;
+        final int[] value;
+        final long fingerprint;
+
+        Rule(IndexedList.Keyed rule, int[] value) {
+            this.rule = rule;
+            this.value = value;
+            long hash = 0xcbf29ce484222325L; // FNV-1a
+            for (int id : value) {
+                hash = (hash ^ id) * 0x100000001b3L;
+            }
+            this.fingerprint = hash;
+        }
+
+        /**
+         * @return Rule is the same as other, both may be null.
+         */
+        static boolean same(Rule a, Rule b) {
+            if (a == null || b == null) {
+                return a == b;
+            }
+            return a.fingerprint == b.fingerprint && Arrays.equals(a.value, b.value);
+        }
+
+        String label() {
+            if (rule instanceof FontMatch) {
+                FontMatch match = (FontMatch) rule;
+                return "match " + (match.langTest == null ? match.familyTest : match.familyTest + " [" + match.langTest + "]");
+            }
+            return "alias " + ((FontAlias) rule).family;
+        }
+
+        String values() {
+            if (rule instanceof FontMatch) {
+                StringBuilder builder = new StringBuilder();
+                for (String family : ((FontMatch) rule).familyEdit) {
+                    if (builder.length() > 0) {
+                        builder.append(", ");
+                    }
+                    builder.append(family);
+                }
+                return builder.toString();
+            }
+            return ((FontAlias) rule).prefer;
+        }
+
+        static String values(Rule rule) {
+            return rule == null ? null : rule.values();
+        }
+    }
+
+    /**
+     * Compare two configs.
+     *
+     * @param from Old config.
+     * @param to New config.
+     * @return Changes from old to new: matches, then aliases, then options.
+     */
+    public static List<Change> compare(FontConfig from, FontConfig to) {
+        Side a = new Side(from);
+        Side b = new Side(to);
+        List<Change> changes = new ArrayList<>();
+        compare(a.matches, b.matches, changes);
+        compare(a.aliases, b.aliases, changes);
+        for (int i = 0; i < a.options.length; i++) {
+            if (!a.options[i].equals(b.options[i])) {
+                changes.add(new Change(Kind.CHANGED, "option " + FontConfig.OPTIONS[i], a.options[i], b.options[i]));
+            }
+        }
+        return changes;
+    }
+
+    private static void compare(Map<Long, List<Rule>> from, Map<Long, List<Rule>> to, List<Change> changes) {
+        for (Map.Entry<Long, List<Rule>> entry : from.entrySet()) {
+            List<Rule> old = entry.getValue();
+            for (int i = 0; i < old.size(); i++) {
+                Rule before = old.get(i);
+                Rule after = Side.get(to, entry.getKey(), i);
+                if (after == null) {
+                    changes.add(new Change(Kind.REMOVED, before.label(), before.values(), null));
+                } else if (!Rule.same(before, after)) {
+                    changes.add(new Change(Kind.CHANGED, after.label(), before.values(), after.values()));
+                }
+            }
+        }
+        for (Map.Entry<Long, List<Rule>> entry : to.entrySet()) {
+            List<Rule> rules = entry.getValue();
+            for (int i = Side.count(from, entry.getKey()); i < rules.size(); i++) {
+                changes.add(new Change(Kind.ADDED, rules.get(i).label(), null, rules.get(i).values()));
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Undo and redo of edits to a FontConfig.
+ *
+ * Every state is a snapshot of the rule values and options. Snapshots keep
+ * rules in PersistentLists, so recording an edit of one rule copies
+ * O(log n) tree nodes and shares the rest with the state before. Thousands
+ * of edits of a large config cost little memory.
+ *
+ * Edits are made to the config first, then told with the method of their
+ * kind, with the position of the changed rule. Snapshots remember the rule
+ * objects, so undo puts the same objects back with their old values, and
+ * FontConfigWriter still knows where they are saved.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class ConfigHistory {
+
+    private static final class MatchState {
+        final FontMatch rule;
+        final String familyTest;
+        final String langTest;
+        final String[] familyEdit;
+
+        MatchState(FontMatch rule) {
+            this.rule = rule;
+            this.familyTest = rule.familyTest;
+            this.langTest = rule.langTest;
+            this.familyEdit = rule.familyEdit == null ? null : rule.familyEdit.clone();
+        }
+
+        FontMatch restore() {
+            rule.familyTest = familyTest;
+            rule.langTest = langTest;
+            rule.familyEdit = familyEdit == null ? null : familyEdit.clone();
+            return rule;
+        }
+    }
+
+    private static final class AliasState {
+        final FontAlias rule;
+        final String family;
+        final String prefer;
+
+        AliasState(FontAlias rule) {
+            this.rule = rule;
+            this.family = rule.family;
+            this.prefer = rule.prefer;
+        }
+
+        FontAlias restore() {
+            rule.family = family;
+            rule.prefer = prefer;
+            return rule;
+        }
+    }
+
+    private static final class Snapshot {
+        final PersistentList<MatchState> matches;
+        final PersistentList<AliasState> aliases;
+        final String[] options;
+
+        Snapshot(PersistentList<MatchState> matches, PersistentList<AliasState> aliases, String[] options) {
+            this.matches = matches;
+            this.aliases = aliases;
+            this.options = options;
+        }
+    }
+
+    private final FontConfig config;
+    private Snapshot current;
+    private final Deque<Snapshot> undo = new ArrayDeque<>();
+    private final Deque<Snapshot> redo = new ArrayDeque<>();
+    // Rule objects of all snapshots
+    private final Set<Object> known = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    /**
+     * @param config Config to follow, loaded.
+     * @param options Option values shown, in the order of
+     * FontConfig.OPTIONS.
+     */
+    public ConfigHistory(FontConfig config, String[] options) {
+        this.config = config;
+        this.current = capture(options);
+    }
+
+    private Snapshot capture(String[] options) {
+        List<MatchState> matches = new ArrayList<>(config.matchList.size());
+        for (FontMatch match : config.matchList) {
+            matches.add(new MatchState(match));
+            known.add(match);
+        }
+        List<AliasState> aliases = new ArrayList<>(config.aliasList.size());
+        for (FontAlias alias : config.aliasList) {
+            aliases.add(new AliasState(alias));
+            known.add(alias);
+        }
+        return new Snapshot(PersistentList.of(matches), PersistentList.of(aliases), options.clone());
+    }
+
+    private void push(Snapshot next) {
+        undo.push(current);
+        redo.clear();
+        current = next;
+    }
+
+    /**
+     * @param index Position of the match changed in place.
+     */
+    public void matchChanged(int index) {
+        push(new Snapshot(current.matches.set(index, new MatchState(config.matchList.get(index))),
+                current.aliases, current.options));
+    }
+
+    /**
+     * @param index Position of the added match.
+     */
+    public void matchAdded(int index) {
+        known.add(config.matchList.get(index));
+        push(new Snapshot(current.matches.insert(index, new MatchState(config.matchList.get(index))),
+                current.aliases, current.options));
+    }
+
+    /**
+     * @param index Position of the match before it was removed.
+     */
+    public void matchRemoved(int index) {
+        push(new Snapshot(current.matches.remove(index), current.aliases, current.options));
+    }
+
+    /**
+     * @param index Position of the alias changed in place.
+     */
+    public void aliasChanged(int index) {
+        push(new Snapshot(current.matches,
+                current.aliases.set(index, new AliasState(config.aliasList.get(index))), current.options));
+    }
+
+    /**
+     * @param index Position of the added alias.
+     */
+    public void aliasAdded(int index) {
+        known.add(config.aliasList.get(index));
+        push(new Snapshot(current.matches,
+                current.aliases.insert(index, new AliasState(config.aliasList.get(index))), current.options));
+    }
+
+    /**
+     * @param index Position of the alias before it was removed.
+     */
+    public void aliasRemoved(int index) {
+        push(new Snapshot(current.matches, current.aliases.remove(index), current.options));
+    }
+
+    /**
+     * @param options Option values now shown, nothing is recorded if they
+     * did not change.
+     */
+    public void optionsChanged(String[] options) {
+        if (!Arrays.equals(options, current.options)) {
+            push(new Snapshot(current.matches, current.aliases, options.clone()));
+        }
+    }
+
+    /**
+     * Record a change of any part of the config, like a reload. Costs a
+     * full snapshot.
+     *
+     * Rules of older snapshots that are not in the config any more lose
+     * their place in the file, which may now hold another rule. Undo puts
+     * them back as new rules.
+     *
+     * @param options Option values now shown.
+     */
+    public void changed(String[] options) {
+        Set<Object> live = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        live.addAll(config.matchList);
+        live.addAll(config.aliasList);
+        for (Object rule : known) {
+            if (live.contains(rule)) {
+                continue;
+            }
+            if (rule instanceof FontMatch) {
+                ((FontMatch) rule).source = -1;
+            } else {
+                ((FontAlias) rule).source = -1;
+            }
+        }
+        push(capture(options));
+    }
+
+    public boolean canUndo() {
+        return !undo.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redo.isEmpty();
+    }
+
+    /**
+     * Put the config back to the state before the last edit.
+     *
+     * @return Option values to show.
+     */
+    public String[] undo() {
+        redo.push(current);
+        current = undo.pop();
+        return restore();
+    }
+
+    /**
+     * Make the last undone edit again.
+     *
+     * @return Option values to show.
+     */
+    public String[] redo() {
+        undo.push(current);
+        current = redo.pop();
+        return restore();
+    }
+
+    private String[] restore() {
+        List<FontMatch> matches = new ArrayList<>(current.matches.size());
+        for (MatchState state : current.matches.toList()) {
+            matches.add(state.restore());
+        }
+        List<FontAlias> aliases = new ArrayList<>(current.aliases.size());
+        for (AliasState state : current.aliases.toList()) {
+            aliases.add(state.restore());
+        }
+        config.matchList.clear();
+        config.matchList.addAll(matches);
+        config.aliasList.clear();
+        config.aliasList.addAll(aliases);
+        config.rulesChanged();
+        return current.options.clone();
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Three-way merge of FontConfig models, for a baseline config rolled out to
+ * users who edit their own. What only the baseline changed since the last
+ * merge is applied to the user's config, what only the user changed stays.
+ * Where both changed a rule or option differently it is a conflict: the
+ * user's value is kept, or the baseline's with setTheirsWins().
+ *
+ * Rules are paired like in ConfigDiff. The merge changes the user's model
+ * in place, so unchanged rules keep their place in the file when it is
+ * written, and only the changed ones are new or rewritten.
+ *
+ * The baseline of the last merge is kept in the cache directory as the
+ * base of the next one, see loadBaseline().
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class ConfigMerge {
+
+    /**
+     * A rule or option both sides changed differently.
+     */
+    public static class Conflict {
+        public final String rule;
+        // Families separated by ", " or the option value, null if absent
+        public final String base;
+        public final String ours;
+        public final String theirs;
+
+        Conflict(String rule, String base, String ours, String theirs) {
+            this.rule = rule;
+            this.base = base;
+            this.ours = ours;
+            this.theirs = theirs;
+        }
+
+        @Override
+        public String toString() {
+            return "! " + rule + ": base " + base + "; ours " + ours + "; theirs " + theirs;
+        }
+    }
+
+    private final FontConfig base;
+    private final FontConfig ours;
+    private final FontConfig theirs;
+    private boolean theirsWins;
+    private int changes;
+    private final List<Conflict> conflicts = new ArrayList<>();
+
+    /**
+     * @param base Config both sides started from.
+     * @param ours Config to merge into, like the user's.
+     * @param theirs Config to merge, like a new baseline.
+     */
+    public ConfigMerge(FontConfig base, FontConfig ours, FontConfig theirs) {
+        this.base = base;
+        this.ours = ours;
+        this.theirs = theirs;
+    }
+
+    /**
+     * @param theirsWins Take their value in conflicts instead of ours.
+     */
+    public void setTheirsWins(boolean theirsWins) {
+        this.theirsWins = theirsWins;
+    }
+
+    /**
+     * Merge theirs into ours, once.
+     *
+     * @return Conflicts, empty if none.
+     */
+    public List<Conflict> merge() {
+        ConfigDiff.Side b = new ConfigDiff.Side(base);
+        ConfigDiff.Side o = new ConfigDiff.Side(ours);
+        ConfigDiff.Side t = new ConfigDiff.Side(theirs);
+        Set<Object> removed = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        merge(b.matches, o.matches, t.matches, removed);
+        merge(b.aliases, o.aliases, t.aliases, removed);
+        if (!removed.isEmpty()) {
+            // One pass, the index is rebuilt once
+            ours.matchList.removeAll(removed);
+            ours.aliasList.removeAll(removed);
+        }
+
+        for (int i = 0; i < FontConfig.OPTIONS.length; i++) {
+            if (o.options[i].equals(t.options[i]) || b.options[i].equals(t.options[i])) {
+                continue; // Theirs did not change it
+            }
+            if (!b.options[i].equals(o.options[i])) {
+                conflicts.add(new Conflict("option " + FontConfig.OPTIONS[i], b.options[i], o.options[i], t.options[i]));
+                if (!theirsWins) {
+                    continue;
+                }
+            }
+            ours.setOption(i, t.options[i]);
+            changes++;
+        }
+        return conflicts;
+    }
+
+    private void merge(Map<Long, List<ConfigDiff.Rule>> b, Map<Long, List<ConfigDiff.Rule>> o,
+            Map<Long, List<ConfigDiff.Rule>> t, Set<Object> removed) {
+        Set<Long> keys = new LinkedHashSet<>(o.keySet());
+        keys.addAll(t.keySet());
+        keys.addAll(b.keySet());
+        for (Long key : keys) {
+            int count = Math.max(ConfigDiff.Side.count(b, key),
+                    Math.max(ConfigDiff.Side.count(o, key), ConfigDiff.Side.count(t, key)));
+            for (int i = 0; i < count; i++) {
+                ConfigDiff.Rule baseRule = ConfigDiff.Side.get(b, key, i);
+                ConfigDiff.Rule ourRule = ConfigDiff.Side.get(o, key, i);
+                ConfigDiff.Rule theirRule = ConfigDiff.Side.get(t, key, i);
+                if (ConfigDiff.Rule.same(ourRule, theirRule) || ConfigDiff.Rule.same(baseRule, theirRule)) {
+                    continue; // Same, or theirs did not change it
+                }
+                if (!ConfigDiff.Rule.same(baseRule, ourRule)) {
+                    ConfigDiff.Rule any = ourRule != null ? ourRule : theirRule;
+                    conflicts.add(new Conflict(any.label(), ConfigDiff.Rule.values(baseRule),
+                            ConfigDiff.Rule.values(ourRule), ConfigDiff.Rule.values(theirRule)));
+                    if (!theirsWins) {
+                        continue;
+                    }
+                }
+                take(ourRule, theirRule, removed);
+                changes++;
+            }
+        }
+    }
+
+    // Make our rule the same as theirs
+    private void take(ConfigDiff.Rule ourRule, ConfigDiff.Rule theirRule, Set<Object> removed) {
+        if (theirRule == null) {
+            removed.add(ourRule.rule);
+        } else if (theirRule.rule instanceof FontMatch) {
+            FontMatch match = (FontMatch) theirRule.rule;
+            if (ourRule == null) {
+                ours.matchList.add(new FontMatch(match.familyTest, match.langTest, match.familyEdit.clone()));
+            } else {
+                ((FontMatch) ourRule.rule).familyEdit = match.familyEdit.clone();
+                ours.rulesChanged();
+            }
+        } else {
+            FontAlias alias = (FontAlias) theirRule.rule;
+            if (ourRule == null) {
+                ours.aliasList.add(new FontAlias(alias.family, alias.prefer));
+            } else {
+                ((FontAlias) ourRule.rule).prefer = alias.prefer;
+                ours.rulesChanged();
+            }
+        }
+    }
+
+    /**
+     * @return Number of rules and options changed in ours by merge().
+     */
+    public int getChanges() {
+        return changes;
+    }
+
+    /**
+     * @param config Config file merged into.
+     * @return Copy of the baseline last merged into the config, in the cache
+     * directory.
+     */
+    public static File getBaselineFile(File config) {
+        CRC32 crc = new CRC32();
+        byte[] path = config.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        crc.update(path, 0, path.length);
+        return new File(new File(SystemFontList.getCacheDir(), "baselines"), Long.toHexString(crc.getValue()) + ".conf");
+    }
+
+    /**
+     * Base for merging a baseline into a config: the baseline merged last.
+     * Before the first merge the base has no rules and the options of the
+     * config, so the baseline's rules and options are all taken except
+     * rules the config has with other values.
+     *
+     * @param config Config to merge into, read.
+     * @return Base config.
+     * @throws IOException If the copy cannot be read.
+     * @throws XMLStreamException If the copy is not valid.
+     */
+    public static FontConfig loadBaseline(FontConfig config) throws IOException, XMLStreamException {
+        File file = getBaselineFile(config.getFile());
+        FontConfig baseline = new FontConfig(file);
+        if (file.isFile()) {
+            baseline.load();
+        } else {
+            for (int i = 0; i < FontConfig.OPTIONS.length; i++) {
+                baseline.setOption(i, config.getOption(i));
+            }
+        }
+        return baseline;
+    }
+
+    /**
+     * Keep a baseline as the base of the next merge, after the merged config
+     * was written.
+     *
+     * @param config Config file merged into.
+     * @param baseline Baseline file merged.
+     * @throws IOException If the copy cannot be written.
+     */
+    public static void rememberBaseline(File config, File baseline) throws IOException {
+        File copy = getBaselineFile(config);
+        Files.createDirectories(copy.getParentFile().toPath());
+        File temp = Files.createTempFile(copy.getParentFile().toPath(), "." + copy.getName(), ".tmp").toFile();
+        try {
+            Files.copy(baseline.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+}
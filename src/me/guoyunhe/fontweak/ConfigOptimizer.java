@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remove rules of a config that change no family chain and merge matches
+ * that can be one. Family chains stay the same for every family and
+ * language, as FontResolver computes them, with or without the system
+ * config around the rules. Only the spelling of a family may change, like
+ * "DejaVu Sans" for "dejavu sans", fontconfig takes both as the same.
+ *
+ * The rules are taken in the order fontconfig applies them. Up to that
+ * point a chain is a list without duplicates, a rule that fires moves its
+ * families in front of the family it tests. Then:
+ * <ul>
+ * <li>A family repeated in a match never moves anything, it is removed.</li>
+ * <li>A rule that only prefers the family it tests is removed.</li>
+ * <li>A rule the same as an earlier one is removed, if no rule between them
+ * moves its family or one of its families. They are still in front of it.</li>
+ * <li>A match following one with the same tests is merged into it, if the
+ * first does not move the family it tests.</li>
+ * </ul>
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class ConfigOptimizer {
+
+    // Chains are compared before and after if it takes at most so many
+    // rules applied
+    private static final long MAX_VERIFY_STEPS = 20000000L;
+
+    /**
+     * Sizes of the config before and after.
+     */
+    public static class Report {
+        public int matchesBefore;
+        public int matchesAfter;
+        public int aliasesBefore;
+        public int aliasesAfter;
+        // Tests a lookup evaluates and families the rules prepend at most,
+        // option blocks written included
+        public long costBefore;
+        public long costAfter;
+        // Family and language pairs with the same chain before and after,
+        // -1 if there were too many to compare
+        public int verified = -1;
+
+        @Override
+        public String toString() {
+            return "matches " + matchesBefore + " -> " + matchesAfter + ", aliases " + aliasesBefore + " -> " + aliasesAfter
+                    + ", lookup cost " + costBefore + " -> " + costAfter
+                    + (verified >= 0 ? ", " + verified + " chains verified" : ", too large to verify");
+        }
+    }
+
+    // A rule with its tests and families as keys of SymbolTable.FAMILIES
+    private static class Item {
+        final IndexedList.Keyed rule;
+        final int source;
+        final int kind; // 0 match, 1 alias
+        final int family;
+        final int lang;
+        int[] keys;
+        Candidate candidate;
+
+        Item(IndexedList.Keyed rule, int source, int kind, String family, String lang, String[] families) {
+            this.rule = rule;
+            this.source = source;
+            this.kind = kind;
+            this.family = key(family);
+            this.lang = lang != null && !lang.equalsIgnoreCase("en") ? SymbolTable.FAMILIES.id(FontResolver.langKey(lang)) : SymbolTable.NONE;
+            this.keys = keys(families);
+        }
+
+        boolean prefers(int key) {
+            for (int value : keys) {
+                if (value == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Rules that are the same to fontconfig have equal signatures
+    private static class Signature {
+        final int kind;
+        final int family;
+        final int lang;
+        final int[] keys;
+
+        Signature(Item item) {
+            this.kind = item.kind;
+            this.family = item.family;
+            this.lang = item.lang;
+            this.keys = item.keys;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Signature)) {
+                return false;
+            }
+            Signature that = (Signature) other;
+            return kind == that.kind && family == that.family && lang == that.lang && Arrays.equals(keys, that.keys);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((kind * 31 + family) * 31 + lang) * 31 + Arrays.hashCode(keys);
+        }
+    }
+
+    // A rule whose families are still in front of its family
+    private static class Candidate {
+        final Signature signature;
+        boolean valid = true;
+
+        Candidate(Signature signature) {
+            this.signature = signature;
+        }
+    }
+
+    private final FontConfig config;
+    private final List<String> actions = new ArrayList<>();
+    private final Map<Signature, Candidate> candidates = new HashMap<>();
+    // Candidates by their family and families
+    private final Map<Integer, List<Candidate>> touching = new HashMap<>();
+
+    /**
+     * @param config Config to optimize in place.
+     */
+    public ConfigOptimizer(FontConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * @return What optimize() did, a line per rule: "- " removed, "~ "
+     * changed.
+     */
+    public List<String> getActions() {
+        return actions;
+    }
+
+    /**
+     * Optimize the rules, once. Chains of every family tested by a rule, for
+     * no language and every language tested, are compared before and after
+     * unless there are too many.
+     *
+     * @return Sizes before and after.
+     * @throws IllegalStateException If a chain changed, which is a bug.
+     */
+    public Report optimize() {
+        Report report = new Report();
+        List<Item> items = items();
+        report.matchesBefore = count(config.matchList);
+        report.aliasesBefore = count(config.aliasList);
+        report.costBefore = cost(items);
+
+        List<String[]> queries = queries(items);
+        List<String[]> before = queries != null ? resolve(queries) : null;
+
+        Set<Object> removed = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        boolean edited = false;
+        for (Item item : items) {
+            if (item.kind == 0 && removeRepeated(item)) {
+                actions.add("~ " + label(item) + ": repeated families removed");
+                edited = true;
+            }
+        }
+
+        Item previous = null;
+        for (Item item : items) {
+            boolean generic = isGeneric(item);
+            if (!generic && prefersOnlyItself(item)) {
+                removed.add(item.rule);
+                actions.add("- " + label(item) + ": only prefers itself");
+                continue;
+            }
+            Candidate same = candidates.get(new Signature(item));
+            if (!generic && same != null) {
+                removed.add(item.rule);
+                actions.add("- " + label(item) + ": same as an earlier rule");
+                continue;
+            }
+            if (!generic && previous != null && canMerge(previous, item)) {
+                FontMatch into = (FontMatch) previous.rule;
+                String[] families = Arrays.copyOf(into.familyEdit, into.familyEdit.length + ((FontMatch) item.rule).familyEdit.length);
+                System.arraycopy(((FontMatch) item.rule).familyEdit, 0, families, into.familyEdit.length, families.length - into.familyEdit.length);
+                into.familyEdit = families;
+                previous.keys = keys(families);
+                removeRepeated(previous);
+                removed.add(item.rule);
+                actions.add("~ " + label(previous) + ": merged with the next match");
+                actions.add("- " + label(item) + ": merged into the previous match");
+                edited = true;
+
+                invalidate(item);
+                if (previous.candidate != null && previous.candidate.valid) {
+                    previous.candidate.valid = false;
+                    candidates.remove(previous.candidate.signature);
+                }
+                register(previous);
+                continue;
+            }
+            invalidate(item);
+            register(item);
+            previous = item;
+        }
+
+        if (!removed.isEmpty()) {
+            config.matchList.removeAll(removed);
+            config.aliasList.removeAll(removed);
+        }
+        if (edited) {
+            config.rulesChanged();
+        }
+
+        List<Item> after = items();
+        report.matchesAfter = count(config.matchList);
+        report.aliasesAfter = count(config.aliasList);
+        report.costAfter = cost(after);
+        if (queries != null) {
+            List<String[]> chains = resolve(queries);
+            for (int i = 0; i < chains.size(); i++) {
+                if (!Arrays.equals(keys(before.get(i)), keys(chains.get(i)))) {
+                    throw new IllegalStateException("Chain of " + queries.get(i)[0] + " [" + queries.get(i)[1] + "] changed from "
+                            + Arrays.toString(before.get(i)) + " to " + Arrays.toString(chains.get(i)));
+                }
+            }
+            report.verified = queries.size();
+        }
+        return report;
+    }
+
+    /**
+     * @return Rules that are written, in the order FontResolver applies them.
+     */
+    private List<Item> items() {
+        List<Item> items = new ArrayList<>();
+        for (FontMatch match : config.matchList) {
+            if (!match.isEmpty()) {
+                items.add(new Item(match, match.source, 0, match.familyTest, match.langTest, match.familyEdit));
+            }
+        }
+        for (FontAlias alias : config.aliasList) {
+            if (!alias.isEmpty()) {
+                items.add(new Item(alias, alias.source, 1, alias.family, null, new String[]{alias.prefer}));
+            }
+        }
+        // Stable, same order as FontResolver.compile()
+        Collections.sort(items, new Comparator<Item>() {
+            @Override
+            public int compare(Item a, Item b) {
+                if (a.source >= 0 && b.source >= 0) {
+                    return Integer.compare(a.source, b.source);
+                } else if (a.source >= 0 || b.source >= 0) {
+                    return a.source >= 0 ? -1 : 1;
+                }
+                return Integer.compare(a.kind, b.kind);
+            }
+        });
+        return items;
+    }
+
+    private boolean isGeneric(Item item) {
+        // The window edits them in place, they must stay in the list
+        return item.rule == config.sansMatch || item.rule == config.serifMatch || item.rule == config.monoMatch;
+    }
+
+    private static boolean prefersOnlyItself(Item item) {
+        for (int key : item.keys) {
+            if (key != item.family) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The second moves its families in front of the family where the first
+     * put its own, so both can be one match.
+     */
+    private static boolean canMerge(Item first, Item second) {
+        return first.kind == 0 && second.kind == 0 && first.family == second.family && first.lang == second.lang
+                && !first.prefers(first.family);
+    }
+
+    /**
+     * Remove families of a match that are already earlier in it.
+     *
+     * @return Families were removed.
+     */
+    private static boolean removeRepeated(Item item) {
+        FontMatch match = (FontMatch) item.rule;
+        Map<Integer, String> families = new LinkedHashMap<>();
+        for (int i = 0; i < match.familyEdit.length; i++) {
+            if (!families.containsKey(item.keys[i])) {
+                families.put(item.keys[i], match.familyEdit[i]);
+            }
+        }
+        if (families.size() == match.familyEdit.length) {
+            return false;
+        }
+        match.familyEdit = families.values().toArray(new String[families.size()]);
+        item.keys = keys(match.familyEdit);
+        return true;
+    }
+
+    /**
+     * Forget earlier rules whose family or families the item moves, for the
+     * languages both apply to.
+     */
+    private void invalidate(Item item) {
+        for (int key : item.keys) {
+            List<Candidate> list = touching.get(key);
+            if (list == null) {
+                continue;
+            }
+            List<Candidate> kept = new ArrayList<>();
+            for (Candidate candidate : list) {
+                if (!candidate.valid) {
+                    continue;
+                }
+                int lang = candidate.signature.lang;
+                if (item.lang == SymbolTable.NONE || lang == SymbolTable.NONE || item.lang == lang) {
+                    candidate.valid = false;
+                    if (candidates.get(candidate.signature) == candidate) {
+                        candidates.remove(candidate.signature);
+                    }
+                } else {
+                    kept.add(candidate);
+                }
+            }
+            touching.put(key, kept);
+        }
+    }
+
+    private void register(Item item) {
+        item.candidate = null;
+        if (item.prefers(item.family)) {
+            return; // Moves its own family, a second time may move it again
+        }
+        Candidate candidate = new Candidate(new Signature(item));
+        candidates.put(candidate.signature, candidate);
+        item.candidate = candidate;
+        Set<Integer> keys = new LinkedHashSet<>();
+        keys.add(item.family);
+        for (int key : item.keys) {
+            keys.add(key);
+        }
+        for (Integer key : keys) {
+            List<Candidate> list = touching.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                touching.put(key, list);
+            }
+            list.add(candidate);
+        }
+    }
+
+    /**
+     * @return Family and language pairs whose chain rules can change, null
+     * if comparing them would take too long.
+     */
+    private static List<String[]> queries(List<Item> items) {
+        Map<Integer, String> families = new LinkedHashMap<>();
+        Map<Integer, String> langs = new LinkedHashMap<>();
+        langs.put(SymbolTable.NONE, null);
+        for (Item item : items) {
+            if (item.rule instanceof FontMatch) {
+                FontMatch match = (FontMatch) item.rule;
+                if (!families.containsKey(item.family)) {
+                    families.put(item.family, match.familyTest);
+                }
+                if (!langs.containsKey(item.lang)) {
+                    langs.put(item.lang, match.langTest);
+                }
+            } else if (!families.containsKey(item.family)) {
+                families.put(item.family, ((FontAlias) item.rule).family);
+            }
+        }
+        // Other families and languages: no rule applies or the same as none
+        if ((long) families.size() * langs.size() * items.size() > MAX_VERIFY_STEPS) {
+            return null;
+        }
+        List<String[]> queries = new ArrayList<>();
+        for (String family : families.values()) {
+            for (String lang : langs.values()) {
+                queries.add(new String[]{family, lang});
+            }
+        }
+        return queries;
+    }
+
+    private List<String[]> resolve(List<String[]> queries) {
+        FontResolver resolver = new FontResolver(config);
+        List<String[]> chains = new ArrayList<>(queries.size());
+        for (String[] query : queries) {
+            chains.add(resolver.resolve(query[0], query[1]));
+        }
+        return chains;
+    }
+
+    /**
+     * Tests a lookup evaluates, one per rule and one more for a language,
+     * plus the families all rules prepend if they fire, plus one per option
+     * block store() writes.
+     */
+    private long cost(List<Item> items) {
+        long cost = 0;
+        for (Item item : items) {
+            cost += (item.lang != SymbolTable.NONE ? 2 : 1) + item.keys.length;
+        }
+        for (int i = 0; i < FontConfig.OPTIONS.length; i++) {
+            if (config.optionSource[i] >= 0 || !config.getOption(i).equals(config.optionSaved[i])) {
+                cost++;
+            }
+        }
+        return cost;
+    }
+
+    private static int count(List<? extends IndexedList.Keyed> rules) {
+        int count = 0;
+        for (IndexedList.Keyed rule : rules) {
+            if (rule instanceof FontMatch ? !((FontMatch) rule).isEmpty() : !((FontAlias) rule).isEmpty()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String label(Item item) {
+        if (item.rule instanceof FontMatch) {
+            FontMatch match = (FontMatch) item.rule;
+            return "match " + (match.langTest == null ? match.familyTest : match.familyTest + " [" + match.langTest + "]");
+        }
+        FontAlias alias = (FontAlias) item.rule;
+        return "alias " + alias.family + " -> " + alias.prefer;
+    }
+
+    private static int key(String family) {
+        return SymbolTable.FAMILIES.key(SymbolTable.FAMILIES.id(family));
+    }
+
+    private static int[] keys(String[] families) {
+        int[] keys = new int[families.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = key(families[i]);
+        }
+        return keys;
+    }
+}
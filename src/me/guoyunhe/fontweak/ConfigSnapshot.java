@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary copy of a FontConfig as it was read from its file, in
+ * "~/.cache/fontweak/snapshot". Reading it is much faster than parsing the
+ * XML, so the editor starts without parsing when the file did not change.
+ *
+ * It is keyed by the path, size, modification time and CRC-32 of the file.
+ * It keeps the saved rules with their positions in the file, options, dirs
+ * and which elements are part of the model. Other elements are not part of
+ * the model, FontConfigWriter copies them from the file.
+ *
+ * Family names are written once in a table, rules refer to them by number.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+class ConfigSnapshot {
+
+    private static final int MAGIC = 0x46575350; // "FWSP"
+    private static final int VERSION = 1;
+
+    /**
+     * @return Default snapshot file, "$XDG_CACHE_HOME/fontweak/snapshot".
+     */
+    static File getDefaultFile() {
+        return new File(SystemFontList.getCacheDir(), "snapshot");
+    }
+
+    /**
+     * @param xml Content of a config file.
+     * @return CRC-32 of the content.
+     */
+    static long hash(byte[] xml) {
+        CRC32 crc = new CRC32();
+        crc.update(xml, 0, xml.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Fill a config just cleared by FontConfig.load() from its snapshot.
+     *
+     * @param config Config with sourceLength and sourceModified of its file.
+     * @param snapshot Snapshot file.
+     * @param hash hash() of the config file.
+     * @return False if the snapshot is missing or of another file or version.
+     * The config is not changed in this case.
+     * @throws IOException If the snapshot cannot be read.
+     */
+    static boolean read(FontConfig config, File snapshot, long hash) throws IOException {
+        if (!snapshot.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !in.readUTF().equals(config.file.getAbsolutePath())
+                    || in.readLong() != config.sourceLength
+                    || in.readLong() != config.sourceModified
+                    || in.readLong() != hash) {
+                return false;
+            }
+
+            String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = SymbolTable.FAMILIES.intern(in.readUTF());
+            }
+
+            List<FontMatch> matches = new ArrayList<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                FontMatch match = new FontMatch();
+                match.familyTest = name(names, in.readInt());
+                match.langTest = name(names, in.readInt());
+                match.familyEdit = new String[in.readInt()];
+                for (int j = 0; j < match.familyEdit.length; j++) {
+                    match.familyEdit[j] = names[in.readInt()];
+                }
+                match.markSaved(in.readInt());
+                matches.add(match);
+            }
+
+            List<FontAlias> aliases = new ArrayList<>();
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                FontAlias alias = new FontAlias();
+                alias.family = names[in.readInt()];
+                alias.prefer = names[in.readInt()];
+                alias.markSaved(in.readInt());
+                aliases.add(alias);
+            }
+
+            int[] optionSource = new int[FontConfig.OPTIONS.length];
+            String[] options = new String[FontConfig.OPTIONS.length];
+            for (int i = 0; i < optionSource.length; i++) {
+                optionSource[i] = in.readInt();
+                if (optionSource[i] >= 0) {
+                    options[i] = in.readUTF();
+                }
+            }
+
+            List<File> dirs = new ArrayList<>();
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                dirs.add(new File(in.readUTF()));
+            }
+
+            long[] parsed = new long[in.readInt()];
+            for (int i = 0; i < parsed.length; i++) {
+                parsed[i] = in.readLong();
+            }
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Snapshot is cut off");
+            }
+
+            config.matchList.addAll(matches);
+            config.aliasList.addAll(aliases);
+            for (int i = 0; i < optionSource.length; i++) {
+                config.optionSource[i] = optionSource[i];
+                if (optionSource[i] >= 0) {
+                    config.setOption(i, options[i]);
+                }
+            }
+            config.dirList.addAll(dirs);
+            config.sourceParsed.or(BitSet.valueOf(parsed));
+            return true;
+        }
+    }
+
+    private static String name(String[] names, int index) {
+        return index < 0 ? null : names[index];
+    }
+
+    /**
+     * Write the saved part of a config, the rules with a position in the
+     * file in the order of the file.
+     *
+     * @param config Config that is in sync with its file.
+     * @param snapshot Snapshot file, replaced.
+     * @param hash hash() of the config file.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    static void write(FontConfig config, File snapshot, long hash) throws IOException {
+        List<FontMatch> matches = new ArrayList<>();
+        for (FontMatch match : config.matchList) {
+            if (match.source >= 0) {
+                matches.add(match);
+            }
+        }
+        Collections.sort(matches, new Comparator<FontMatch>() {
+            @Override
+            public int compare(FontMatch a, FontMatch b) {
+                return Integer.compare(a.source, b.source);
+            }
+        });
+        List<FontAlias> aliases = new ArrayList<>();
+        for (FontAlias alias : config.aliasList) {
+            if (alias.source >= 0) {
+                aliases.add(alias);
+            }
+        }
+        Collections.sort(aliases, new Comparator<FontAlias>() {
+            @Override
+            public int compare(FontAlias a, FontAlias b) {
+                return Integer.compare(a.source, b.source);
+            }
+        });
+
+        Map<String, Integer> table = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        for (FontMatch match : matches) {
+            add(table, names, match.familyTest);
+            add(table, names, match.langTest);
+            for (String family : match.familyEdit) {
+                add(table, names, family);
+            }
+        }
+        for (FontAlias alias : aliases) {
+            add(table, names, alias.family);
+            add(table, names, alias.prefer);
+        }
+
+        Files.createDirectories(snapshot.getAbsoluteFile().getParentFile().toPath());
+        File temp = Files.createTempFile(snapshot.getAbsoluteFile().getParentFile().toPath(), "." + snapshot.getName(), ".tmp").toFile();
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(config.file.getAbsolutePath());
+                out.writeLong(config.sourceLength);
+                out.writeLong(config.sourceModified);
+                out.writeLong(hash);
+
+                out.writeInt(names.size());
+                for (String name : names) {
+                    out.writeUTF(name);
+                }
+
+                out.writeInt(matches.size());
+                for (FontMatch match : matches) {
+                    out.writeInt(index(table, match.familyTest));
+                    out.writeInt(index(table, match.langTest));
+                    out.writeInt(match.familyEdit.length);
+                    for (String family : match.familyEdit) {
+                        out.writeInt(table.get(family));
+                    }
+                    out.writeInt(match.source);
+                }
+
+                out.writeInt(aliases.size());
+                for (FontAlias alias : aliases) {
+                    out.writeInt(table.get(alias.family));
+                    out.writeInt(table.get(alias.prefer));
+                    out.writeInt(alias.source);
+                }
+
+                for (int i = 0; i < FontConfig.OPTIONS.length; i++) {
+                    out.writeInt(config.optionSource[i]);
+                    if (config.optionSource[i] >= 0) {
+                        out.writeUTF(config.getOption(i));
+                    }
+                }
+
+                out.writeInt(config.dirList.size());
+                for (File dir : config.dirList) {
+                    out.writeUTF(dir.getPath());
+                }
+
+                long[] parsed = config.sourceParsed.toLongArray();
+                out.writeInt(parsed.length);
+                for (long word : parsed) {
+                    out.writeLong(word);
+                }
+                out.writeInt(MAGIC); // Written completely
+            }
+            Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath()); // Only left if writing failed
+        }
+    }
+
+    private static void add(Map<String, Integer> table, List<String> names, String name) {
+        if (name != null && !table.containsKey(name)) {
+            table.put(name, names.size());
+            names.add(name);
+        }
+    }
+
+    private static int index(Map<String, Integer> table, String name) {
+        return name == null ? -1 : table.get(name);
+    }
+}
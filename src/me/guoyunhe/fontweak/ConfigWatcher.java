@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watch fonts.conf, the system config files and font directories for changes
+ * by others, like another tool or a config management agent.
+ *
+ * Events are collected until nothing happened for DELAY milliseconds, so
+ * saving a file in several writes or installing a package of fonts is one
+ * change. The listener is called on the watcher's timer thread.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class ConfigWatcher implements Closeable {
+
+    // Quiet time before a change is reported
+    static final long DELAY = 500;
+
+    /**
+     * Files changed since the last call.
+     */
+    public static class Change {
+        // The user's fonts.conf
+        public boolean config;
+        // A file of SystemFontConfig, or a file in one of its include dirs
+        public boolean system;
+        // Font directories with changed files
+        public Set<File> fontDirs = new LinkedHashSet<>();
+
+        boolean isEmpty() {
+            return !config && !system && fontDirs.isEmpty();
+        }
+    }
+
+    public interface Listener {
+
+        /**
+         * @param change What changed, never empty.
+         */
+        void changed(Change change);
+    }
+
+    private final Listener listener;
+    private final WatchService service;
+    private final ScheduledExecutorService timer;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private final Set<Path> watched = new HashSet<>();
+
+    // Watched files and directories, read on the watcher thread
+    private volatile Path config;
+    private volatile Set<Path> systemFiles = new HashSet<>();
+    private volatile Set<Path> systemDirs = new HashSet<>();
+    private final Set<Path> fontDirs = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    private Change pending = new Change();
+    private ScheduledFuture<?> flush;
+
+    /**
+     * @param listener Called after files changed.
+     * @throws IOException If the file system cannot be watched.
+     */
+    public ConfigWatcher(Listener listener) throws IOException {
+        this.listener = listener;
+        this.service = FileSystems.getDefault().newWatchService();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "fontweak-watcher-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, "fontweak-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Watch the user's config file.
+     *
+     * @param file fonts.conf, may not exist yet.
+     */
+    public void watchConfig(File file) {
+        Path path = file.getAbsoluteFile().toPath();
+        config = path;
+        register(path.getParent());
+    }
+
+    /**
+     * Watch the files of a system config and the directories they are
+     * included from. Files of an earlier config stay watched but are only
+     * reported if they are still in it.
+     *
+     * @param system Loaded system config.
+     */
+    public void watchSystem(SystemFontConfig system) {
+        Set<Path> files = new HashSet<>();
+        Set<Path> dirs = new HashSet<>();
+        for (File file : system.files) {
+            files.add(file.toPath());
+            dirs.add(file.toPath().getParent());
+        }
+        for (File dir : system.includeDirs) {
+            dirs.add(dir.getAbsoluteFile().toPath());
+        }
+        systemFiles = files;
+        systemDirs = dirs;
+        for (Path dir : dirs) {
+            register(dir);
+        }
+    }
+
+    /**
+     * Watch font directories and their subdirectories. New subdirectories are
+     * watched when they appear.
+     *
+     * @param dirs Font directories.
+     */
+    public void watchFonts(List<File> dirs) {
+        for (File dir : dirs) {
+            registerTree(dir);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        timer.shutdownNow();
+        service.close();
+    }
+
+    private void registerTree(File dir) {
+        fontDirs.add(dir.toPath());
+        register(dir.toPath());
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    registerTree(child);
+                }
+            }
+        }
+    }
+
+    private void register(Path dir) {
+        synchronized (watched) {
+            if (dir == null || !dir.toFile().isDirectory() || !watched.add(dir)) {
+                return;
+            }
+        }
+        try {
+            WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            keys.put(key, dir);
+        } catch (IOException ex) {
+            Logger.getLogger(ConfigWatcher.class.getName()).log(Level.WARNING, dir.toString(), ex);
+        }
+    }
+
+    private void poll() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            Path dir = keys.get(key);
+            Change change = new Change();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events lost, assume everything in the directory changed
+                    classify(dir, null, change);
+                } else if (dir != null) {
+                    Path child = dir.resolve((Path) event.context());
+                    classify(dir, child, change);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && fontDirs.contains(dir)
+                            && child.toFile().isDirectory()) {
+                        registerTree(child.toFile());
+                        change.fontDirs.add(child.toFile());
+                    }
+                }
+            }
+            if (!key.reset()) {
+                keys.remove(key);
+                synchronized (watched) {
+                    watched.remove(dir);
+                }
+            }
+            if (!change.isEmpty()) {
+                post(change);
+            }
+        }
+    }
+
+    /**
+     * @param child Changed file, null if unknown.
+     */
+    private void classify(Path dir, Path child, Change change) {
+        if (dir == null) {
+            return;
+        }
+        if (config != null && (child == null ? dir.equals(config.getParent()) : child.equals(config))) {
+            change.config = true;
+        }
+        if (systemDirs.contains(dir) && (child == null || systemFiles.contains(child)
+                || child.getFileName().toString().endsWith(".conf"))) {
+            change.system = true;
+        }
+        if (fontDirs.contains(dir)) {
+            change.fontDirs.add(dir.toFile());
+        }
+    }
+
+    /**
+     * Add to the pending change and report it after DELAY without events.
+     */
+    private synchronized void post(Change change) {
+        pending.config |= change.config;
+        pending.system |= change.system;
+        pending.fontDirs.addAll(change.fontDirs);
+        if (flush != null) {
+            flush.cancel(false);
+        }
+        try {
+            flush = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Change done;
+                    synchronized (ConfigWatcher.this) {
+                        done = pending;
+                        pending = new Change();
+                        flush = null;
+                    }
+                    listener.changed(done);
+                }
+            }, DELAY, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // Closed
+        }
+    }
+}
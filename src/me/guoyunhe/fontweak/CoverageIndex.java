@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Characters of every installed font face as a CodepointSet, to find fonts
+ * covering a language by set intersections instead of asking each font about
+ * each character.
+ *
+ * Sets are cached in "~/.cache/fontweak/coverage", keyed by file, size and
+ * modification time like FontIndex, so only new and changed fonts are read.
+ * Coverage of a language is counted in parallel for all faces the first time
+ * it is asked for and kept.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class CoverageIndex {
+
+    private static final int MAGIC = 0x46574356; // "FWCV"
+    private static final int VERSION = 1;
+    // Faces counted by one task
+    private static final int BATCH = 256;
+
+    private final Face[] faces;
+    private final Map<String, int[]> counts = new ConcurrentHashMap<>();
+    private final ForkJoinPool pool;
+
+    private static class Face {
+        String family;
+        String style;
+        File file;
+        int index;
+        long size;
+        long modified;
+        CodepointSet characters;
+    }
+
+    /**
+     * A face and how much of a language it covers.
+     */
+    public static class Match {
+        public String family;
+        public String style;
+        public File file;
+        public int index;
+        // Characters of the language in the face, and in the language
+        public int covered;
+        public int required;
+
+        /**
+         * @return Covered part, 1 if the face has all characters.
+         */
+        public double getCoverage() {
+            return required > 0 ? (double) covered / required : 1;
+        }
+
+        @Override
+        public String toString() {
+            return family + " " + style + String.format(" %.1f%%", getCoverage() * 100);
+        }
+    }
+
+    private CoverageIndex(Face[] faces) {
+        this.faces = faces;
+        // Worker threads are daemons and end when idle
+        this.pool = new ForkJoinPool();
+    }
+
+    /**
+     * Build from scanned faces.
+     *
+     * @param scanned Faces with coverage.
+     * @return Index.
+     */
+    public static CoverageIndex build(List<FontFace> scanned) {
+        Face[] faces = new Face[scanned.size()];
+        for (int i = 0; i < faces.length; i++) {
+            faces[i] = toFace(scanned.get(i));
+        }
+        return new CoverageIndex(faces);
+    }
+
+    private static Face toFace(FontFace scanned) {
+        Face face = new Face();
+        face.family = scanned.family;
+        face.style = scanned.style;
+        face.file = scanned.file;
+        face.index = scanned.index;
+        face.size = scanned.file.length();
+        face.modified = scanned.file.lastModified();
+        face.characters = CodepointSet.fromRanges(scanned.coverage);
+        return face;
+    }
+
+    /**
+     * @return Default cache file, "$XDG_CACHE_HOME/fontweak/coverage".
+     */
+    public static File getDefaultFile() {
+        return new File(SystemFontList.getCacheDir(), "coverage");
+    }
+
+    /**
+     * Bring the cache up to date with a font index. Fonts not in the cache or
+     * changed since are read in parallel.
+     *
+     * @param file Cache file, created if missing or broken.
+     * @param index Installed fonts.
+     * @return Index of all faces in the font index.
+     * @throws IOException If the cache cannot be written.
+     */
+    public static CoverageIndex update(File file, FontIndex index) throws IOException {
+        Map<String, Face> cached = new HashMap<>();
+        if (file.isFile()) {
+            try {
+                for (Face face : read(file)) {
+                    cached.put(key(face.file, face.index, face.size, face.modified), face);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(CoverageIndex.class.getName()).log(Level.INFO, "Rebuilding coverage cache", ex);
+            }
+        }
+
+        List<Face> faces = new ArrayList<>();
+        Set<File> changed = new LinkedHashSet<>();
+        for (int i = 0; i < index.size(); i++) {
+            FontIndex.Entry entry = index.get(i);
+            Face face = cached.get(key(entry.file, entry.index, entry.size, entry.modified));
+            if (face != null) {
+                faces.add(face);
+            } else {
+                changed.add(entry.file);
+            }
+        }
+
+        if (!changed.isEmpty() || faces.size() != cached.size()) {
+            if (!changed.isEmpty()) {
+                FontScanner scanner = new FontScanner();
+                try {
+                    for (FontFace scanned : scanner.scanFiles(new ArrayList<>(changed))) {
+                        faces.add(toFace(scanned));
+                    }
+                } finally {
+                    scanner.shutdown();
+                }
+            }
+            write(file, faces);
+            Logger.getLogger(CoverageIndex.class.getName()).log(Level.INFO,
+                    "Coverage cache updated: {0} faces, {1} files read", new Object[]{faces.size(), changed.size()});
+        }
+        return new CoverageIndex(faces.toArray(new Face[faces.size()]));
+    }
+
+    private static String key(File file, int index, long size, long modified) {
+        return file.getPath() + '\n' + index + '\n' + size + '\n' + modified;
+    }
+
+    /**
+     * @return Number of faces.
+     */
+    public int size() {
+        return faces.length;
+    }
+
+    /**
+     * Find faces covering a language, best first: most of the language, then
+     * most characters in total.
+     *
+     * @param lang fontconfig language like "zh-tw".
+     * @param complete Only faces having all characters of the language.
+     * @return Faces, empty if the language is unknown.
+     */
+    public List<Match> find(String lang, boolean complete) {
+        CodepointSet orthography = Orthography.get(lang);
+        if (orthography == null) {
+            return new ArrayList<>();
+        }
+        int[] covered = count(lang, orthography);
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < faces.length; i++) {
+            if (covered[i] > 0 && (!complete || covered[i] == orthography.cardinality())) {
+                order.add(i);
+            }
+        }
+        sort(order, covered);
+
+        List<Match> matches = new ArrayList<>(order.size());
+        for (int i : order) {
+            Match match = new Match();
+            match.family = faces[i].family;
+            match.style = faces[i].style;
+            match.file = faces[i].file;
+            match.index = faces[i].index;
+            match.covered = covered[i];
+            match.required = orthography.cardinality();
+            matches.add(match);
+        }
+        return matches;
+    }
+
+    /**
+     * @param lang fontconfig language.
+     * @return Families with a face having all characters of the language,
+     * best first.
+     */
+    public String[] findFamilies(String lang) {
+        Set<String> families = new LinkedHashSet<>();
+        for (Match match : find(lang, true)) {
+            families.add(match.family);
+        }
+        return families.toArray(new String[families.size()]);
+    }
+
+    private void sort(List<Integer> order, final int[] covered) {
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int result = Integer.compare(covered[b], covered[a]);
+                if (result == 0) {
+                    result = Integer.compare(faces[b].characters.cardinality(), faces[a].characters.cardinality());
+                }
+                if (result == 0) {
+                    result = faces[a].family.compareToIgnoreCase(faces[b].family);
+                }
+                return result;
+            }
+        });
+    }
+
+    private int[] count(String lang, final CodepointSet orthography) {
+        String key = FontResolver.langKey(lang);
+        int[] covered = counts.get(key);
+        if (covered == null) {
+            covered = new int[faces.length];
+            pool.invoke(new CountTask(orthography, covered, 0, faces.length));
+            counts.put(key, covered);
+        }
+        return covered;
+    }
+
+    private class CountTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CodepointSet orthography;
+        private final int[] covered;
+        private final int from;
+        private final int to;
+
+        CountTask(CodepointSet orthography, int[] covered, int from, int to) {
+            this.orthography = orthography;
+            this.covered = covered;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH) {
+                for (int i = from; i < to; i++) {
+                    covered[i] = faces[i].characters.andCardinality(orthography);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new CountTask(orthography, covered, from, middle),
+                    new CountTask(orthography, covered, middle, to));
+        }
+    }
+
+    private static List<Face> read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a coverage cache of this version");
+            }
+            int count = in.readInt();
+            List<Face> faces = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                Face face = new Face();
+                face.file = new File(in.readUTF());
+                face.index = in.readInt();
+                face.size = in.readLong();
+                face.modified = in.readLong();
+                face.family = in.readUTF();
+                face.style = in.readUTF();
+                face.characters = CodepointSet.read(in);
+                faces.add(face);
+            }
+            return faces;
+        }
+    }
+
+    private static void write(File file, List<Face> faces) throws IOException {
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        File temp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), "." + file.getName(), ".tmp").toFile();
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(faces.size());
+                for (Face face : faces) {
+                    out.writeUTF(face.file.getPath());
+                    out.writeInt(face.index);
+                    out.writeLong(face.size);
+                    out.writeLong(face.modified);
+                    out.writeUTF(face.family);
+                    out.writeUTF(face.style);
+                    face.characters.write(out);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath()); // Only left if writing failed
+        }
+    }
+}
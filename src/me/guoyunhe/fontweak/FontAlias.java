@@ -16,6 +16,8 @@
  */
 package me.guoyunhe.fontweak;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -24,10 +26,20 @@ import org.w3c.dom.Node;
  *
  * @author Guo Yunhe <guoyunhebrave@gmail.com>
  */
-public class FontAlias {
+public class FontAlias implements IndexedList.Keyed {
     public String family;
     public String prefer;
 
+    // Position in the config file and values saved there as ids of
+    // SymbolTable.FAMILIES, -1 if not saved yet
+    int source = -1;
+    private int savedFamily = SymbolTable.NONE;
+    private int savedPrefer = SymbolTable.NONE;
+
+    // key() of the family it was computed for
+    private String keyFamily;
+    private long key;
+
     /**
      * Initialize with null content.
      */
@@ -42,8 +54,8 @@ public class FontAlias {
      * @param prefer Result font family.
      */
     public FontAlias(String family, String prefer) {
-        this.family = family;
-        this.prefer = prefer;
+        this.family = SymbolTable.FAMILIES.intern(family);
+        this.prefer = SymbolTable.FAMILIES.intern(prefer);
     }
 
     /**
@@ -54,9 +66,13 @@ public class FontAlias {
         this.family = null;
         this.prefer = null;
 
-        this.family = element.getElementsByTagName("family").item(0).getTextContent();
         Element preferElement = (Element) element.getElementsByTagName("prefer").item(0);
-        this.prefer = preferElement.getElementsByTagName("family").item(0).getTextContent();
+        if (preferElement == null || preferElement.getElementsByTagName("family").getLength() == 0) {
+            return; // accept or default alias, keep it as it is
+        }
+
+        this.family = SymbolTable.FAMILIES.intern(element.getElementsByTagName("family").item(0).getTextContent());
+        this.prefer = SymbolTable.FAMILIES.intern(preferElement.getElementsByTagName("family").item(0).getTextContent());
 
         element.getParentNode().removeChild(element);
     }
@@ -91,6 +107,101 @@ public class FontAlias {
         preferElement.appendChild(preferFamilyElement);
     }
 
+    /**
+     * Write XML to stream. Same structure as createDOM().
+     *
+     * @param writer Stream to write.
+     * @param indent Indent of one level.
+     * @param level Indent level of the alias element.
+     * @throws XMLStreamException If writing failed.
+     */
+    public void writeXML(XMLStreamWriter writer, String indent, int level) throws XMLStreamException {
+        if (isEmpty()) {
+            return;
+        }
+
+        // fontconfig --> alias
+        writer.writeStartElement("alias");
+
+        // fontconfig --> alias --> family
+        FontConfigWriter.newLine(writer, indent, level + 1);
+        writer.writeStartElement("family");
+        writer.writeCharacters(this.family);
+        writer.writeEndElement();
+
+        // fontconfig --> alias --> prefer --> family
+        FontConfigWriter.newLine(writer, indent, level + 1);
+        writer.writeStartElement("prefer");
+        FontConfigWriter.newLine(writer, indent, level + 2);
+        writer.writeStartElement("family");
+        writer.writeCharacters(this.prefer);
+        writer.writeEndElement();
+        FontConfigWriter.newLine(writer, indent, level + 1);
+        writer.writeEndElement();
+
+        FontConfigWriter.newLine(writer, indent, level);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Remember current values as saved in config file.
+     *
+     * @param source Position of the alias element in config file.
+     */
+    void markSaved(int source) {
+        this.source = source;
+        this.savedFamily = SymbolTable.FAMILIES.id(family);
+        this.savedPrefer = SymbolTable.FAMILIES.id(prefer);
+    }
+
+    /**
+     * Check if the alias changed since it was read or written.
+     *
+     * @return True if it is different from the config file.
+     */
+    boolean isModified() {
+        return source < 0 || SymbolTable.FAMILIES.id(family) != savedFamily
+                || SymbolTable.FAMILIES.id(prefer) != savedPrefer;
+    }
+
+    /**
+     * Check if the alias was saved with the values of another one.
+     *
+     * @param other Alias read from the config file.
+     * @return True if the saved values are the current ones of other.
+     */
+    boolean isSavedAs(FontAlias other) {
+        return source >= 0 && savedFamily == SymbolTable.FAMILIES.id(other.family)
+                && savedPrefer == SymbolTable.FAMILIES.id(other.prefer);
+    }
+
+    /**
+     * Aliases with equal keys are for the same family, ignoring case and
+     * blanks.
+     *
+     * @param family Condition font family.
+     * @return Key for IndexedList.
+     */
+    public static long key(String family) {
+        return SymbolTable.FAMILIES.key(SymbolTable.FAMILIES.id(family));
+    }
+
+    @Override
+    public long key() {
+        if (keyFamily != family || keyFamily == null) {
+            key = key(family);
+            keyFamily = family;
+        }
+        return key;
+    }
+
+    /**
+     * @return Key of the saved values, see key().
+     */
+    long savedKey() {
+        return SymbolTable.FAMILIES.key(savedFamily);
+    }
+
     /**
      * Check if the match contains necessary data.
      *
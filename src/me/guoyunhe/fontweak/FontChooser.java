@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import javax.swing.AbstractAction;
+import javax.swing.AbstractListModel;
+import javax.swing.ComboBoxModel;
+import javax.swing.JComboBox;
+import javax.swing.JComponent;
+import javax.swing.JList;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.KeyStroke;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.AncestorEvent;
+import javax.swing.event.AncestorListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.plaf.basic.ComboPopup;
+import javax.swing.text.JTextComponent;
+
+/**
+ * Choose a font family by typing a part of its name. The list is filtered on
+ * every key with a FontNameIndex.
+ *
+ * Rows are read from the index when they are painted, the list never holds
+ * all names. Lists have a fixed row size, so Swing does not measure every
+ * row either.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class FontChooser extends JPanel {
+
+    private static final long serialVersionUID = 1L;
+
+    // Sets row size of lists, so rows are not measured
+    private static final String PROTOTYPE = "DejaVu Sans Mono Bold Oblique";
+
+    private final Model model;
+    private final JTextField field;
+    private final JList<String> list;
+
+    /**
+     * Font families matching a filter, as list and combo box model.
+     */
+    public static class Model extends AbstractListModel<String> implements ComboBoxModel<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private FontNameIndex index;
+        private String filter = "";
+        private int[] rows; // Ids in index, null for all
+        private Object selected;
+
+        /**
+         * @param names Font families, in the order they are listed.
+         */
+        public Model(String[] names) {
+            index = new FontNameIndex(names);
+        }
+
+        /**
+         * Replace the font families, keeping filter and selection.
+         *
+         * @param names Font families.
+         */
+        public void setNames(String[] names) {
+            int oldSize = getSize();
+            index = new FontNameIndex(names);
+            rows = index.search(filter);
+            changed(oldSize);
+        }
+
+        /**
+         * Show only families matching a text.
+         *
+         * @param text Typed text, empty for all families.
+         */
+        public void setFilter(String text) {
+            if (text.equals(filter)) {
+                return;
+            }
+            int oldSize = getSize();
+            if (!filter.isEmpty() && text.startsWith(filter)) {
+                rows = index.refine(rows, text);
+            } else {
+                rows = index.search(text);
+            }
+            filter = text;
+            changed(oldSize);
+        }
+
+        private void changed(int oldSize) {
+            int size = getSize();
+            if (size < oldSize) {
+                fireIntervalRemoved(this, size, oldSize - 1);
+            } else if (size > oldSize) {
+                fireIntervalAdded(this, oldSize, size - 1);
+            }
+            if (Math.min(size, oldSize) > 0) {
+                fireContentsChanged(this, 0, Math.min(size, oldSize) - 1);
+            }
+        }
+
+        @Override
+        public int getSize() {
+            return rows != null ? rows.length : index.size();
+        }
+
+        @Override
+        public String getElementAt(int row) {
+            return index.get(rows != null ? rows[row] : row);
+        }
+
+        @Override
+        public void setSelectedItem(Object item) {
+            if (item == null ? selected != null : !item.equals(selected)) {
+                selected = item;
+                fireContentsChanged(this, -1, -1);
+            }
+        }
+
+        @Override
+        public Object getSelectedItem() {
+            return selected;
+        }
+    }
+
+    /**
+     * @param names Font families, in the order they are listed.
+     */
+    public FontChooser(String[] names) {
+        super(new BorderLayout(0, 6));
+        model = new Model(names);
+        field = new JTextField();
+        list = new JList<>(model);
+        list.setPrototypeCellValue(PROTOTYPE);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setVisibleRowCount(16);
+        if (model.getSize() > 0) {
+            list.setSelectedIndex(0);
+        }
+
+        field.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                filter();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                filter();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+
+        // Arrow keys move in the list while typing
+        moveOnKey(KeyEvent.VK_UP, "previous", -1);
+        moveOnKey(KeyEvent.VK_DOWN, "next", 1);
+        moveOnKey(KeyEvent.VK_PAGE_UP, "previousPage", -list.getVisibleRowCount());
+        moveOnKey(KeyEvent.VK_PAGE_DOWN, "nextPage", list.getVisibleRowCount());
+
+        // Enter and double click choose in a dialog
+        field.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                choose();
+            }
+        });
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    choose();
+                }
+            }
+        });
+
+        add(field, BorderLayout.NORTH);
+        add(new JScrollPane(list), BorderLayout.CENTER);
+    }
+
+    private void filter() {
+        model.setFilter(field.getText());
+        if (model.getSize() > 0) {
+            list.setSelectedIndex(0);
+            list.ensureIndexIsVisible(0);
+        }
+    }
+
+    private void moveOnKey(int key, String name, final int step) {
+        field.getInputMap(JComponent.WHEN_FOCUSED).put(KeyStroke.getKeyStroke(key, 0), name);
+        field.getActionMap().put(name, new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (model.getSize() == 0) {
+                    return;
+                }
+                int row = Math.max(0, Math.min(model.getSize() - 1, list.getSelectedIndex() + step));
+                list.setSelectedIndex(row);
+                list.ensureIndexIsVisible(row);
+            }
+        });
+    }
+
+    private void choose() {
+        JOptionPane pane = (JOptionPane) SwingUtilities.getAncestorOfClass(JOptionPane.class, this);
+        if (pane != null && getSelectedFamily() != null) {
+            pane.setValue(JOptionPane.OK_OPTION);
+        }
+    }
+
+    /**
+     * @return Selected family, null if none.
+     */
+    public String getSelectedFamily() {
+        return list.getSelectedValue();
+    }
+
+    /**
+     * Ask for a font family in a dialog.
+     *
+     * @param parent Parent of the dialog.
+     * @param title Dialog title.
+     * @param names Font families, in the order they are listed.
+     * @return Chosen family, null if canceled.
+     */
+    public static String showDialog(Component parent, String title, String[] names) {
+        final FontChooser chooser = new FontChooser(names);
+        chooser.setPreferredSize(new Dimension(360, 420));
+        // Type at once
+        chooser.field.addAncestorListener(new AncestorListener() {
+            @Override
+            public void ancestorAdded(AncestorEvent event) {
+                chooser.field.requestFocusInWindow();
+            }
+
+            @Override
+            public void ancestorRemoved(AncestorEvent event) {
+            }
+
+            @Override
+            public void ancestorMoved(AncestorEvent event) {
+            }
+        });
+        int option = JOptionPane.showConfirmDialog(parent, chooser, title,
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        return option == JOptionPane.OK_OPTION ? chooser.getSelectedFamily() : null;
+    }
+
+    /**
+     * Make a combo box a chooser: typing in it filters its rows. Other text
+     * than a family can still be entered.
+     *
+     * @param box Combo box.
+     * @param model Families of the box.
+     */
+    public static void install(final JComboBox<String> box, final Model model) {
+        box.setModel(model);
+        box.setEditable(true);
+        box.setPrototypeDisplayValue(PROTOTYPE);
+        Object popup = box.getUI().getAccessibleChild(box, 0);
+        if (popup instanceof ComboPopup) {
+            ((ComboPopup) popup).getList().setPrototypeCellValue(PROTOTYPE);
+        }
+
+        final JTextComponent editor = (JTextComponent) box.getEditor().getEditorComponent();
+        editor.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                filter();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                filter();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+
+            // Later, the box changes the text itself while notifying
+            private void filter() {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        String text = editor.getText();
+                        if (text.equals(model.getSelectedItem()) || !editor.hasFocus()) {
+                            return; // Chosen from the list, not typed
+                        }
+                        model.setFilter(text);
+                        if (box.isShowing()) {
+                            // Popup size follows the rows only when shown
+                            box.hidePopup();
+                            box.showPopup();
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
@@ -16,34 +16,36 @@
  */
 package me.guoyunhe.fontweak;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.EntityResolver;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /**
  * Read and write FontConfig XML document.
@@ -55,15 +57,37 @@ import org.xml.sax.SAXException;
 public class FontConfig {
     // XML
     private DocumentBuilder builder;
-    private File file;
+    XMLInputFactory inputFactory;
+    File file;
     private Document doc;
     private Element root;
 
-    public List<FontMatch> matchList;
+    // Where the model was read from, see FontConfigWriter
+    long sourceLength = -1;
+    long sourceModified = -1;
+    BitSet sourceParsed = new BitSet();
+    int[] optionSource = new int[OPTIONS.length];
+    String[] optionSaved = new String[OPTIONS.length];
+    // Binary copy of the parsed file, null to always parse
+    File snapshotFile;
+
+    // Successful load() and store() calls, for FontConfigService
+    volatile int reads;
+    volatile int writes;
+    volatile long lastReadNanos = -1;
+    volatile long lastWriteNanos = -1;
+    volatile long lastModifiedSeen = -1;
+    // load() calls that tried the snapshot, and found it valid
+    volatile int snapshotReads;
+    volatile int snapshotHits;
+
+    public IndexedList<FontMatch> matchList;
     public FontMatch sansMatch;
     public FontMatch serifMatch;
     public FontMatch monoMatch;
-    public List<FontAlias> aliasList;
+    public IndexedList<FontAlias> aliasList;
+    // Extra font directories of <dir> elements
+    public List<File> dirList;
 
     // fontconfig options
     public boolean antialias = true;
@@ -73,6 +97,14 @@ public class FontConfig {
     public String lcdfilter = "lcddefault";
     public boolean embeddedbitmap = true;
 
+    private int ruleEdits;
+
+    /**
+     * Option names in the order they are written, see getOption().
+     */
+    static final String[] OPTIONS = {"antialias", "hinting", "hintstyle", "rgba", "lcdfilter", "embeddedbitmap"};
+    static final String[] OPTION_TYPES = {"bool", "bool", "const", "const", "const", "bool"};
+
     public static final String[] HINTSTYLE_OPTIONS = {"hintnone", "hintslight", "hintmedium", "hintfull"};
     public static final String[] RGBA_OPTIONS = {"none", "rgb", "bgr", "vrgb", "vbgr"};
     public static final String[] LCDFILTER_OPTIONS = {"lcdnone", "lcddefault", "lcdlight", "lcdlegacy"};
@@ -80,27 +112,24 @@ public class FontConfig {
         "aa", "ab", "af", "ak", "am", "an", "ar", "as", "ast", "av", "ay", "az-az", "az-ir", "ba", "be", "ber-dz", "ber-ma", "bg", "bho", "bh", "bin", "bi", "bm", "bn", "bo", "br", "brx", "bs", "bua", "byn", "ca", "ce", "chm", "ch", "chr", "co", "crh", "csb", "cs", "cu", "cv", "cy", "da", "de", "doi", "dv", "dz", "ee", "el", "en", "eo", "es", "et", "eu", "fa", "fat", "ff", "fil", "fi", "fj", "fo", "fr", "fur", "fy", "ga", "gd", "gez", "gl", "gn", "gu", "gv", "ha", "haw", "he", "hi", "hne", "ho", "hr", "hsb", "ht", "hu", "hy", "hz", "ia", "id", "ie", "ig", "ii", "ik", "io", "is", "it", "iu", "ja", "jv", "kaa", "kab", "ka", "ki", "kj", "kk", "kl", "km", "kn", "kok", "ko", "kr", "ks", "ku-am", "ku-iq", "ku-ir", "kum", "ku-tr", "kv", "kwm", "kw", "ky", "lah", "la", "lb", "lez", "lg", "li", "ln", "lo", "lt", "lv", "mai", "mg", "mh", "mi", "mk", "ml", "mn-cn", "mni", "mn-mn", "mo", "mr", "ms", "mt", "my", "na", "nb", "nds", "ne", "ng", "nl", "nn", "no", "nqo", "nr", "nso", "nv", "ny", "oc", "om", "or", "os", "ota", "pa", "pap-an", "pap-aw", "pa-pk", "pl", "ps-af", "ps-pk", "pt", "qu", "quz", "rm", "rn", "ro", "ru", "rw", "sah", "sa", "sat", "sco", "sc", "sd", "sel", "se", "sg", "sh", "shs", "sid", "si", "sk", "sl", "sma", "smj", "smn", "sm", "sms", "sn", "so", "sq", "sr", "ss", "st", "su", "sv", "sw", "syr", "ta", "te", "tg", "th", "ti-er", "ti-et", "tig", "tk", "tl", "tn", "to", "tr", "ts", "tt", "tw", "ty", "tyv", "ug", "uk", "ur", "uz", "ve", "vi", "vo", "vot", "wal", "wa", "wen", "wo", "xh", "yap", "yi", "yo", "za", "zh-cn", "zh-hk", "zh-mo", "zh-sg", "zh-tw", "zu"
     };
 
+    /**
+     * Open the config file of current user.
+     */
     public FontConfig() {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        try {
-            builder = factory.newDocumentBuilder();
-            // Empty DTD reference, since it is missing in most system
-            builder.setEntityResolver(new EntityResolver() {
-                @Override
-                public InputSource resolveEntity(String publicId, String systemId) {
-                    if (systemId.contains("fonts.dtd")) {
-                        return new InputSource(new StringReader(""));
-                    } else {
-                        return null;
-                    }
-                }
-            });
-        } catch (ParserConfigurationException ex) {
-            Logger.getLogger(FontConfig.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        this(System.getProperty("user.home"));
+    }
 
-        String userHome = System.getProperty("user.home");
-        file = new File(userHome + "/.config/fontconfig/fonts.conf");
+    /**
+     * Open the config file in a home directory. Legacy config file is
+     * migrated and default config file is created if needed.
+     *
+     * @param userHome Home directory.
+     */
+    public FontConfig(String userHome) {
+        this(new File(userHome + "/.config/fontconfig/fonts.conf"));
+        snapshotFile = ConfigSnapshot.getDefaultFile();
+
+        Metrics.Span span = Metrics.start("config.migrate");
         File legacyConfigFile = new File(userHome + "/.fonts.conf"); // Old path
         if (file.exists() && legacyConfigFile.exists()) {
             legacyConfigFile.delete(); // Delete legacy
@@ -111,44 +140,125 @@ public class FontConfig {
             InputStream in = getClass().getResourceAsStream("/me/guoyunhe/fontweak/config/default.conf");
             try {
                 file.getParentFile().mkdirs(); // Make all parents folders if not exists
-                Files.copy(in, file.toPath()); // Copty default config file
+                span.bytesWritten(Files.copy(in, file.toPath())); // Copty default config file
             } catch (IOException ex) {
                 Logger.getLogger(FontConfig.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+        span.end();
+    }
+
+    /**
+     * Open a config file as it is. Nothing is migrated or created.
+     *
+     * @param file Path of fonts.conf.
+     */
+    public FontConfig(File file) {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        try {
+            builder = factory.newDocumentBuilder();
+        } catch (ParserConfigurationException ex) {
+            Logger.getLogger(FontConfig.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        // Empty DTD reference, since it is missing in most system
+        inputFactory.setXMLResolver(new XMLResolver() {
+            @Override
+            public Object resolveEntity(String publicId, String systemId, String baseURI, String namespace) {
+                if (systemId != null && systemId.contains("fonts.dtd")) {
+                    return new ByteArrayInputStream(new byte[0]);
+                } else {
+                    return null;
+                }
+            }
+        });
+
+        this.file = file;
+        matchList = new IndexedList<FontMatch>();
+        aliasList = new IndexedList<FontAlias>();
+        dirList = new ArrayList<File>();
+        Arrays.fill(optionSource, -1);
+    }
 
-        matchList = new ArrayList<FontMatch>();
-        aliasList = new ArrayList<FontAlias>();
+    /**
+     * Tell that a rule in matchList or aliasList was changed in place.
+     * Adding and removing rules is noticed without it.
+     */
+    public void rulesChanged() {
+        ruleEdits++;
     }
 
+    /**
+     * @return Number that is different after every change of matchList,
+     * aliasList or their rules.
+     */
+    public int getRuleVersion() {
+        return matchList.getVersion() + aliasList.getVersion() + ruleEdits;
+    }
 
     /**
-     * Read fontconfig configuration file (XML).
+     * @return Path of the config file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Read fontconfig configuration file (XML). An invalid file is kept as
+     * "fonts.conf.corrupt" and replaced by the default config.
      */
     public void readConfig() {
-        // Parse DOM
         try {
-            doc = builder.parse(file);
-        } catch (SAXException ex) {
+            load();
+        } catch (XMLStreamException ex) {
             Logger.getLogger(FontConfig.class.getName()).log(Level.SEVERE, null, ex);
             // Copy default config file if the XML file is invalid
             InputStream in = getClass().getResourceAsStream("/me/guoyunhe/fontweak/config/default.conf");
             try {
-                file.delete();
+                File corrupt = new File(file.getPath() + ".corrupt");
+                Files.move(file.toPath(), corrupt.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Logger.getLogger(FontConfig.class.getName()).log(Level.WARNING, "Invalid config moved to {0}", corrupt);
                 Files.copy(in, file.toPath()); // Copty default config file
-                doc = builder.parse(file);
-            } catch (IOException | SAXException ex1) {
+                load();
+            } catch (IOException | XMLStreamException ex1) {
                 Logger.getLogger(FontConfig.class.getName()).log(Level.SEVERE, null, ex1);
             }
         } catch (IOException ex) {
             Logger.getLogger(FontConfig.class.getName()).log(Level.SEVERE, null, ex);
         }
+    }
 
-        // Read elements
-        root = (Element) doc.getElementsByTagName("fontconfig").item(0);
-        NodeList matchElements = root.getElementsByTagName("match");
-        NodeList aliasElements = root.getElementsByTagName("alias");
+    /**
+     * Read the configuration file in a single streaming pass. Unlike
+     * readConfig(), errors are thrown and the file is never replaced.
+     *
+     * Only one top-level element is held in memory at a time. Matches, aliases
+     * and options go into the model and remember their position in the file,
+     * everything else (dir, include, comments, rules we don't understand) is
+     * left in the file and copied by FontConfigWriter.
+     *
+     * The config of a home directory is taken from its ConfigSnapshot instead
+     * when the file did not change since it was parsed or saved.
+     *
+     * @throws IOException If the file cannot be read.
+     * @throws XMLStreamException If the file is not a valid fontconfig XML.
+     */
+    public void load() throws IOException, XMLStreamException {
+        Metrics.Span span = Metrics.start("config.read");
+        try {
+            loadFile();
+            span.bytesRead(sourceLength).matches(matchList.size()).aliases(aliasList.size());
+            lastReadNanos = span.end();
+            lastModifiedSeen = sourceModified;
+            reads++;
+        } finally {
+            span.end();
+        }
+    }
 
+    private void loadFile() throws IOException, XMLStreamException {
         sansMatch = null;
         serifMatch = null;
         monoMatch = null;
@@ -160,37 +270,36 @@ public class FontConfig {
         embeddedbitmap = true;
         matchList.clear();
         aliasList.clear();
-
-        /* When parsing DOM, nodes in matchElements list will be removed one by
-         * one. So here we use while loop other than for loop.
-        */
-        while (matchElements.getLength() > 0) {
-            Element element;
-
-            element = (Element) matchElements.item(0);
-
-            if (element.hasAttribute("target") && element.getAttribute("target").equals("font")) {
-                parseOptionDOM(element);
-            } else {
-                FontMatch match;
-
-                match = new FontMatch();
-                match.parseDOM(element);
-                if (!match.isEmpty()) {
-                    matchList.add(match);
-                    if (match.langTest == null) {
-                        if (match.familyTest.equalsIgnoreCase("sans-serif")) {
-                            sansMatch = match;
-                        } else if (match.familyTest.equalsIgnoreCase("serif")) {
-                            serifMatch = match;
-                        } else if (match.familyTest.equalsIgnoreCase("monospace")) {
-                            monoMatch = match;
-                        }
-                    }
-                }
+        dirList.clear();
+        sourceParsed.clear();
+        Arrays.fill(optionSource, -1);
+        Arrays.fill(optionSaved, null);
+        sourceLength = file.length();
+        sourceModified = file.lastModified();
+
+        byte[] xml = null;
+        long hash = 0;
+        if (snapshotFile != null) {
+            xml = Files.readAllBytes(file.toPath());
+            hash = ConfigSnapshot.hash(xml);
+        }
+        if (xml == null || !readSnapshot(hash)) {
+            try (InputStream in = xml != null ? new ByteArrayInputStream(xml)
+                    : new BufferedInputStream(new FileInputStream(file))) {
+                parse(in);
+            }
+            if (xml != null) {
+                writeSnapshot(hash);
             }
         }
 
+        // Options not in the file are saved as their defaults, so they are
+        // only written once changed
+        for (int i = 0; i < OPTIONS.length; i++) {
+            optionSaved[i] = getOption(i);
+        }
+
+        findGenerics();
         if (this.sansMatch == null) {
             this.sansMatch = new FontMatch("sans-serif", null, null);
             matchList.add(sansMatch);
@@ -205,73 +314,430 @@ public class FontConfig {
             this.monoMatch = new FontMatch("monospace", null, null);
             matchList.add(monoMatch);
         }
+    }
 
-        /* When parsing DOM, nodes in aliasElements list will be removed one by
-         * one. So here we use while loop other than for loop.
-        */
-        while (aliasElements.getLength() > 0) {
-            Element element;
-            FontAlias alias;
+    private void parse(InputStream in) throws XMLStreamException {
+        doc = builder.newDocument();
+        root = doc.createElement("fontconfig");
+        doc.appendChild(root);
+        try {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            try {
+                // Skip prolog, doctype and comments before root
+                while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                }
+                if (!reader.getLocalName().equals("fontconfig")) {
+                    throw new XMLStreamException("Root element is not fontconfig", reader.getLocation());
+                }
+    
+                int ordinal = 0;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        Element element = readElement(reader);
+                        root.appendChild(element);
+                        parseElement(element, ordinal++);
+                        if (element.getParentNode() != null) {
+                            root.removeChild(element); // Unknown, stays in file
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        break; // </fontconfig>
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            doc = null;
+            root = null;
+        }
+    }
 
-            element = (Element) aliasElements.item(0);
-            alias = new FontAlias();
-            alias.parseDOM(element);
-            if (!alias.isEmpty()) {
-                aliasList.add(alias);
+    private boolean readSnapshot(long hash) {
+        snapshotReads++;
+        try {
+            boolean hit = ConfigSnapshot.read(this, snapshotFile, hash);
+            if (hit) {
+                snapshotHits++;
             }
+            return hit;
+        } catch (IOException ex) {
+            Logger.getLogger(FontConfig.class.getName()).log(Level.INFO, "Rebuilding config snapshot", ex);
+            return false;
         }
     }
 
     /**
-     * Write changes to fontconfig configuration file (XML).
+     * Keep the model as it is in the file, for the next load().
+     *
+     * @param hash ConfigSnapshot.hash() of the file.
      */
-    public void writeConfig() {
-        // Clean empty text nodes
-        NodeList childList = root.getChildNodes();
-        for (int i = 0; i < childList.getLength(); i++) {
-            Node n = childList.item(i);
-            if (n.getNodeType() == Node.TEXT_NODE) {
-                n.getParentNode().removeChild(n);
-                i--;
+    void writeSnapshot(long hash) {
+        if (snapshotFile == null) {
+            return;
+        }
+        try {
+            ConfigSnapshot.write(this, snapshotFile, hash);
+        } catch (IOException ex) {
+            Logger.getLogger(FontConfig.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Read the file again after it was changed by others, like another tool
+     * or a config management agent. Rules are matched with the ones read
+     * before by their saved values: unchanged ones keep their objects, rules
+     * changed here and not saved yet keep the changes, rules removed from the
+     * file are removed unless changed here. Options take the file values.
+     *
+     * @return True if rules or options changed. False if the file is what the
+     * model was read from or last written to.
+     * @throws IOException If the file cannot be read.
+     * @throws XMLStreamException If the file is not a valid fontconfig XML.
+     */
+    public boolean reload() throws IOException, XMLStreamException {
+        if (file.length() == sourceLength && file.lastModified() == sourceModified) {
+            return false;
+        }
+        FontConfig fresh = new FontConfig(file);
+        fresh.load();
+
+        // Saved rules by the key of their saved values, unsaved ones can
+        // not be the same as a rule of the file
+        Map<Long, List<FontMatch>> oldMatches = new HashMap<>();
+        for (FontMatch old : matchList) {
+            if (old.source >= 0) {
+                put(oldMatches, old.savedKey(), old);
+            }
+        }
+        Set<FontMatch> kept = Collections.newSetFromMap(new IdentityHashMap<FontMatch, Boolean>());
+        IndexedList<FontMatch> matches = new IndexedList<>();
+        for (FontMatch match : fresh.matchList) {
+            if (match.source < 0) {
+                continue; // Placeholder of load()
+            }
+            FontMatch same = null;
+            List<FontMatch> candidates = oldMatches.get(match.key());
+            if (candidates != null) {
+                for (int i = 0; i < candidates.size(); i++) {
+                    if (candidates.get(i).isSavedAs(match)) {
+                        same = candidates.remove(i); // Paired once
+                        break;
+                    }
+                }
             }
+            if (same == null) {
+                matches.add(match);
+            } else {
+                kept.add(same);
+                same.source = match.source;
+                matches.add(same);
+            }
+        }
+        for (FontMatch old : matchList) {
+            if (!kept.contains(old) && old.isModified()
+                    && !(old.isEmpty() && matches.find(FontMatch.key(old.familyTest, null)) != null)) {
+                old.source = -1; // Saved again as new
+                matches.add(old);
+            }
+        }
+
+        Map<Long, List<FontAlias>> oldAliases = new HashMap<>();
+        for (FontAlias old : aliasList) {
+            if (old.source >= 0) {
+                put(oldAliases, old.savedKey(), old);
+            }
+        }
+        Set<FontAlias> keptAliases = Collections.newSetFromMap(new IdentityHashMap<FontAlias, Boolean>());
+        List<FontAlias> aliases = new ArrayList<>();
+        for (FontAlias alias : fresh.aliasList) {
+            FontAlias same = null;
+            List<FontAlias> candidates = oldAliases.get(alias.key());
+            if (candidates != null) {
+                for (int i = 0; i < candidates.size(); i++) {
+                    if (candidates.get(i).isSavedAs(alias)) {
+                        same = candidates.remove(i); // Paired once
+                        break;
+                    }
+                }
+            }
+            if (same == null) {
+                aliases.add(alias);
+            } else {
+                keptAliases.add(same);
+                same.source = alias.source;
+                aliases.add(same);
+            }
+        }
+        for (FontAlias old : aliasList) {
+            if (!keptAliases.contains(old) && old.isModified()) {
+                old.source = -1;
+                aliases.add(old);
+            }
+        }
+
+        boolean changed = false;
+        if (!matches.equals(new ArrayList<>(matchList))) {
+            matchList.clear();
+            matchList.addAll(matches);
+            changed = true;
+        }
+        if (!aliases.equals(new ArrayList<>(aliasList))) {
+            aliasList.clear();
+            aliasList.addAll(aliases);
+            changed = true;
+        }
+        findGenerics();
+
+        for (int i = 0; i < OPTIONS.length; i++) {
+            if (fresh.optionSource[i] >= 0 && !fresh.getOption(i).equals(getOption(i))) {
+                setOption(i, fresh.getOption(i));
+                changed = true;
+            }
+            optionSaved[i] = fresh.optionSaved[i];
+        }
+        System.arraycopy(fresh.optionSource, 0, optionSource, 0, OPTIONS.length);
+        sourceParsed = fresh.sourceParsed;
+        sourceLength = fresh.sourceLength;
+        sourceModified = fresh.sourceModified;
+        lastReadNanos = fresh.lastReadNanos;
+        lastModifiedSeen = fresh.lastModifiedSeen;
+        reads++;
+        dirList.clear();
+        dirList.addAll(fresh.dirList);
+        return changed;
+    }
+
+    /**
+     * Generic matches are the last ones without language, not looked up by
+     * key, which also takes "en" and other spellings of the family.
+     */
+    private void findGenerics() {
+        sansMatch = null;
+        serifMatch = null;
+        monoMatch = null;
+        for (int i = matchList.size() - 1; i >= 0; i--) {
+            FontMatch match = matchList.get(i);
+            if (match.langTest != null || match.familyTest == null) {
+                continue;
+            }
+            if (sansMatch == null && match.familyTest.equalsIgnoreCase("sans-serif")) {
+                sansMatch = match;
+            } else if (serifMatch == null && match.familyTest.equalsIgnoreCase("serif")) {
+                serifMatch = match;
+            } else if (monoMatch == null && match.familyTest.equalsIgnoreCase("monospace")) {
+                monoMatch = match;
+            }
+        }
+    }
+
+    private static <E> void put(Map<Long, List<E>> map, long key, E element) {
+        List<E> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            map.put(key, list);
         }
+        list.add(element);
+    }
 
-        for (FontMatch match : matchList) {
-            match.createDOM(doc);
+    /**
+     * Read the element under the cursor with all its children. Stops at its
+     * end tag.
+     *
+     * @param reader Stream reader positioned at a start tag.
+     * @return Detached element.
+     */
+    private Element readElement(XMLStreamReader reader) throws XMLStreamException {
+        Element element = doc.createElement(reader.getLocalName());
+        copyAttributes(reader, element);
+
+        Node parent = element;
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    Element child = doc.createElement(reader.getLocalName());
+                    copyAttributes(reader, child);
+                    parent.appendChild(child);
+                    parent = child;
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    parent = parent.getParentNode();
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    parent.appendChild(doc.createTextNode(reader.getText()));
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    parent.appendChild(doc.createComment(reader.getText()));
+                    break;
+                default:
+                    break;
+            }
         }
+        return element;
+    }
 
-        for (FontAlias alias : aliasList) {
-            alias.createDOM(doc);
+    private void copyAttributes(XMLStreamReader reader, Element element) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            element.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+    }
+
+    /**
+     * Move a top-level element into the model. Parsed elements remove
+     * themselves from the document, unknown ones stay.
+     *
+     * @param element Element attached to root.
+     * @param ordinal Position of the element among root children.
+     */
+    private void parseElement(Element element, int ordinal) {
+        switch (element.getNodeName()) {
+            case "match":
+                if (element.getAttribute("target").equals("font")) {
+                    parseOptionDOM(element, ordinal);
+                } else {
+                    FontMatch match;
+
+                    match = new FontMatch();
+                    match.parseDOM(element);
+                    if (!match.isEmpty()) {
+                        match.markSaved(ordinal);
+                        sourceParsed.set(ordinal);
+                        matchList.add(match);
+                    }
+                }
+                break;
+            case "alias":
+                FontAlias alias;
+
+                alias = new FontAlias();
+                alias.parseDOM(element);
+                if (!alias.isEmpty()) {
+                    alias.markSaved(ordinal);
+                    sourceParsed.set(ordinal);
+                    aliasList.add(alias);
+                }
+                break;
+            case "dir":
+                // Stays in the document, only remembered for font scanning
+                File dir = resolveDir(element.getTextContent().trim(), element.getAttribute("prefix"));
+                if (dir != null) {
+                    dirList.add(dir);
+                }
+                break;
+            default:
+                break;
         }
+    }
 
-        createOptionDOM("antialias", Boolean.toString(antialias), "bool");
-        createOptionDOM("hinting", Boolean.toString(hinting), "bool");
-        createOptionDOM("hintstyle", hintstyle, "const");
-        createOptionDOM("rgba", rgba, "const");
-        createOptionDOM("lcdfilter", lcdfilter, "const");
-        createOptionDOM("embeddedbitmap", Boolean.toString(embeddedbitmap), "bool");
+    /**
+     * Resolve path of a dir element like fontconfig does.
+     *
+     * @param path Element text.
+     * @param prefix Value of prefix attribute, empty if not set.
+     * @return Directory, null if path is empty.
+     */
+    private File resolveDir(String path, String prefix) {
+        return SystemFontConfig.resolve(path, prefix, "XDG_DATA_HOME", ".local/share", file);
+    }
 
-        // Write document object to XML file.
+    /**
+     * Write changes to fontconfig configuration file (XML). The save is in
+     * the journal, the file is synced at the next checkpoint.
+     */
+    public void writeConfig() {
         try {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            Result output = new StreamResult(file);
-            Source input = new DOMSource(doc);
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-            transformer.transform(input, output);
-        } catch (TransformerConfigurationException ex) {
-            Logger.getLogger(FontConfig.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (TransformerException ex) {
+            store();
+        } catch (IOException | XMLStreamException ex) {
             Logger.getLogger(FontConfig.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
+    /**
+     * Write changes to the configuration file. Unlike writeConfig(), errors
+     * are thrown. The old file stays untouched if writing failed.
+     *
+     * @throws IOException If the file cannot be written.
+     * @throws XMLStreamException If the XML cannot be written.
+     */
+    public void store() throws IOException, XMLStreamException {
+        Metrics.Span span = Metrics.start("config.write");
+        try {
+            span.bytesRead(file.length());
+            new FontConfigWriter(this).write();
+            span.bytesWritten(file.length()).matches(matchList.size()).aliases(aliasList.size());
+            lastWriteNanos = span.end();
+            lastModifiedSeen = sourceModified;
+            writes++;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Get option value as it is written in XML.
+     *
+     * @param index Index in OPTIONS.
+     * @return Option value.
+     */
+    String getOption(int index) {
+        switch (index) {
+            case 0:
+                return Boolean.toString(antialias);
+            case 1:
+                return Boolean.toString(hinting);
+            case 2:
+                return hintstyle;
+            case 3:
+                return rgba;
+            case 4:
+                return lcdfilter;
+            default:
+                return Boolean.toString(embeddedbitmap);
+        }
+    }
+
+    /**
+     * Set option value as it is written in XML.
+     *
+     * @param index Index in OPTIONS.
+     * @param value Option value.
+     */
+    void setOption(int index, String value) {
+        switch (index) {
+            case 0:
+                antialias = Boolean.parseBoolean(value);
+                break;
+            case 1:
+                hinting = Boolean.parseBoolean(value);
+                break;
+            case 2:
+                hintstyle = value;
+                break;
+            case 3:
+                rgba = value;
+                break;
+            case 4:
+                lcdfilter = value;
+                break;
+            default:
+                embeddedbitmap = Boolean.parseBoolean(value);
+                break;
+        }
+    }
 
-    private void parseOptionDOM(Element element) {
+    private void parseOptionDOM(Element element, int ordinal) {
         Element editElement;
         String name;
 
         editElement = (Element) element.getElementsByTagName("edit").item(0);
+        if (editElement == null) {
+            return; // Not an option, keep it as it is
+        }
         name = editElement.getAttribute("name");
 
         switch (name) {
@@ -300,27 +766,12 @@ public class FontConfig {
                     embeddedbitmap = Boolean.valueOf(editElement.getElementsByTagName("bool").item(0).getTextContent());
                 }   break;
             default:
-                break;
+                return; // Unknown option, keep it as it is
         }
 
+        // The last one wins, earlier duplicates are dropped on write
+        optionSource[Arrays.asList(OPTIONS).indexOf(name)] = ordinal;
+        sourceParsed.set(ordinal);
         root.removeChild(element);
     }
-
-    private void createOptionDOM(String name, String value, String type) {
-        // fontconfig --> match[target="font"]
-        Element matchElement = doc.createElement("match");
-        matchElement.setAttribute("target", "font");
-        root.appendChild(matchElement);
-
-        // fontconfig --> match[target="font"] --> edit
-        Element editElement = doc.createElement("edit");
-        editElement.setAttribute("name", name);
-        editElement.setAttribute("mode", "assign");
-        matchElement.appendChild(editElement);
-
-        // fontconfig --> match[target="font"] --> edit --> const, bool
-        Element valueElement = doc.createElement(type);
-        valueElement.setTextContent(value);
-        editElement.appendChild(valueElement);
-    }
 }
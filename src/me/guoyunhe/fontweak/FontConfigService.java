@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * A FontConfig as a JMX MBean, to watch it in JConsole when Fontweak runs
+ * in a long-running process, like the editor or a management agent.
+ *
+ * The config is not thread-safe, so operations run on the thread that owns
+ * it, given as an Executor. Attributes only read counters and sizes and
+ * never wait for that thread.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class FontConfigService implements FontConfigServiceMBean {
+
+    // More problems of validate() are counted only
+    static final int MAX_PROBLEMS = 100;
+
+    private static final Set<String> GENERICS = new HashSet<>(Arrays.asList("sans-serif", "serif", "monospace"));
+
+    private final FontConfig config;
+    private final SystemFontList fonts;
+    private final Executor model;
+    private ObjectName name;
+
+    /**
+     * Serve a config that only this service uses. Operations run on the
+     * JMX thread that calls them, one at a time.
+     *
+     * @param config Config, read.
+     */
+    public FontConfigService(FontConfig config) {
+        this(config, null, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * @param config Config, read.
+     * @param fonts Installed fonts, null if there is no font list.
+     * @param model Runs tasks on the thread that owns the config, like the
+     * EDT.
+     */
+    public FontConfigService(FontConfig config, SystemFontList fonts, Executor model) {
+        this.config = config;
+        this.fonts = fonts;
+        this.model = model;
+    }
+
+    /**
+     * Register in the platform MBean server as
+     * "me.guoyunhe.fontweak:type=FontConfig,path=...".
+     *
+     * @return Name of the MBean.
+     * @throws JMException If it cannot be registered, like when another
+     * service of the same file is.
+     */
+    public synchronized ObjectName register() throws JMException {
+        ObjectName objectName = new ObjectName("me.guoyunhe.fontweak:type=FontConfig,path="
+                + ObjectName.quote(config.getFile().getAbsolutePath()));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        name = objectName;
+        return name;
+    }
+
+    /**
+     * Remove from the platform MBean server, if registered.
+     *
+     * @throws JMException If it cannot be removed.
+     */
+    public synchronized void unregister() throws JMException {
+        if (name != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            name = null;
+        }
+    }
+
+    @Override
+    public String getPath() {
+        return config.getFile().getAbsolutePath();
+    }
+
+    @Override
+    public int getMatchCount() {
+        return config.matchList.size();
+    }
+
+    @Override
+    public int getAliasCount() {
+        return config.aliasList.size();
+    }
+
+    @Override
+    public int getFontCount() {
+        return fonts == null ? -1 : fonts.get().length;
+    }
+
+    @Override
+    public double getLastReadMillis() {
+        return millis(config.lastReadNanos);
+    }
+
+    @Override
+    public double getLastWriteMillis() {
+        return millis(config.lastWriteNanos);
+    }
+
+    @Override
+    public int getReadCount() {
+        return config.reads;
+    }
+
+    @Override
+    public int getWriteCount() {
+        return config.writes;
+    }
+
+    @Override
+    public double getSnapshotHitRate() {
+        return rate(config.snapshotHits, config.snapshotReads);
+    }
+
+    @Override
+    public double getFontCacheHitRate() {
+        return fonts == null ? -1 : rate(fonts.refreshHits.get(), fonts.refreshes.get());
+    }
+
+    @Override
+    public long getLastModified() {
+        return config.lastModifiedSeen;
+    }
+
+    @Override
+    public boolean reload() throws IOException {
+        return call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException, XMLStreamException {
+                return reloadModel();
+            }
+        });
+    }
+
+    @Override
+    public void save() throws IOException {
+        call(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException, XMLStreamException {
+                saveModel();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public String[] validate() {
+        List<String> problems = new ArrayList<>();
+
+        // The file as others read it, not the model
+        try {
+            new FontConfig(config.getFile()).load();
+        } catch (IOException | XMLStreamException ex) {
+            problems.add("Cannot read " + getPath() + ": " + ex.getMessage());
+        }
+
+        // Rules are copied on the model thread and checked here
+        final List<FontMatch> matches = new ArrayList<>();
+        final List<FontAlias> aliases = new ArrayList<>();
+        try {
+            call(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    matches.addAll(config.matchList);
+                    aliases.addAll(config.aliasList);
+                    return null;
+                }
+            });
+        } catch (IOException ex) {
+            problems.add("Cannot read the rules: " + ex.getMessage());
+            return problems.toArray(new String[problems.size()]);
+        }
+
+        Set<String> installed = null;
+        String[] families = fonts == null ? new String[0] : fonts.get();
+        if (families.length > 0) {
+            installed = new HashSet<>();
+            for (String family : families) {
+                installed.add(family.toLowerCase(Locale.ROOT));
+            }
+        }
+
+        int more = 0;
+        Map<Long, Integer> tests = new HashMap<>();
+        for (FontMatch match : matches) {
+            Integer count = tests.get(match.key());
+            tests.put(match.key(), count == null ? 1 : count + 1);
+        }
+        Set<Long> reported = new HashSet<>();
+        for (FontMatch match : matches) {
+            String label = match.langTest == null ? match.familyTest : match.familyTest + " [" + match.langTest + "]";
+            List<String> found = new ArrayList<>();
+            int count = tests.get(match.key());
+            if (count > 1 && reported.add(match.key())) {
+                found.add("Match " + label + " is defined " + count + " times");
+            }
+            if (match.familyEdit == null || match.familyEdit.length == 0) {
+                if (match.source >= 0) {
+                    found.add("Match " + label + " has no families");
+                }
+            } else if (installed != null) {
+                for (String family : match.familyEdit) {
+                    if (!isInstalled(installed, family)) {
+                        found.add("Match " + label + " prefers " + family + ", which is not installed");
+                    }
+                }
+            }
+            more += add(problems, found);
+        }
+        for (FontAlias alias : aliases) {
+            List<String> found = new ArrayList<>();
+            if (alias.family.equals(alias.prefer)) {
+                found.add("Alias " + alias.family + " prefers itself");
+            } else if (installed != null && !isInstalled(installed, alias.prefer)) {
+                found.add("Alias " + alias.family + " prefers " + alias.prefer + ", which is not installed");
+            }
+            more += add(problems, found);
+        }
+        if (more > 0) {
+            problems.add(more + " more problems");
+        }
+        return problems.toArray(new String[problems.size()]);
+    }
+
+    /**
+     * Read the file again on the model thread. Override to update a view
+     * of the config too.
+     *
+     * @return True if rules or options changed.
+     * @throws IOException If the file cannot be read.
+     * @throws XMLStreamException If the file is not valid.
+     */
+    protected boolean reloadModel() throws IOException, XMLStreamException {
+        return config.reload();
+    }
+
+    /**
+     * Write the config on the model thread and put it on disk. Override to
+     * take values of a view of the config too.
+     *
+     * @throws IOException If the file cannot be written.
+     * @throws XMLStreamException If the XML cannot be written.
+     */
+    protected void saveModel() throws IOException, XMLStreamException {
+        config.store();
+        SaveJournal.getDefault().checkpoint();
+    }
+
+    // Run on the model thread and wait, one operation at a time
+    private synchronized <T> T call(Callable<T> task) throws IOException {
+        FutureTask<T> future = new FutureTask<>(task);
+        model.execute(future);
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private static boolean isInstalled(Set<String> installed, String family) {
+        return GENERICS.contains(family) || installed.contains(family.toLowerCase(Locale.ROOT));
+    }
+
+    // Add up to MAX_PROBLEMS, return how many did not fit
+    private static int add(List<String> problems, List<String> found) {
+        int fit = Math.max(0, Math.min(found.size(), MAX_PROBLEMS - problems.size()));
+        problems.addAll(found.subList(0, fit));
+        return found.size() - fit;
+    }
+
+    private static double millis(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1e6;
+    }
+
+    private static double rate(int hits, int total) {
+        return total == 0 ? -1 : (double) hits / total;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.IOException;
+
+/**
+ * Management interface of FontConfigService, for JConsole or another JMX
+ * client. Attributes are read without waiting for the thread that edits
+ * the config.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public interface FontConfigServiceMBean {
+
+    /**
+     * @return Path of fonts.conf.
+     */
+    String getPath();
+
+    /**
+     * @return Number of match rules.
+     */
+    int getMatchCount();
+
+    /**
+     * @return Number of alias rules.
+     */
+    int getAliasCount();
+
+    /**
+     * @return Number of installed font families, -1 without a font list.
+     */
+    int getFontCount();
+
+    /**
+     * @return Milliseconds of the last read of fonts.conf, -1 if never read.
+     */
+    double getLastReadMillis();
+
+    /**
+     * @return Milliseconds of the last write of fonts.conf, -1 if never
+     * written.
+     */
+    double getLastWriteMillis();
+
+    /**
+     * @return Number of reads of fonts.conf.
+     */
+    int getReadCount();
+
+    /**
+     * @return Number of writes of fonts.conf.
+     */
+    int getWriteCount();
+
+    /**
+     * @return Share of reads taken from the config snapshot instead of
+     * parsing, -1 if the snapshot was never tried.
+     */
+    double getSnapshotHitRate();
+
+    /**
+     * @return Share of font list refreshes that found the cached list
+     * current, -1 without a font list or refresh.
+     */
+    double getFontCacheHitRate();
+
+    /**
+     * @return Modification time of fonts.conf at the last read or write, in
+     * milliseconds since the epoch, -1 if never read.
+     */
+    long getLastModified();
+
+    /**
+     * Read fonts.conf again, keeping changes not saved yet.
+     *
+     * @return True if rules or options changed.
+     * @throws IOException If the file cannot be read or is not valid.
+     */
+    boolean reload() throws IOException;
+
+    /**
+     * Write the config to fonts.conf.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    void save() throws IOException;
+
+    /**
+     * Check fonts.conf and the rules.
+     *
+     * @return Problems found, empty if none.
+     */
+    String[] validate();
+}
@@ -0,0 +1,584 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Streaming writer of fontconfig configuration file.
+ *
+ * The current file is copied element by element. Elements that are not part
+ * of the model and entries that did not change are copied as they are, changed
+ * entries are written again at the same place, removed entries are dropped and
+ * new entries are added at the end. If others changed the file since it was
+ * read, its rules are paired with the model's by their saved values and the
+ * rest of it is copied. The result is saved through the SaveJournal, which
+ * replaces the config file only when it is completely written.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+class FontConfigWriter {
+
+    private final FontConfig config;
+    private final XMLOutputFactory outputFactory;
+    private XMLStreamWriter writer;
+
+    // Indent of top-level elements, taken from the file
+    private String indent = "  ";
+    // Whitespace before the next top-level element
+    private final StringBuilder space = new StringBuilder();
+    // Entries in the order of the new file, null for unknown elements
+    private final List<Object> written = new ArrayList<>();
+    private final Set<Object> placed = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    FontConfigWriter(FontConfig config) {
+        this.config = config;
+        this.outputFactory = XMLOutputFactory.newInstance();
+    }
+
+    /**
+     * Write the model to the config file.
+     *
+     * @throws IOException If the file cannot be written. The old file is not
+     * touched in this case.
+     * @throws XMLStreamException If the XML cannot be written.
+     */
+    void write() throws IOException, XMLStreamException {
+        File file = config.file;
+        ByteArrayOutputStream content = new ByteArrayOutputStream((int) Math.min(file.length() + 4096, 1 << 30));
+        int mode = CREATE;
+        if (file.isFile()) {
+            boolean inSync = file.length() == config.sourceLength && file.lastModified() == config.sourceModified;
+            mode = inSync ? COPY : MERGE;
+            try {
+                writeContent(content, mode);
+            } catch (XMLStreamException ex) {
+                // Current file is broken, nothing to copy from
+                Logger.getLogger(FontConfigWriter.class.getName()).log(Level.WARNING, null, ex);
+                content.reset();
+                mode = CREATE;
+                writeContent(content, mode);
+            }
+        } else {
+            writeContent(content, mode);
+        }
+
+        byte[] bytes = content.toByteArray();
+        SaveJournal.getDefault().save(file.toPath(), bytes);
+        commit();
+        if (mode == COPY) {
+            // Only then dirs of the model are all dirs of the file
+            config.writeSnapshot(ConfigSnapshot.hash(bytes));
+        }
+    }
+
+    // Modes of writeContent()
+    private static final int COPY = 0;   // file is what the model was read from
+    private static final int MERGE = 1;  // file was changed by others since
+    private static final int CREATE = 2; // no usable file
+
+    private void writeContent(OutputStream out, int mode) throws IOException, XMLStreamException {
+        written.clear();
+        placed.clear();
+        space.setLength(0);
+
+        writer = outputFactory.createXMLStreamWriter(out, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        if (mode == CREATE) {
+            writer.writeCharacters("\n");
+            writer.writeStartElement("fontconfig");
+            space.append('\n');
+        } else if (mode == COPY) {
+            copyRoot(sourceEntries(), config.sourceParsed);
+        } else {
+            FontConfig current = new FontConfig(config.file);
+            current.load();
+            BitSet known = (BitSet) current.sourceParsed.clone();
+            copyRoot(mergedEntries(current, known), known);
+        }
+        writeNewEntries();
+        writer.writeCharacters(space.length() > 0 ? space.toString() : "\n");
+        writer.writeEndElement();
+        writer.writeCharacters("\n");
+        writer.writeEndDocument();
+        writer.close();
+    }
+
+    /**
+     * Copy the current file and put model entries in their places.
+     *
+     * @param entries Model entries by their position in the file.
+     * @param known Positions of elements the model took, dropped if they have
+     * no entry.
+     */
+    private void copyRoot(Object[] entries, BitSet known) throws IOException, XMLStreamException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(config.file))) {
+            XMLStreamReader reader = config.inputFactory.createXMLStreamReader(in);
+            try {
+                // Prolog
+                int event;
+                while ((event = reader.next()) != XMLStreamConstants.START_ELEMENT) {
+                    if (event == XMLStreamConstants.DTD) {
+                        writer.writeCharacters("\n");
+                        writer.writeDTD(reader.getText());
+                    } else if (event == XMLStreamConstants.COMMENT) {
+                        writer.writeCharacters("\n");
+                        writer.writeComment(reader.getText());
+                    }
+                }
+                if (!reader.getLocalName().equals("fontconfig")) {
+                    throw new XMLStreamException("Root element is not fontconfig", reader.getLocation());
+                }
+                writer.writeCharacters("\n");
+                writer.writeStartElement("fontconfig");
+                writeAttributes(readAttributes(reader));
+
+                int ordinal = 0;
+                while (reader.hasNext()) {
+                    event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        Object entry = ordinal < entries.length ? entries[ordinal] : null;
+
+                        if (entry != null && !isModified(entry)) {
+                            flushSpace();
+                            copyElement(reader);
+                            written.add(entry);
+                            placed.add(entry);
+                        } else if (entry != null && !isEmpty(entry)) {
+                            flushSpace();
+                            skipElement(reader);
+                            writeEntry(entry, 1);
+                            written.add(entry);
+                            placed.add(entry);
+                        } else if (known.get(ordinal)) {
+                            // Removed from model, drop it with its indent
+                            skipElement(reader);
+                            space.setLength(0);
+                        } else {
+                            flushSpace();
+                            copyElement(reader);
+                            written.add(null);
+                        }
+                        ordinal++;
+                    } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) {
+                        String text = reader.getText();
+                        if (text.trim().isEmpty()) {
+                            space.append(text);
+                            int newline = text.lastIndexOf('\n');
+                            if (newline >= 0 && newline < text.length() - 1) {
+                                indent = text.substring(newline + 1);
+                            }
+                        } else {
+                            flushSpace();
+                            writer.writeCharacters(text);
+                        }
+                    } else if (event == XMLStreamConstants.COMMENT) {
+                        flushSpace();
+                        writer.writeComment(reader.getText());
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        break; // </fontconfig>
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        // Keep only the line break before </fontconfig>
+        String tail = space.toString();
+        space.setLength(0);
+        space.append(tail.contains("\n") ? tail.substring(tail.lastIndexOf('\n')) : tail);
+    }
+
+    /**
+     * Write entries that don't have a place in the file yet. Order: matches,
+     * aliases, options. Options are written only if changed.
+     */
+    private void writeNewEntries() throws XMLStreamException {
+        String tail = space.toString();
+        space.setLength(0);
+
+        List<Object> entries = new ArrayList<>();
+        entries.addAll(config.matchList);
+        entries.addAll(config.aliasList);
+        for (int i = 0; i < FontConfig.OPTIONS.length; i++) {
+            entries.add(Integer.valueOf(i));
+        }
+
+        for (Object entry : entries) {
+            if (placed.contains(entry) || isEmpty(entry)) {
+                continue;
+            }
+            if (entry instanceof Integer && !isModified(entry)) {
+                continue; // Not in the file and not changed, the system setting stays
+            }
+            newLine(writer, indent, 1);
+            writeEntry(entry, 1);
+            written.add(entry);
+            placed.add(entry);
+        }
+
+        space.append(tail);
+    }
+
+    /**
+     * Model entries by their position in the file.
+     */
+    private Object[] sourceEntries() {
+        int size = config.sourceParsed.length();
+        Object[] entries = new Object[size];
+
+        for (FontMatch match : config.matchList) {
+            if (match.source >= 0 && match.source < size) {
+                entries[match.source] = match;
+            }
+        }
+        for (FontAlias alias : config.aliasList) {
+            if (alias.source >= 0 && alias.source < size) {
+                entries[alias.source] = alias;
+            }
+        }
+        for (int i = 0; i < FontConfig.OPTIONS.length; i++) {
+            int source = config.optionSource[i];
+            if (source >= 0 && source < size) {
+                entries[source] = Integer.valueOf(i);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Model entries by their position in a file changed by others since it
+     * was read. Rules are paired with the file's ones by their saved values,
+     * like FontConfig.reload() does. Options are paired if changed here or
+     * still as saved. Elements of the file that are not paired are cleared
+     * from known, so they are copied as they are.
+     *
+     * @param current The file as it is now.
+     * @param known Positions of elements the reader took from the file.
+     */
+    private Object[] mergedEntries(FontConfig current, BitSet known) {
+        Object[] entries = new Object[known.length()];
+        // Positions of rules and options, the rest are dropped duplicates
+        BitSet rules = new BitSet();
+
+        Map<Long, List<FontMatch>> matches = new HashMap<>();
+        for (FontMatch match : config.matchList) {
+            if (match.source >= 0) {
+                put(matches, match.savedKey(), match);
+            }
+        }
+        for (FontMatch match : current.matchList) {
+            if (match.source >= 0) {
+                rules.set(match.source);
+                entries[match.source] = take(matches.get(match.key()), match);
+            }
+        }
+
+        Map<Long, List<FontAlias>> aliases = new HashMap<>();
+        for (FontAlias alias : config.aliasList) {
+            if (alias.source >= 0) {
+                put(aliases, alias.savedKey(), alias);
+            }
+        }
+        for (FontAlias alias : current.aliasList) {
+            if (alias.source >= 0) {
+                rules.set(alias.source);
+                entries[alias.source] = take(aliases.get(alias.key()), alias);
+            }
+        }
+
+        for (int i = 0; i < FontConfig.OPTIONS.length; i++) {
+            int source = current.optionSource[i];
+            if (source >= 0) {
+                rules.set(source);
+            }
+            if (source >= 0 && (isModified(i) || current.getOption(i).equals(config.getOption(i)))) {
+                entries[source] = Integer.valueOf(i);
+            }
+        }
+
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] == null && rules.get(i)) {
+                known.clear(i); // Added by others
+            }
+        }
+        return entries;
+    }
+
+    private static <E> void put(Map<Long, List<E>> map, long key, E element) {
+        List<E> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            map.put(key, list);
+        }
+        list.add(element);
+    }
+
+    /**
+     * @return The first candidate saved as the match, removed. Null if none.
+     */
+    private static FontMatch take(List<FontMatch> candidates, FontMatch match) {
+        if (candidates != null) {
+            for (int i = 0; i < candidates.size(); i++) {
+                if (candidates.get(i).isSavedAs(match)) {
+                    return candidates.remove(i); // Paired once
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The first candidate saved as the alias, removed. Null if none.
+     */
+    private static FontAlias take(List<FontAlias> candidates, FontAlias alias) {
+        if (candidates != null) {
+            for (int i = 0; i < candidates.size(); i++) {
+                if (candidates.get(i).isSavedAs(alias)) {
+                    return candidates.remove(i);
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean isModified(Object entry) {
+        if (entry instanceof FontMatch) {
+            return ((FontMatch) entry).isModified();
+        } else if (entry instanceof FontAlias) {
+            return ((FontAlias) entry).isModified();
+        } else {
+            int option = (Integer) entry;
+            return !config.getOption(option).equals(config.optionSaved[option]);
+        }
+    }
+
+    private boolean isEmpty(Object entry) {
+        if (entry instanceof FontMatch) {
+            return ((FontMatch) entry).isEmpty();
+        } else if (entry instanceof FontAlias) {
+            return ((FontAlias) entry).isEmpty();
+        } else {
+            return config.getOption((Integer) entry) == null;
+        }
+    }
+
+    private void writeEntry(Object entry, int level) throws XMLStreamException {
+        if (entry instanceof FontMatch) {
+            ((FontMatch) entry).writeXML(writer, indent, level);
+        } else if (entry instanceof FontAlias) {
+            ((FontAlias) entry).writeXML(writer, indent, level);
+        } else {
+            int option = (Integer) entry;
+
+            // fontconfig --> match[target="font"] --> edit --> const, bool
+            writer.writeStartElement("match");
+            writer.writeAttribute("target", "font");
+            newLine(writer, indent, level + 1);
+            writer.writeStartElement("edit");
+            writer.writeAttribute("name", FontConfig.OPTIONS[option]);
+            writer.writeAttribute("mode", "assign");
+            newLine(writer, indent, level + 2);
+            writer.writeStartElement(FontConfig.OPTION_TYPES[option]);
+            writer.writeCharacters(config.getOption(option));
+            writer.writeEndElement();
+            newLine(writer, indent, level + 1);
+            writer.writeEndElement();
+            newLine(writer, indent, level);
+            writer.writeEndElement();
+        }
+    }
+
+    private void flushSpace() throws XMLStreamException {
+        if (space.length() > 0) {
+            writer.writeCharacters(space.toString());
+            space.setLength(0);
+        } else {
+            newLine(writer, indent, 1);
+        }
+    }
+
+    /**
+     * Copy the element under the cursor with all its children.
+     */
+    private void copyElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 0;
+        int event = reader.getEventType();
+        while (true) {
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String name = reader.getLocalName();
+                    String[] attributes = readAttributes(reader);
+                    event = reader.next();
+                    if (event == XMLStreamConstants.END_ELEMENT) {
+                        writer.writeEmptyElement(name);
+                        writeAttributes(attributes);
+                        if (depth == 0) {
+                            return;
+                        }
+                        event = reader.next();
+                    } else {
+                        writer.writeStartElement(name);
+                        writeAttributes(attributes);
+                        depth++;
+                    }
+                    continue;
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.writeEndElement();
+                    depth--;
+                    if (depth == 0) {
+                        return;
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    writer.writeCharacters(reader.getText());
+                    break;
+                case XMLStreamConstants.CDATA:
+                    writer.writeCData(reader.getText());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    writer.writeComment(reader.getText());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                    break;
+                default:
+                    break;
+            }
+            event = reader.next();
+        }
+    }
+
+    /**
+     * Skip the element under the cursor with all its children.
+     */
+    private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private String[] readAttributes(XMLStreamReader reader) {
+        String[] attributes = new String[reader.getAttributeCount() * 2];
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            attributes[i * 2] = reader.getAttributeLocalName(i);
+            attributes[i * 2 + 1] = reader.getAttributeValue(i);
+        }
+        return attributes;
+    }
+
+    private void writeAttributes(String[] attributes) throws XMLStreamException {
+        for (int i = 0; i < attributes.length; i += 2) {
+            writer.writeAttribute(attributes[i], attributes[i + 1]);
+        }
+    }
+
+    /**
+     * Remember where everything is in the new file.
+     */
+    private void commit() {
+        for (FontMatch match : config.matchList) {
+            match.source = -1;
+        }
+        for (FontAlias alias : config.aliasList) {
+            alias.source = -1;
+        }
+        Arrays.fill(config.optionSource, -1);
+        config.sourceParsed.clear();
+
+        for (int i = 0; i < written.size(); i++) {
+            Object entry = written.get(i);
+            if (entry instanceof FontMatch) {
+                ((FontMatch) entry).markSaved(i);
+            } else if (entry instanceof FontAlias) {
+                ((FontAlias) entry).markSaved(i);
+            } else if (entry instanceof Integer) {
+                int option = (Integer) entry;
+                config.optionSource[option] = i;
+                config.optionSaved[option] = config.getOption(option);
+            }
+            if (entry != null) {
+                config.sourceParsed.set(i);
+            }
+        }
+
+        config.sourceLength = config.file.length();
+        config.sourceModified = config.file.lastModified();
+    }
+
+    /**
+     * Start a new line with indent.
+     *
+     * @param writer Stream to write.
+     * @param indent Indent of one level.
+     * @param level Indent level.
+     * @throws XMLStreamException If writing failed.
+     */
+    static void newLine(XMLStreamWriter writer, String indent, int level) throws XMLStreamException {
+        StringBuilder line = new StringBuilder("\n");
+        for (int i = 0; i < level; i++) {
+            line.append(indent);
+        }
+        writer.writeCharacters(line.toString());
+    }
+
+    /**
+     * Write a string element on a new line.
+     *
+     * @param writer Stream to write.
+     * @param value Content of the string element.
+     * @param indent Indent of one level.
+     * @param level Indent level.
+     * @throws XMLStreamException If writing failed.
+     */
+    static void writeString(XMLStreamWriter writer, String value, String indent, int level) throws XMLStreamException {
+        newLine(writer, indent, level);
+        writer.writeStartElement("string");
+        writer.writeCharacters(value);
+        writer.writeEndElement();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * One face of an installed font file, as read by FontScanner.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class FontFace {
+    public String family;
+    public String style;
+    public File file;
+    // Index of the face in a font collection (TTC), 0 otherwise
+    public int index;
+    // OS/2 usWeightClass, 400 is regular
+    public int weight = 400;
+    // OS/2 ulUnicodeRange1-4, null without OS/2 table
+    public int[] unicodeRanges;
+    // OS/2 ulCodePageRange1-2
+    public long codePages;
+    // Characters in cmap as sorted pairs of first and last code point
+    public int[] coverage = new int[0];
+
+    /**
+     * Check if the face has a glyph for a character.
+     *
+     * @param codepoint Unicode code point.
+     * @return True if cmap maps the character.
+     */
+    public boolean covers(int codepoint) {
+        // Find the last range starting at or before codepoint
+        int low = 0;
+        int high = coverage.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (coverage[mid * 2] <= codepoint) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && codepoint <= coverage[high * 2 + 1];
+    }
+
+    /**
+     * @return Number of characters in cmap.
+     */
+    public int getCharacterCount() {
+        int count = 0;
+        for (int i = 0; i < coverage.length; i += 2) {
+            count += coverage[i + 1] - coverage[i] + 1;
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return family + " " + style + " (" + file + (index > 0 ? ":" + index : "") + ")";
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof FontFace)) {
+            return false;
+        }
+        FontFace other = (FontFace) obj;
+        return index == other.index && weight == other.weight && codePages == other.codePages
+                && String.valueOf(family).equals(String.valueOf(other.family))
+                && String.valueOf(style).equals(String.valueOf(other.style))
+                && String.valueOf(file).equals(String.valueOf(other.file))
+                && Arrays.equals(unicodeRanges, other.unicodeRanges)
+                && Arrays.equals(coverage, other.coverage);
+    }
+
+    @Override
+    public int hashCode() {
+        return String.valueOf(file).hashCode() * 31 + index;
+    }
+}
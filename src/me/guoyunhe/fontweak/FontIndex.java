@@ -0,0 +1,592 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of installed fonts in "~/.cache/fontweak/fontindex", like the cache of
+ * fc-cache.
+ *
+ * The file is memory-mapped and queried in place, nothing is read into heap
+ * until a face is returned. Faces are sorted by family name, so a family prefix
+ * is found by binary search, and each face has a LanguageCoverage summary, so
+ * faces of a language are found by one pass over 8 byte fields.
+ *
+ * update() only scans again directories whose modification time changed, and
+ * only the files in them whose size or modification time changed.
+ *
+ * File layout, big endian:
+ *
+ * <pre>
+ * header   magic, version, dir count, face count, dirs offset, faces offset,
+ *          strings offset, strings length (8 ints)
+ * dirs     path (string ref), modified (long)
+ * faces    key, family, style, file name (string refs), dir, index, weight,
+ *          size, modified, languages (longs)
+ * strings  length (unsigned short) and UTF-8 bytes
+ * </pre>
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class FontIndex {
+
+    private static final int MAGIC = 0x46574958; // "FWIX"
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int DIR_SIZE = 12;
+    private static final int FACE_SIZE = 52;
+
+    private final ByteBuffer buffer;
+    private final int dirCount;
+    private final int faceCount;
+    private final int dirs;
+    private final int faces;
+    private final int strings;
+
+    /**
+     * One face in the index.
+     */
+    public static class Entry {
+        public String family;
+        public String style;
+        public File file;
+        public int index;
+        public int weight;
+        public long size;
+        public long modified;
+        // LanguageCoverage bits
+        public long languages;
+
+        /**
+         * @param lang fontconfig language like "zh-cn".
+         * @return True if the face has the characters of the language.
+         */
+        public boolean supports(String lang) {
+            return LanguageCoverage.supports(languages, lang);
+        }
+
+        @Override
+        public String toString() {
+            return family + " " + style + " (" + file + (index > 0 ? ":" + index : "") + ")";
+        }
+    }
+
+    private FontIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a font index of this version");
+        }
+        dirCount = buffer.getInt(8);
+        faceCount = buffer.getInt(12);
+        dirs = buffer.getInt(16);
+        faces = buffer.getInt(20);
+        strings = buffer.getInt(24);
+        int stringsLength = buffer.getInt(28);
+        if (dirCount < 0 || faceCount < 0
+                || dirs + (long) dirCount * DIR_SIZE > buffer.capacity()
+                || faces + (long) faceCount * FACE_SIZE > buffer.capacity()
+                || strings + (long) stringsLength != buffer.capacity()) {
+            throw new IOException("Broken font index");
+        }
+    }
+
+    /**
+     * Map an index file.
+     *
+     * @param file Index file.
+     * @return Index.
+     * @throws IOException If the file cannot be read or is not an index of
+     * this version.
+     */
+    public static FontIndex open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new FontIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return Default index file, "$XDG_CACHE_HOME/fontweak/fontindex".
+     */
+    public static File getDefaultFile() {
+        return new File(SystemFontList.getCacheDir(), "fontindex");
+    }
+
+    /**
+     * @return Number of faces.
+     */
+    public int size() {
+        return faceCount;
+    }
+
+    /**
+     * @param i Position of face, faces are sorted by family.
+     * @return Face.
+     */
+    public Entry get(int i) {
+        int record = faces + i * FACE_SIZE;
+        Entry entry = new Entry();
+        entry.family = string(buffer.getInt(record + 4));
+        entry.style = string(buffer.getInt(record + 8));
+        entry.file = new File(dirPath(buffer.getInt(record + 16)), string(buffer.getInt(record + 12)));
+        entry.index = buffer.getInt(record + 20);
+        entry.weight = buffer.getInt(record + 24);
+        entry.size = buffer.getLong(record + 28);
+        entry.modified = buffer.getLong(record + 36);
+        entry.languages = buffer.getLong(record + 44);
+        return entry;
+    }
+
+    /**
+     * @return Family names, sorted case-insensitively, without duplicates.
+     */
+    public String[] getFamilies() {
+        List<String> families = new ArrayList<>();
+        int lastKey = -1;
+        for (int i = 0; i < faceCount; i++) {
+            int record = faces + i * FACE_SIZE;
+            // Strings are pooled, same key has same reference
+            int key = buffer.getInt(record);
+            if (key != lastKey) {
+                families.add(string(buffer.getInt(record + 4)));
+                lastKey = key;
+            }
+        }
+        return families.toArray(new String[families.size()]);
+    }
+
+    /**
+     * Find faces whose family starts with a prefix, ignoring case.
+     *
+     * @param prefix Start of family name, empty for all faces.
+     * @return Faces sorted by family, read when asked for.
+     */
+    public List<Entry> findByFamilyPrefix(String prefix) {
+        String key = prefix.toLowerCase(Locale.ROOT);
+        int from = lowerBound(key);
+        int to = from;
+        while (to < faceCount && keyAt(to).startsWith(key)) {
+            to++;
+        }
+        return new Range(from, to);
+    }
+
+    /**
+     * Find faces of a family, ignoring case.
+     *
+     * @param family Family name.
+     * @return Faces of the family, read when asked for.
+     */
+    public List<Entry> findByFamily(String family) {
+        String key = family.toLowerCase(Locale.ROOT);
+        int from = lowerBound(key);
+        int to = from;
+        while (to < faceCount && keyAt(to).equals(key)) {
+            to++;
+        }
+        return new Range(from, to);
+    }
+
+    /**
+     * Find faces supporting a language.
+     *
+     * @param lang fontconfig language like "zh-cn".
+     * @return Faces sorted by family, read when asked for.
+     */
+    public List<Entry> findByLanguage(String lang) {
+        long required = LanguageCoverage.required(lang);
+        int[] positions = new int[16];
+        int count = 0;
+        for (int i = 0; i < faceCount; i++) {
+            if ((buffer.getLong(faces + i * FACE_SIZE + 44) & required) == required) {
+                if (count == positions.length) {
+                    positions = Arrays.copyOf(positions, count * 2);
+                }
+                positions[count++] = i;
+            }
+        }
+        return new Selection(positions, count);
+    }
+
+    /**
+     * Faces from first to last position, read when asked for.
+     */
+    private class Range extends AbstractList<Entry> {
+        private final int from;
+        private final int to;
+
+        Range(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Entry get(int i) {
+            if (i < 0 || i >= to - from) {
+                throw new IndexOutOfBoundsException(String.valueOf(i));
+            }
+            return FontIndex.this.get(from + i);
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+    }
+
+    /**
+     * Faces at some positions, read when asked for.
+     */
+    private class Selection extends AbstractList<Entry> {
+        private final int[] positions;
+        private final int count;
+
+        Selection(int[] positions, int count) {
+            this.positions = positions;
+            this.count = count;
+        }
+
+        @Override
+        public Entry get(int i) {
+            if (i < 0 || i >= count) {
+                throw new IndexOutOfBoundsException(String.valueOf(i));
+            }
+            return FontIndex.this.get(positions[i]);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = faceCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keyAt(mid).compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private String keyAt(int i) {
+        return string(buffer.getInt(faces + i * FACE_SIZE));
+    }
+
+    private String dirPath(int dir) {
+        return string(buffer.getInt(dirs + dir * DIR_SIZE));
+    }
+
+    private String string(int ref) {
+        int position = strings + ref;
+        byte[] bytes = new byte[buffer.getShort(position) & 0xFFFF];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(position + 2 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Bring an index up to date with font directories and map it.
+     *
+     * @param file Index file, created if missing or broken.
+     * @param roots Font directories, subdirectories are included.
+     * @return Updated index.
+     * @throws IOException If the index cannot be written.
+     */
+    public static FontIndex update(File file, List<File> roots) throws IOException {
+        return update(file, roots, Collections.<File>emptySet());
+    }
+
+    /**
+     * Bring an index up to date, also reading directories known to have
+     * changed without a new modification time, like after a font file was
+     * rewritten in place.
+     *
+     * @param file Index file.
+     * @param roots Font directories, subdirectories included.
+     * @param dirty Directories to read again in any case.
+     * @return Index of all fonts under roots.
+     * @throws IOException If the index cannot be written.
+     */
+    public static FontIndex update(File file, List<File> roots, Set<File> dirty) throws IOException {
+        FontIndex old = null;
+        if (file.isFile()) {
+            try {
+                old = open(file);
+            } catch (IOException ex) {
+                Logger.getLogger(FontIndex.class.getName()).log(Level.INFO, "Rebuilding font index", ex);
+            }
+        }
+
+        long start = System.nanoTime();
+        Map<String, Long> current = new LinkedHashMap<>();
+        Set<String> visited = new HashSet<>();
+        for (File root : roots) {
+            listDirs(root, current, visited);
+        }
+
+        // Old faces by directory path, then by file name
+        Map<String, Long> oldDirs = new HashMap<>();
+        Map<String, Map<String, List<Entry>>> oldFaces = new HashMap<>();
+        if (old != null) {
+            for (int i = 0; i < old.dirCount; i++) {
+                oldDirs.put(old.dirPath(i), old.buffer.getLong(old.dirs + i * DIR_SIZE + 4));
+            }
+            for (int i = 0; i < old.faceCount; i++) {
+                Entry entry = old.get(i);
+                String dir = entry.file.getParent();
+                Map<String, List<Entry>> byName = oldFaces.get(dir);
+                if (byName == null) {
+                    byName = new HashMap<>();
+                    oldFaces.put(dir, byName);
+                }
+                List<Entry> list = byName.get(entry.file.getName());
+                if (list == null) {
+                    list = new ArrayList<>();
+                    byName.put(entry.file.getName(), list);
+                }
+                list.add(entry);
+            }
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        List<File> changed = new ArrayList<>();
+        int changedDirs = 0;
+        for (Map.Entry<String, Long> dir : current.entrySet()) {
+            Map<String, List<Entry>> byName = oldFaces.get(dir.getKey());
+            if (dir.getValue().equals(oldDirs.get(dir.getKey())) && !dirty.contains(new File(dir.getKey()))) {
+                if (byName != null) {
+                    for (List<Entry> list : byName.values()) {
+                        entries.addAll(list);
+                    }
+                }
+                continue;
+            }
+
+            changedDirs++;
+            File[] children = new File(dir.getKey()).listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File child : children) {
+                if (!FontScanner.isFontFile(child.getName()) || !child.isFile()) {
+                    continue;
+                }
+                List<Entry> list = byName != null ? byName.get(child.getName()) : null;
+                if (list != null && list.get(0).size == child.length()
+                        && list.get(0).modified == child.lastModified()) {
+                    entries.addAll(list);
+                } else {
+                    changed.add(child);
+                }
+            }
+        }
+
+        if (old != null && changedDirs == 0 && oldDirs.size() == current.size()) {
+            return old; // Nothing changed
+        }
+
+        if (!changed.isEmpty()) {
+            FontScanner scanner = new FontScanner();
+            try {
+                for (FontFace face : scanner.scanFiles(changed)) {
+                    Entry entry = new Entry();
+                    entry.family = face.family;
+                    entry.style = face.style;
+                    entry.file = face.file;
+                    entry.index = face.index;
+                    entry.weight = face.weight;
+                    entry.size = face.file.length();
+                    entry.modified = face.file.lastModified();
+                    entry.languages = LanguageCoverage.summarize(face);
+                    entries.add(entry);
+                }
+            } finally {
+                scanner.shutdown();
+            }
+        }
+
+        write(file, new ArrayList<>(current.keySet()), new ArrayList<>(current.values()), entries);
+        Logger.getLogger(FontIndex.class.getName()).log(Level.INFO,
+                "Font index updated: {0} directories, {1} changed, {2} files read, {3} faces in {4} ms",
+                new Object[]{current.size(), changedDirs, changed.size(), entries.size(), (System.nanoTime() - start) / 1000000});
+        return open(file);
+    }
+
+    private static void listDirs(File dir, Map<String, Long> dirs, Set<String> visited) {
+        try {
+            if (!dir.isDirectory() || !visited.add(dir.getCanonicalPath())) {
+                return;
+            }
+        } catch (IOException ex) {
+            return;
+        }
+        dirs.put(dir.getPath(), dir.lastModified());
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    listDirs(child, dirs, visited);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write an index file atomically.
+     *
+     * @param file Index file.
+     * @param dirPaths Font directories.
+     * @param dirTimes Modification times of dirPaths.
+     * @param entries Faces, all in dirPaths.
+     * @throws IOException If the file cannot be written.
+     */
+    static void write(File file, List<String> dirPaths, List<Long> dirTimes, List<Entry> entries) throws IOException {
+        final Map<Entry, String> keys = new HashMap<>();
+        for (Entry entry : entries) {
+            keys.put(entry, entry.family.toLowerCase(Locale.ROOT));
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                int result = keys.get(a).compareTo(keys.get(b));
+                if (result == 0) {
+                    result = a.family.compareTo(b.family);
+                }
+                if (result == 0) {
+                    result = Integer.compare(a.weight, b.weight);
+                }
+                if (result == 0) {
+                    result = a.style.compareTo(b.style);
+                }
+                if (result == 0) {
+                    result = a.file.compareTo(b.file);
+                }
+                return result;
+            }
+        });
+
+        StringPool pool = new StringPool();
+        Map<String, Integer> dirIds = new HashMap<>();
+        for (int i = 0; i < dirPaths.size(); i++) {
+            dirIds.put(dirPaths.get(i), i);
+            pool.ref(dirPaths.get(i));
+        }
+        for (Entry entry : entries) {
+            pool.ref(keys.get(entry));
+            pool.ref(entry.family);
+            pool.ref(entry.style);
+            pool.ref(entry.file.getName());
+        }
+
+        int dirsOffset = HEADER_SIZE;
+        int facesOffset = dirsOffset + dirPaths.size() * DIR_SIZE;
+        int stringsOffset = facesOffset + entries.size() * FACE_SIZE;
+
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        File temp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), "." + file.getName(), ".tmp").toFile();
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(dirPaths.size());
+                out.writeInt(entries.size());
+                out.writeInt(dirsOffset);
+                out.writeInt(facesOffset);
+                out.writeInt(stringsOffset);
+                out.writeInt(pool.length);
+                for (int i = 0; i < dirPaths.size(); i++) {
+                    out.writeInt(pool.ref(dirPaths.get(i)));
+                    out.writeLong(dirTimes.get(i));
+                }
+                for (Entry entry : entries) {
+                    out.writeInt(pool.ref(keys.get(entry)));
+                    out.writeInt(pool.ref(entry.family));
+                    out.writeInt(pool.ref(entry.style));
+                    out.writeInt(pool.ref(entry.file.getName()));
+                    out.writeInt(dirIds.get(entry.file.getParent()));
+                    out.writeInt(entry.index);
+                    out.writeInt(entry.weight);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.modified);
+                    out.writeLong(entry.languages);
+                }
+                for (byte[] bytes : pool.strings) {
+                    out.writeShort(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath()); // Only left if writing failed
+        }
+    }
+
+    /**
+     * Strings written once, referenced by offset.
+     */
+    private static class StringPool {
+        final Map<String, Integer> refs = new HashMap<>();
+        final List<byte[]> strings = new ArrayList<>();
+        int length;
+
+        int ref(String s) {
+            Integer ref = refs.get(s);
+            if (ref == null) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > 0xFFFF) {
+                    bytes = new byte[0];
+                }
+                ref = length;
+                refs.put(s, ref);
+                strings.add(bytes);
+                length += 2 + bytes.length;
+            }
+            return ref;
+        }
+    }
+}
@@ -17,7 +17,10 @@
 package me.guoyunhe.fontweak;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -29,11 +32,23 @@ import org.w3c.dom.NodeList;
  *
  * @author Guo Yunhe guoyunhebrave@gmail.com
  */
-public class FontMatch {
+public class FontMatch implements IndexedList.Keyed {
     public String familyTest;
     public String langTest;
     public String[] familyEdit;
 
+    // Position in the config file and values saved there as ids of
+    // SymbolTable.FAMILIES, -1 if not saved yet
+    int source = -1;
+    private int savedFamilyTest = SymbolTable.NONE;
+    private int savedLangTest = SymbolTable.NONE;
+    private int[] savedFamilyEdit;
+
+    // key() of the tests it was computed for
+    private String keyFamilyTest;
+    private String keyLangTest;
+    private long key;
+
     /**
      * Initialize with null content.
      */
@@ -50,9 +65,9 @@ public class FontMatch {
      * @param familyEdit Result font family.
      */
     public FontMatch(String familyTest, String langTest, String[] familyEdit) {
-        this.familyTest = familyTest;
-        this.langTest = langTest;
-        this.familyEdit = familyEdit;
+        this.familyTest = SymbolTable.FAMILIES.intern(familyTest);
+        this.langTest = SymbolTable.FAMILIES.intern(langTest);
+        this.familyEdit = SymbolTable.FAMILIES.intern(familyEdit);
     }
 
     /**
@@ -76,7 +91,7 @@ public class FontMatch {
                 for (int j = 0; j < grandChildren.getLength(); j++) {
                     Node grandChild = grandChildren.item(j);
                     if(grandChild.getNodeName().equals("string")) {
-                        stringList.add(grandChild.getTextContent());
+                        stringList.add(SymbolTable.FAMILIES.intern(grandChild.getTextContent()));
                     }
                 }
 
@@ -151,6 +166,130 @@ public class FontMatch {
         }
     }
 
+    /**
+     * Write XML to stream. Same structure as createDOM().
+     *
+     * @param writer Stream to write.
+     * @param indent Indent of one level.
+     * @param level Indent level of the match element.
+     * @throws XMLStreamException If writing failed.
+     */
+    public void writeXML(XMLStreamWriter writer, String indent, int level) throws XMLStreamException {
+        if (isEmpty()) {
+            return;
+        }
+
+        // fontconfig --> match
+        writer.writeStartElement("match");
+
+        // fontconfig --> match --> test[name="family"] --> string
+        FontConfigWriter.newLine(writer, indent, level + 1);
+        writer.writeStartElement("test");
+        writer.writeAttribute("name", "family");
+        FontConfigWriter.writeString(writer, familyTest, indent, level + 2);
+        FontConfigWriter.newLine(writer, indent, level + 1);
+        writer.writeEndElement();
+
+        if (this.langTest != null && !langTest.equalsIgnoreCase("en")) {
+            // fontconfig --> match --> test[name="lang"] --> string
+            FontConfigWriter.newLine(writer, indent, level + 1);
+            writer.writeStartElement("test");
+            writer.writeAttribute("name", "lang");
+            FontConfigWriter.writeString(writer, langTest, indent, level + 2);
+            FontConfigWriter.newLine(writer, indent, level + 1);
+            writer.writeEndElement();
+        }
+
+        // fontconfig --> match --> edit[name="family"] --> string
+        FontConfigWriter.newLine(writer, indent, level + 1);
+        writer.writeStartElement("edit");
+        writer.writeAttribute("name", "family");
+        writer.writeAttribute("binding", "strong");
+        writer.writeAttribute("mode", "prepend");
+        for (String family : familyEdit) {
+            FontConfigWriter.writeString(writer, family, indent, level + 2);
+        }
+        FontConfigWriter.newLine(writer, indent, level + 1);
+        writer.writeEndElement();
+
+        FontConfigWriter.newLine(writer, indent, level);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Remember current values as saved in config file.
+     *
+     * @param source Position of the match element in config file.
+     */
+    void markSaved(int source) {
+        this.source = source;
+        this.savedFamilyTest = SymbolTable.FAMILIES.id(familyTest);
+        this.savedLangTest = SymbolTable.FAMILIES.id(langTest);
+        this.savedFamilyEdit = SymbolTable.FAMILIES.ids(familyEdit);
+    }
+
+    /**
+     * Check if the match changed since it was read or written.
+     *
+     * @return True if it is different from the config file.
+     */
+    boolean isModified() {
+        return source < 0
+                || SymbolTable.FAMILIES.id(familyTest) != savedFamilyTest
+                || SymbolTable.FAMILIES.id(langTest) != savedLangTest
+                || !Arrays.equals(SymbolTable.FAMILIES.ids(familyEdit), savedFamilyEdit);
+    }
+
+    /**
+     * Check if the match was saved with the values of another one.
+     *
+     * @param other Match read from the config file.
+     * @return True if the saved values are the current ones of other.
+     */
+    boolean isSavedAs(FontMatch other) {
+        return source >= 0
+                && savedFamilyTest == SymbolTable.FAMILIES.id(other.familyTest)
+                && savedLangTest == SymbolTable.FAMILIES.id(other.langTest)
+                && Arrays.equals(savedFamilyEdit, SymbolTable.FAMILIES.ids(other.familyEdit));
+    }
+
+    /**
+     * Matches with equal keys test the same family and language. Families
+     * are compared ignoring case and blanks, "en" is the same as no language
+     * since it is not written.
+     *
+     * @param familyTest Condition font family.
+     * @param langTest Condition language, may be null.
+     * @return Key for IndexedList.
+     */
+    public static long key(String familyTest, String langTest) {
+        SymbolTable symbols = SymbolTable.FAMILIES;
+        int lang = langTest == null || langTest.equalsIgnoreCase("en")
+                ? SymbolTable.NONE : symbols.id(FontResolver.langKey(langTest));
+        return key(symbols.key(symbols.id(familyTest)), lang);
+    }
+
+    private static long key(int family, int lang) {
+        return ((long) family << 32) | (lang & 0xffffffffL);
+    }
+
+    @Override
+    public long key() {
+        if (keyFamilyTest != familyTest || keyLangTest != langTest || keyFamilyTest == null) {
+            key = key(familyTest, langTest);
+            keyFamilyTest = familyTest;
+            keyLangTest = langTest;
+        }
+        return key;
+    }
+
+    /**
+     * @return Key of the saved values, see key().
+     */
+    long savedKey() {
+        return key(SymbolTable.FAMILIES.name(savedFamilyTest), SymbolTable.FAMILIES.name(savedLangTest));
+    }
+
     /**
      * Check if the match contains necessary data.
      *
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Search font family names as they are typed.
+ *
+ * Names keep the order they are given in, so fonts listed first stay first.
+ * Names starting with the query come first, then names containing it.
+ * Prefixes are found by binary search in the names sorted by key, which is
+ * the leaf order of a trie: all names with a prefix are one range. Other
+ * matches are found with an index of the trigrams of each name, intersecting
+ * the names having every trigram of the query.
+ *
+ * Keys are lower case without blanks, like FontResolver.familyKey(), so
+ * "dejavus" finds "DejaVu Sans".
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public final class FontNameIndex {
+
+    private final String[] names;
+    private final String[] keys;
+    // Ids of names sorted by key
+    private final int[] sorted;
+    private final String[] sortedKeys;
+    // Trigram to ids of names having it, ascending
+    private final Map<String, int[]> trigrams;
+
+    /**
+     * @param names Font families, in the order results should list them.
+     */
+    public FontNameIndex(String[] names) {
+        this.names = names.clone();
+        keys = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            keys[i] = FontResolver.familyKey(names[i]);
+        }
+
+        Integer[] order = new Integer[names.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return keys[a].compareTo(keys[b]);
+            }
+        });
+        sorted = new int[order.length];
+        sortedKeys = new String[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = order[i];
+            sortedKeys[i] = keys[order[i]];
+        }
+
+        // Count first, then fill arrays, ids come in ascending order
+        Map<String, int[]> counts = new HashMap<>();
+        for (String key : keys) {
+            for (int j = 0; j + 3 <= key.length(); j++) {
+                String trigram = key.substring(j, j + 3);
+                if (key.indexOf(trigram) == j) { // Once per name
+                    int[] count = counts.get(trigram);
+                    if (count == null) {
+                        counts.put(trigram, new int[]{1});
+                    } else {
+                        count[0]++;
+                    }
+                }
+            }
+        }
+        trigrams = new HashMap<>(counts.size() * 2);
+        Map<String, int[]> filled = new HashMap<>(counts.size() * 2);
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            trigrams.put(entry.getKey(), new int[entry.getValue()[0]]);
+            filled.put(entry.getKey(), new int[1]);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            for (int j = 0; j + 3 <= key.length(); j++) {
+                String trigram = key.substring(j, j + 3);
+                if (key.indexOf(trigram) == j) {
+                    int[] position = filled.get(trigram);
+                    trigrams.get(trigram)[position[0]++] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Number of names.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @param id Position in the names given.
+     * @return Name.
+     */
+    public String get(int id) {
+        return names[id];
+    }
+
+    /**
+     * Find names matching a query.
+     *
+     * @param query Typed text, case and blanks ignored.
+     * @return Ids of names starting with the query in given order, then ids
+     * of names containing it in given order. Null if the query is empty and
+     * all names match.
+     */
+    public int[] search(String query) {
+        String key = FontResolver.familyKey(query);
+        if (key.isEmpty()) {
+            return null;
+        }
+
+        // Prefix range
+        int from = lowerBound(key);
+        int to = from;
+        while (to < sortedKeys.length && sortedKeys[to].startsWith(key)) {
+            to++;
+        }
+        int[] prefixed = Arrays.copyOfRange(sorted, from, to);
+        Arrays.sort(prefixed);
+
+        int[] candidates = key.length() >= 3 ? intersect(key) : null;
+        int[] contained = new int[candidates != null ? candidates.length : names.length];
+        int count = 0;
+        if (candidates != null) {
+            for (int id : candidates) {
+                if (!keys[id].startsWith(key) && keys[id].contains(key)) {
+                    contained[count++] = id;
+                }
+            }
+        } else {
+            // One or two letters, a scan is as fast as any index
+            for (int id = 0; id < keys.length; id++) {
+                if (!keys[id].startsWith(key) && keys[id].contains(key)) {
+                    contained[count++] = id;
+                }
+            }
+        }
+
+        int[] result = Arrays.copyOf(prefixed, prefixed.length + count);
+        System.arraycopy(contained, 0, result, prefixed.length, count);
+        return result;
+    }
+
+    /**
+     * Narrow an earlier result to a longer query, cheaper than search() while
+     * typing.
+     *
+     * @param previous Result of a query the new one starts with.
+     * @param query New query.
+     * @return Same as search(query).
+     */
+    public int[] refine(int[] previous, String query) {
+        if (previous == null) {
+            return search(query);
+        }
+        String key = FontResolver.familyKey(query);
+        int[] prefixed = new int[previous.length];
+        int[] contained = new int[previous.length];
+        int prefixCount = 0;
+        int containCount = 0;
+        for (int id : previous) {
+            if (keys[id].startsWith(key)) {
+                prefixed[prefixCount++] = id;
+            } else if (keys[id].contains(key)) {
+                contained[containCount++] = id;
+            }
+        }
+        // Prefix matches of the longer query were all prefix matches before,
+        // the others come from both parts
+        Arrays.sort(contained, 0, containCount);
+        int[] result = Arrays.copyOf(prefixed, prefixCount + containCount);
+        System.arraycopy(contained, 0, result, prefixCount, containCount);
+        return result;
+    }
+
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = sortedKeys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedKeys[middle].compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return Ids having all trigrams of key, ascending.
+     */
+    private int[] intersect(String key) {
+        int[] result = null;
+        for (int j = 0; j + 3 <= key.length(); j++) {
+            int[] postings = trigrams.get(key.substring(j, j + 3));
+            if (postings == null) {
+                return new int[0];
+            }
+            if (result == null) {
+                result = postings;
+                continue;
+            }
+            int[] both = new int[Math.min(result.length, postings.length)];
+            int count = 0;
+            for (int a = 0, b = 0; a < result.length && b < postings.length;) {
+                if (result[a] < postings[b]) {
+                    a++;
+                } else if (result[a] > postings[b]) {
+                    b++;
+                } else {
+                    both[count++] = result[a];
+                    a++;
+                    b++;
+                }
+            }
+            result = Arrays.copyOf(both, count);
+            if (count == 0) {
+                break;
+            }
+        }
+        return result;
+    }
+}
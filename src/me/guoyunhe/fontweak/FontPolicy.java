@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * A set of changes to apply to fontconfig configuration files. It is read from
+ * a properties file:
+ *
+ * <pre>
+ * # Options
+ * antialias=true
+ * hintstyle=hintslight
+ * # Font match, key is the label of match list. Fonts are separated by comma.
+ * match.sans-serif=Noto Sans, DejaVu Sans
+ * match.sans-serif\ [zh-cn]=Noto Sans CJK SC
+ * # Font alias
+ * alias.Arial=Liberation Sans
+ * # Empty value removes the match or alias
+ * alias.Helvetica=
+ * </pre>
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class FontPolicy {
+
+    private final Map<Integer, String> options = new LinkedHashMap<>();
+    // familyEdit or prefer is null when the rule should be removed
+    private final List<FontMatch> matches = new ArrayList<>();
+    private final List<FontAlias> aliases = new ArrayList<>();
+
+    /**
+     * Read policy from properties file.
+     *
+     * @param file Properties file.
+     * @return Policy.
+     * @throws IOException If the file cannot be read.
+     * @throws IllegalArgumentException If a key or value is not valid.
+     */
+    public static FontPolicy load(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Read policy from properties.
+     *
+     * @param reader Properties content.
+     * @return Policy.
+     * @throws IOException If the content cannot be read.
+     * @throws IllegalArgumentException If a key or value is not valid.
+     */
+    public static FontPolicy load(Reader reader) throws IOException {
+        Properties properties = new Properties();
+        properties.load(reader);
+
+        FontPolicy policy = new FontPolicy();
+        // Sorted, so new rules are always added in the same order
+        for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+            String value = properties.getProperty(key).trim();
+            if (key.startsWith("match.")) {
+                policy.addMatch(key.substring("match.".length()), value);
+            } else if (key.startsWith("alias.")) {
+                policy.addAlias(key.substring("alias.".length()), value);
+            } else {
+                policy.addOption(key, value);
+            }
+        }
+        return policy;
+    }
+
+    private void addOption(String name, String value) {
+        int index = Arrays.asList(FontConfig.OPTIONS).indexOf(name);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown option: " + name);
+        }
+
+        String[] allowed;
+        switch (name) {
+            case "hintstyle":
+                allowed = FontConfig.HINTSTYLE_OPTIONS;
+                break;
+            case "rgba":
+                allowed = FontConfig.RGBA_OPTIONS;
+                break;
+            case "lcdfilter":
+                allowed = FontConfig.LCDFILTER_OPTIONS;
+                break;
+            default:
+                allowed = new String[]{"true", "false"};
+                break;
+        }
+        if (!Arrays.asList(allowed).contains(value)) {
+            throw new IllegalArgumentException("Invalid value of " + name + ": " + value);
+        }
+        options.put(index, value);
+    }
+
+    private void addMatch(String label, String value) {
+        String family = label;
+        String lang = null;
+        // Same label as match list: "family [lang]"
+        if (label.endsWith("]") && label.contains(" [")) {
+            family = label.substring(0, label.lastIndexOf(" ["));
+            lang = label.substring(label.lastIndexOf(" [") + 2, label.length() - 1);
+        }
+        if (family.isEmpty()) {
+            throw new IllegalArgumentException("Empty match family: " + label);
+        }
+
+        String[] fonts = null;
+        if (!value.isEmpty()) {
+            fonts = value.split("\\s*,\\s*");
+        }
+        matches.add(new FontMatch(family, lang, fonts));
+    }
+
+    private void addAlias(String family, String value) {
+        if (family.isEmpty()) {
+            throw new IllegalArgumentException("Empty alias family");
+        }
+        aliases.add(new FontAlias(family, value.isEmpty() ? null : value));
+    }
+
+    /**
+     * Apply the policy to a loaded config.
+     *
+     * @param config Config to change.
+     * @return Number of changes, 0 if the config already follows the policy.
+     */
+    public int apply(FontConfig config) {
+        int changes = 0;
+
+        for (Map.Entry<Integer, String> option : options.entrySet()) {
+            if (!option.getValue().equals(config.getOption(option.getKey()))) {
+                config.setOption(option.getKey(), option.getValue());
+                changes++;
+            }
+        }
+
+        for (FontMatch match : matches) {
+            FontMatch existing = config.matchList.find(match.key());
+            if (match.familyEdit == null) {
+                if (existing != null && !existing.isEmpty()) {
+                    config.matchList.remove(existing);
+                    changes++;
+                }
+            } else if (existing == null) {
+                config.matchList.add(new FontMatch(match.familyTest, match.langTest, match.familyEdit.clone()));
+                changes++;
+            } else if (!Arrays.equals(existing.familyEdit, match.familyEdit)) {
+                existing.familyEdit = match.familyEdit.clone();
+                config.rulesChanged();
+                changes++;
+            }
+        }
+
+        for (FontAlias alias : aliases) {
+            FontAlias existing = config.aliasList.find(alias.key());
+            if (alias.prefer == null) {
+                while (existing != null) {
+                    config.aliasList.remove(existing);
+                    changes++;
+                    existing = config.aliasList.find(alias.key());
+                }
+                continue;
+            }
+
+            if (existing == null) {
+                config.aliasList.add(new FontAlias(alias.family, alias.prefer));
+                changes++;
+            } else if (!existing.prefer.equals(alias.prefer)) {
+                existing.prefer = alias.prefer;
+                config.rulesChanged();
+                changes++;
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * @return Number of options, matches and aliases in the policy.
+     */
+    public int size() {
+        return options.size() + matches.size() + aliases.size();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Set;
+import javax.swing.BorderFactory;
+import javax.swing.JComponent;
+import javax.swing.UIManager;
+
+/**
+ * Sample text in some font families, one row each with the family name
+ * above. Rows are rendered by a PreviewRenderer, a row is blank until its
+ * image is ready, so painting never waits for fonts.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class FontPreview extends JComponent implements PreviewRenderer.Callback {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int SIZE = 20;
+    // Images are this much wider than needed, so resizing renders less
+    private static final int WIDTH_STEP = 64;
+
+    private final PreviewRenderer renderer;
+    private final int rows;
+    private String[] families = new String[0];
+    private String[] options = new String[5];
+    private String text = "";
+    // Requests waiting for images
+    private final Set<PreviewRenderer.Request> waiting = new HashSet<>();
+
+    /**
+     * @param renderer Shared renderer.
+     * @param rows Number of rows to make room for.
+     */
+    public FontPreview(PreviewRenderer renderer, int rows) {
+        this.renderer = renderer;
+        this.rows = rows;
+        setOpaque(true);
+        setBackground(PreviewRenderer.BACKGROUND);
+        setForeground(PreviewRenderer.FOREGROUND);
+        setFont(UIManager.getFont("Label.font"));
+        setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+    }
+
+    /**
+     * @param families Families to show, null entries are skipped.
+     */
+    public void setFamilies(String... families) {
+        this.families = families;
+        repaint();
+    }
+
+    /**
+     * @param options Values of antialias, hinting, hintstyle, rgba and
+     * lcdfilter.
+     */
+    public void setOptions(String[] options) {
+        this.options = options.clone();
+        repaint();
+    }
+
+    /**
+     * @param text Sample text.
+     */
+    public void setText(String text) {
+        this.text = text;
+        repaint();
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if (isPreferredSizeSet()) {
+            return super.getPreferredSize();
+        }
+        Insets insets = getInsets();
+        return new Dimension(200, insets.top + insets.bottom + rows * getRowHeight());
+    }
+
+    private int getRowHeight() {
+        return getFontMetrics(getFont()).getHeight() + new PreviewRenderer.Request("", SIZE, options, "", 0).getHeight();
+    }
+
+    @Override
+    public void rendered(PreviewRenderer.Request request) {
+        if (waiting.remove(request)) {
+            repaint();
+        }
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+        Insets insets = getInsets();
+        int width = getWidth() - insets.left - insets.right;
+        if (width <= 0 || options[0] == null) {
+            return;
+        }
+        width = (width + WIDTH_STEP - 1) / WIDTH_STEP * WIDTH_STEP;
+
+        Set<PreviewRenderer.Request> shown = new HashSet<>();
+        FontMetrics metrics = g.getFontMetrics(getFont());
+        int y = insets.top;
+        g.setFont(getFont());
+        for (String family : families) {
+            if (family == null) {
+                continue;
+            }
+            g.setColor(getForeground());
+            g.drawString(family, insets.left, y + metrics.getAscent());
+            y += metrics.getHeight();
+
+            PreviewRenderer.Request request = new PreviewRenderer.Request(family, SIZE, options, text, width);
+            BufferedImage image = renderer.get(request);
+            if (image != null) {
+                g.drawImage(image, insets.left, y, null);
+            } else {
+                shown.add(request);
+                if (waiting.add(request)) {
+                    renderer.request(request, this);
+                }
+            }
+            y += request.getHeight();
+        }
+
+        // Scrolled away or resized, stop waiting for the old rows
+        for (PreviewRenderer.Request request : waiting.toArray(new PreviewRenderer.Request[0])) {
+            if (!shown.contains(request)) {
+                waiting.remove(request);
+                renderer.cancel(request, this);
+            }
+        }
+    }
+}
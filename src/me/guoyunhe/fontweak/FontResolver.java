@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What a font family and language resolve to under a FontConfig, like
+ * "fc-match -s" without saving the config first. Only the rules of the config
+ * are applied, unless a SystemFontConfig is set. Then the config takes the
+ * place where the system includes it.
+ *
+ * Rules are applied once each, in file order: a match or alias whose tests
+ * pass inserts its families before the family it matched, or where the edit
+ * mode of a system rule says. Rules not saved yet come last, matches before
+ * aliases, where FontConfigWriter will put them.
+ * Families are compared ignoring case and blanks, languages ignoring case,
+ * like fontconfig does.
+ *
+ * Results are cached per family and language until getRuleVersion() of the
+ * config or the system config changes. Rules are compiled to ids of
+ * SymbolTable.FAMILIES, so applying them compares ints.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class FontResolver {
+
+    private final FontConfig config;
+    private volatile Map<Long, Result> cache = new ConcurrentHashMap<>();
+    private volatile Compiled compiled;
+    private volatile SystemFontConfig system;
+    private volatile int systemVersion;
+
+    // Id and key of a family not in SymbolTable.FAMILIES
+    private static final int UNKNOWN = -2;
+
+    // Edit modes
+    private static final int PREPEND = 0;
+    private static final int PREPEND_FIRST = 1;
+    private static final int APPEND = 2;
+    private static final int APPEND_LAST = 3;
+    private static final int ASSIGN = 4;
+    private static final int ASSIGN_REPLACE = 5;
+    private static final String[] MODES = {
+        "prepend", "prepend_first", "append", "append_last", "assign", "assign_replace"
+    };
+
+    // Families and languages are ids of SymbolTable.FAMILIES
+    private static class Rule {
+        int family = SymbolTable.NONE; // Key of familyTest, NONE for any family
+        int lang = SymbolTable.NONE;   // Key of langTest, NONE for any language
+        int[] prefer;
+        int[] preferKeys;
+        int mode = PREPEND;
+        int source;
+        int kind;      // 0 match, 1 alias
+
+        void setFamily(String family) {
+            this.family = SymbolTable.FAMILIES.key(SymbolTable.FAMILIES.id(family));
+        }
+
+        void setPrefer(String[] families) {
+            prefer = SymbolTable.FAMILIES.ids(families);
+            preferKeys = new int[prefer.length];
+            for (int i = 0; i < prefer.length; i++) {
+                preferKeys[i] = SymbolTable.FAMILIES.key(prefer[i]);
+            }
+        }
+    }
+
+    private static class Compiled {
+        final int version;
+        final Rule[] rules;
+
+        Compiled(int version, Rule[] rules) {
+            this.version = version;
+            this.rules = rules;
+        }
+    }
+
+    private static class Result {
+        final int version;
+        final String[] chain;
+
+        Result(int version, String[] chain) {
+            this.version = version;
+            this.chain = chain;
+        }
+    }
+
+    public FontResolver(FontConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Apply the rules of the system too.
+     *
+     * @param system System configuration leaving out the config, null for
+     * none.
+     */
+    public void setSystemConfig(SystemFontConfig system) {
+        this.system = system;
+        systemVersion++;
+    }
+
+    /**
+     * Resolve a family.
+     *
+     * @param family Font family, like "sans-serif".
+     * @param lang Language, like "zh-cn", null for none.
+     * @return Family chain, most preferred first, without duplicates. The
+     * family itself is in it.
+     */
+    public String[] resolve(String family, String lang) {
+        int current = config.getRuleVersion() + systemVersion;
+        Compiled rules = compiled;
+        if (rules == null || rules.version != current) {
+            rules = new Compiled(current, compile());
+            compiled = rules;
+            cache.clear();
+        }
+
+        // Names are looked up, not added: a family no rule names can only be
+        // moved by rules without family test, a language no rule names is
+        // the same as none
+        SymbolTable symbols = SymbolTable.FAMILIES;
+        int familyId = symbols.find(family);
+        int familyKey = familyId != SymbolTable.NONE ? symbols.key(familyId) : symbols.find(familyKey(family));
+        int langId = lang != null ? symbols.find(langKey(lang)) : SymbolTable.NONE;
+        if (familyKey == SymbolTable.NONE) {
+            return names(apply(rules.rules, UNKNOWN, UNKNOWN, langId), family); // Not cached
+        }
+        Long key = ((long) familyKey << 32) | (langId & 0xffffffffL);
+        Map<Long, Result> results = cache;
+        Result result = results.get(key);
+        if (result == null || result.version != current) {
+            int id = familyId != SymbolTable.NONE ? familyId : UNKNOWN;
+            result = new Result(current, names(apply(rules.rules, id, familyKey, langId), family));
+            results.put(key, result);
+        }
+        return result.chain.clone();
+    }
+
+    /**
+     * Keep at most so many results, the least recently used are dropped.
+     * For long running processes that resolve names from outside.
+     *
+     * @param limit Number of results.
+     */
+    public void setCacheLimit(final int limit) {
+        cache = Collections.synchronizedMap(new LinkedHashMap<Long, Result>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Result> eldest) {
+                return size() > limit;
+            }
+        });
+    }
+
+    /**
+     * @param ids Ids of a chain, UNKNOWN for the family resolved.
+     * @param family Family resolved.
+     */
+    private static String[] names(int[] ids, String family) {
+        String[] names = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            names[i] = ids[i] == UNKNOWN ? family : SymbolTable.FAMILIES.name(ids[i]);
+        }
+        return names;
+    }
+
+    /**
+     * Resolve a family for every language of FontConfig.LANGUAGES.
+     *
+     * @param family Font family.
+     * @return Family chains in order of FontConfig.LANGUAGES.
+     */
+    public String[][] resolveAll(String family) {
+        String[][] chains = new String[FontConfig.LANGUAGES.length][];
+        for (int i = 0; i < chains.length; i++) {
+            chains[i] = resolve(family, FontConfig.LANGUAGES[i]);
+        }
+        return chains;
+    }
+
+    private Rule[] compile() {
+        List<Rule> list = new ArrayList<>();
+        for (FontMatch match : config.matchList) {
+            if (match.isEmpty()) {
+                continue; // Not written to the file
+            }
+            Rule rule = new Rule();
+            rule.setFamily(match.familyTest);
+            if (match.langTest != null && !match.langTest.equalsIgnoreCase("en")) {
+                rule.lang = SymbolTable.FAMILIES.id(langKey(match.langTest));
+            }
+            rule.setPrefer(match.familyEdit);
+            rule.source = match.source;
+            rule.kind = 0;
+            list.add(rule);
+        }
+        for (FontAlias alias : config.aliasList) {
+            if (alias.isEmpty()) {
+                continue;
+            }
+            Rule rule = new Rule();
+            rule.setFamily(alias.family);
+            rule.setPrefer(new String[]{alias.prefer});
+            rule.source = alias.source;
+            rule.kind = 1;
+            list.add(rule);
+        }
+
+        // Stable, so unsaved rules keep their list order
+        Collections.sort(list, new Comparator<Rule>() {
+            @Override
+            public int compare(Rule a, Rule b) {
+                if (a.source >= 0 && b.source >= 0) {
+                    return Integer.compare(a.source, b.source);
+                } else if (a.source >= 0 || b.source >= 0) {
+                    return a.source >= 0 ? -1 : 1;
+                }
+                return Integer.compare(a.kind, b.kind);
+            }
+        });
+
+        SystemFontConfig current = system;
+        if (current != null) {
+            List<Rule> rules = new ArrayList<>();
+            for (SystemFontConfig.Rule source : current.rules) {
+                int mode = Arrays.asList(MODES).indexOf(source.mode);
+                if (mode < 0) {
+                    continue; // delete and delete_all, not in family lists
+                }
+                Rule rule = new Rule();
+                if (source.family != null) {
+                    rule.setFamily(source.family);
+                }
+                if (source.lang != null) {
+                    rule.lang = SymbolTable.FAMILIES.id(langKey(source.lang));
+                }
+                rule.setPrefer(source.families);
+                rule.mode = mode;
+                rules.add(rule);
+            }
+            // Without an include of the config, fontconfig would not read it
+            rules.addAll(current.userPosition >= 0 ? current.userPosition : rules.size(), list);
+            list = rules;
+        }
+        return list.toArray(new Rule[list.size()]);
+    }
+
+    /**
+     * @return Ids of the family chain.
+     */
+    private static int[] apply(Rule[] rules, int family, int key, int lang) {
+        int[] families = new int[16];
+        int[] keys = new int[16];
+        int size = 1;
+        families[0] = family;
+        keys[0] = key;
+
+        for (Rule rule : rules) {
+            if (rule.lang != SymbolTable.NONE && rule.lang != lang) {
+                continue;
+            }
+            int position = -1;
+            if (rule.family != SymbolTable.NONE) {
+                position = indexOf(keys, size, rule.family);
+                if (position < 0) {
+                    continue;
+                }
+            }
+            // Without a family test, edits work on the start or the end
+            int at;
+            switch (rule.mode) {
+                case PREPEND:
+                    at = Math.max(position, 0);
+                    break;
+                case APPEND:
+                    at = position >= 0 ? position + 1 : size;
+                    break;
+                case APPEND_LAST:
+                    at = size;
+                    break;
+                case ASSIGN:
+                    at = Math.max(position, 0);
+                    if (at < size) {
+                        System.arraycopy(families, at + 1, families, at, size - at - 1);
+                        System.arraycopy(keys, at + 1, keys, at, size - at - 1);
+                        size--;
+                    }
+                    break;
+                case ASSIGN_REPLACE:
+                    at = 0;
+                    size = 0;
+                    break;
+                default: // PREPEND_FIRST
+                    at = 0;
+                    break;
+            }
+            int count = rule.prefer.length;
+            if (size + count > families.length) {
+                families = Arrays.copyOf(families, Math.max(families.length * 2, size + count));
+                keys = Arrays.copyOf(keys, families.length);
+            }
+            System.arraycopy(families, at, families, at + count, size - at);
+            System.arraycopy(keys, at, keys, at + count, size - at);
+            System.arraycopy(rule.prefer, 0, families, at, count);
+            System.arraycopy(rule.preferKeys, 0, keys, at, count);
+            size += count;
+        }
+
+        // fontconfig uses the first one installed, later duplicates never win
+        int[] chain = new int[size];
+        int length = 0;
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < size; i++) {
+            if (seen.add(keys[i])) {
+                chain[length++] = families[i];
+            }
+        }
+        return Arrays.copyOf(chain, length);
+    }
+
+    private static int indexOf(int[] values, int size, int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param family Font family.
+     * @return Family in lower case without blanks.
+     */
+    static String familyKey(String family) {
+        StringBuilder key = new StringBuilder(family.length());
+        for (int i = 0; i < family.length(); i++) {
+            char c = family.charAt(i);
+            if (c != ' ' && c != '\t') {
+                key.append(c);
+            }
+        }
+        return key.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param lang Language.
+     * @return Language in lower case with "-" as separator.
+     */
+    static String langKey(String lang) {
+        return lang.trim().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read font files directly, without Java2D.
+ *
+ * Only the name, OS/2 and cmap tables are read, from memory-mapped files, so
+ * only a few pages of each file are touched and nothing is loaded into the
+ * heap but the results. Directories are walked and files are read in parallel
+ * on a fork-join pool. Works without display.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class FontScanner {
+
+    private static final int TAG_TTCF = 0x74746366; // "ttcf"
+    private static final int TAG_NAME = 0x6E616D65; // "name"
+    private static final int TAG_OS2 = 0x4F532F32;  // "OS/2"
+    private static final int TAG_CMAP = 0x636D6170; // "cmap"
+
+    private final ForkJoinPool pool;
+    private final Set<String> visited = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentLinkedQueue<FontFace> faces = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger fileCount = new AtomicInteger();
+    private long elapsed;
+
+    public FontScanner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads Number of threads to read files.
+     */
+    public FontScanner(int threads) {
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Scan directories and their subdirectories. Directories reached twice,
+     * by symbolic links or overlapping roots, are scanned once.
+     *
+     * @param dirs Directories to scan, missing ones are ignored.
+     * @return Faces of all font files found.
+     */
+    public List<FontFace> scan(List<File> dirs) {
+        visited.clear();
+        faces.clear();
+        fileCount.set(0);
+
+        long start = System.nanoTime();
+        List<DirectoryTask> tasks = new ArrayList<>();
+        for (File dir : dirs) {
+            tasks.add(new DirectoryTask(dir, true));
+        }
+        pool.invoke(new ForkAll(tasks));
+        elapsed = System.nanoTime() - start;
+
+        Logger.getLogger(FontScanner.class.getName()).log(Level.INFO,
+                "Scanned {0} font files ({1} faces) in {2} ms, {3} files/s",
+                new Object[]{fileCount.get(), faces.size(), elapsed / 1000000, Math.round(getFilesPerSecond())});
+        return new ArrayList<>(faces);
+    }
+
+    /**
+     * Read some font files in parallel.
+     *
+     * @param files Font files.
+     * @return Faces of files that could be read.
+     */
+    public List<FontFace> scanFiles(List<File> files) {
+        faces.clear();
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (File file : files) {
+            tasks.add(new FileTask(file));
+        }
+        pool.invoke(new ForkAll(tasks));
+        return new ArrayList<>(faces);
+    }
+
+    /**
+     * Stop worker threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * @return Number of font files read by last scan().
+     */
+    public int getFileCount() {
+        return fileCount.get();
+    }
+
+    /**
+     * @return Throughput of last scan().
+     */
+    public double getFilesPerSecond() {
+        return elapsed > 0 ? fileCount.get() / (elapsed / 1e9) : 0;
+    }
+
+    /**
+     * Check file name extension of font files.
+     *
+     * @param name File name.
+     * @return True for TrueType, OpenType and their collections.
+     */
+    public static boolean isFontFile(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".ttf") || lower.endsWith(".otf")
+                || lower.endsWith(".ttc") || lower.endsWith(".otc");
+    }
+
+    private class ForkAll extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends RecursiveAction> tasks;
+
+        ForkAll(List<? extends RecursiveAction> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+        private final boolean recursive;
+
+        DirectoryTask(File dir, boolean recursive) {
+            this.dir = dir;
+            this.recursive = recursive;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (!visited.add(dir.getCanonicalPath())) {
+                    return;
+                }
+            } catch (IOException ex) {
+                return;
+            }
+
+            File[] children = dir.listFiles();
+            if (children == null) {
+                return;
+            }
+            List<RecursiveAction> tasks = new ArrayList<>();
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    if (recursive) {
+                        tasks.add(new DirectoryTask(child, true));
+                    }
+                } else if (isFontFile(child.getName())) {
+                    tasks.add(new FileTask(child));
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private class FileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+
+        FileTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected void compute() {
+            fileCount.incrementAndGet();
+            try {
+                faces.addAll(read(file));
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(FontScanner.class.getName()).log(Level.FINE, file.getPath(), ex);
+            }
+        }
+    }
+
+    /**
+     * Read all faces of a font file.
+     *
+     * @param file TrueType or OpenType font or collection.
+     * @return Faces in the file.
+     * @throws IOException If the file cannot be read or is not a font.
+     */
+    public static List<FontFace> read(File file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        List<FontFace> list = new ArrayList<>();
+        try {
+            if (buffer.getInt(0) == TAG_TTCF) {
+                int count = buffer.getInt(8);
+                for (int i = 0; i < count; i++) {
+                    FontFace face = readFace(buffer, buffer.getInt(12 + i * 4), file);
+                    face.index = i;
+                    list.add(face);
+                }
+            } else {
+                list.add(readFace(buffer, 0, file));
+            }
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IOException("Broken font file: " + file, ex);
+        }
+        return list;
+    }
+
+    private static FontFace readFace(ByteBuffer buffer, int offset, File file) throws IOException {
+        int version = buffer.getInt(offset);
+        if (version != 0x00010000 && version != 0x4F54544F && version != 0x74727565) { // 1.0, "OTTO", "true"
+            throw new IOException("Not a font file: " + file);
+        }
+
+        FontFace face = new FontFace();
+        face.file = file;
+
+        int tables = ushort(buffer, offset + 4);
+        for (int i = 0; i < tables; i++) {
+            int record = offset + 12 + i * 16;
+            int tag = buffer.getInt(record);
+            int tableOffset = buffer.getInt(record + 8);
+            int length = buffer.getInt(record + 12);
+            switch (tag) {
+                case TAG_NAME:
+                    readName(buffer, tableOffset, face);
+                    break;
+                case TAG_OS2:
+                    readOS2(buffer, tableOffset, length, face);
+                    break;
+                case TAG_CMAP:
+                    readCmap(buffer, tableOffset, face);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (face.family == null) {
+            throw new IOException("No font family name: " + file);
+        }
+        if (face.style == null) {
+            face.style = "Regular";
+        }
+        return face;
+    }
+
+    private static void readName(ByteBuffer buffer, int table, FontFace face) {
+        int count = ushort(buffer, table + 2);
+        int strings = table + ushort(buffer, table + 4);
+
+        // nameID 1 family, 2 subfamily, 16 typographic family, 17 typographic subfamily
+        String[] names = new String[18];
+        int[] scores = new int[18];
+        for (int i = 0; i < count; i++) {
+            int record = table + 6 + i * 12;
+            int platform = ushort(buffer, record);
+            int language = ushort(buffer, record + 4);
+            int nameId = ushort(buffer, record + 6);
+            if (nameId != 1 && nameId != 2 && nameId != 16 && nameId != 17) {
+                continue;
+            }
+
+            int score;
+            Charset charset;
+            if (platform == 3 || platform == 0) {
+                score = platform == 3 && language == 0x409 ? 3 : 2; // Prefer English
+                charset = StandardCharsets.UTF_16BE;
+            } else if (platform == 1 && language == 0) {
+                score = 1;
+                charset = StandardCharsets.ISO_8859_1;
+            } else {
+                continue;
+            }
+            if (score <= scores[nameId]) {
+                continue;
+            }
+
+            byte[] bytes = new byte[ushort(buffer, record + 8)];
+            int position = strings + ushort(buffer, record + 10);
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = buffer.get(position + j);
+            }
+            names[nameId] = new String(bytes, charset).trim();
+            scores[nameId] = score;
+        }
+
+        face.family = names[16] != null ? names[16] : names[1];
+        face.style = names[17] != null ? names[17] : names[2];
+    }
+
+    private static void readOS2(ByteBuffer buffer, int table, int length, FontFace face) {
+        int version = ushort(buffer, table);
+        face.weight = ushort(buffer, table + 4);
+        if (length >= 58) {
+            face.unicodeRanges = new int[]{
+                buffer.getInt(table + 42), buffer.getInt(table + 46),
+                buffer.getInt(table + 50), buffer.getInt(table + 54)
+            };
+        }
+        if (version >= 1 && length >= 86) {
+            face.codePages = (buffer.getInt(table + 78) & 0xFFFFFFFFL) | ((long) buffer.getInt(table + 82) << 32);
+        }
+    }
+
+    private static void readCmap(ByteBuffer buffer, int table, FontFace face) {
+        // Pick the subtable with most characters: format 12 over format 4
+        int best = -1;
+        int bestScore = 0;
+        int count = ushort(buffer, table + 2);
+        for (int i = 0; i < count; i++) {
+            int record = table + 4 + i * 8;
+            int platform = ushort(buffer, record);
+            int encoding = ushort(buffer, record + 2);
+            int subtable = table + buffer.getInt(record + 4);
+            int format = ushort(buffer, subtable);
+
+            int score = 0;
+            if (format == 12 && (platform == 0 || (platform == 3 && encoding == 10))) {
+                score = 4;
+            } else if (format == 4 && (platform == 0 || (platform == 3 && encoding == 1))) {
+                score = 3;
+            } else if (format == 4 && platform == 3 && encoding == 0) {
+                score = 1; // Symbol font
+            }
+            if (score > bestScore) {
+                best = subtable;
+                bestScore = score;
+            }
+        }
+        if (best < 0) {
+            return;
+        }
+
+        Ranges ranges = new Ranges();
+        if (ushort(buffer, best) == 12) {
+            long groups = buffer.getInt(best + 12) & 0xFFFFFFFFL;
+            for (int i = 0; i < groups; i++) {
+                int group = best + 16 + i * 12;
+                ranges.add(buffer.getInt(group), buffer.getInt(group + 4));
+            }
+        } else {
+            int segments = ushort(buffer, best + 6) / 2;
+            int ends = best + 14;
+            int starts = ends + segments * 2 + 2;
+            int deltas = starts + segments * 2;
+            int rangeOffsets = deltas + segments * 2;
+            for (int i = 0; i < segments; i++) {
+                int start = ushort(buffer, starts + i * 2);
+                int end = ushort(buffer, ends + i * 2);
+                int delta = ushort(buffer, deltas + i * 2);
+                int rangeOffset = ushort(buffer, rangeOffsets + i * 2);
+                if (start == 0xFFFF) {
+                    break;
+                }
+                if (rangeOffset == 0) {
+                    ranges.add(start, end);
+                    continue;
+                }
+                // Glyph ids from glyphIdArray, 0 means missing
+                for (int c = start; c <= end; c++) {
+                    int glyph = ushort(buffer, rangeOffsets + i * 2 + rangeOffset + (c - start) * 2);
+                    if (glyph != 0 && ((glyph + delta) & 0xFFFF) != 0) {
+                        ranges.add(c, c);
+                    }
+                }
+            }
+        }
+        face.coverage = ranges.toArray();
+    }
+
+    private static int ushort(ByteBuffer buffer, int position) {
+        return buffer.getShort(position) & 0xFFFF;
+    }
+
+    /**
+     * Sorted, merged code point ranges.
+     */
+    static class Ranges {
+        private int[] data = new int[64];
+        private int size;
+        private boolean sorted = true;
+
+        void add(int first, int last) {
+            if (last < first) {
+                return;
+            }
+            if (size > 0) {
+                if (first < data[size - 2]) {
+                    sorted = false;
+                } else if (first <= data[size - 1] + 1) {
+                    data[size - 1] = Math.max(data[size - 1], last);
+                    return;
+                }
+            }
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = first;
+            data[size++] = last;
+        }
+
+        int[] toArray() {
+            if (sorted) {
+                return Arrays.copyOf(data, size);
+            }
+            // Rare: sort pairs by first code point and merge again
+            long[] pairs = new long[size / 2];
+            for (int i = 0; i < pairs.length; i++) {
+                pairs[i] = ((long) data[i * 2] << 32) | (data[i * 2 + 1] & 0xFFFFFFFFL);
+            }
+            Arrays.sort(pairs);
+            Ranges merged = new Ranges();
+            for (long pair : pairs) {
+                merged.add((int) (pair >>> 32), (int) pair);
+            }
+            return merged.toArray();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * List of rules that also finds them by key, like the family and language a
+ * match tests. The list keeps the order rules are written in, the index finds
+ * a rule without scanning it.
+ *
+ * Adding, removing and setting update the index. Other changes, like
+ * removeIf() or a sub list, are noticed by the version and rebuild it. Rules
+ * must not change their key while they are in the list, call reindex() if
+ * they do.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ * @param <E> Element type.
+ */
+public class IndexedList<E extends IndexedList.Keyed> extends VersionedList<E> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Element with a key.
+     */
+    public interface Keyed {
+
+        /**
+         * @return Key, equal for rules that test the same.
+         */
+        long key();
+    }
+
+    // Key to the element, or to a list of elements with the same key
+    private final Map<Long, Object> index = new HashMap<>();
+    private int indexedVersion;
+
+    /**
+     * @param key Key of a rule.
+     * @return First added rule with the key, null if none.
+     */
+    public E find(long key) {
+        checkIndex();
+        Object value = index.get(key);
+        if (value instanceof List) {
+            return first(value);
+        }
+        return cast(value);
+    }
+
+    /**
+     * @param key Key of a rule.
+     * @return Number of rules with the key.
+     */
+    public int count(long key) {
+        checkIndex();
+        Object value = index.get(key);
+        return value == null ? 0 : value instanceof List ? ((List<?>) value).size() : 1;
+    }
+
+    /**
+     * Add a rule unless one with the same key is in the list.
+     *
+     * @param element Rule.
+     * @return The rule with the same key, null if element was added.
+     */
+    public E putIfAbsent(E element) {
+        E existing = find(element.key());
+        if (existing == null) {
+            add(element);
+        }
+        return existing;
+    }
+
+    /**
+     * Build the index again, after rules changed their keys.
+     */
+    public void reindex() {
+        index.clear();
+        for (E element : this) {
+            link(element);
+        }
+        indexedVersion = getVersion();
+    }
+
+    @Override
+    public boolean add(E element) {
+        checkIndex();
+        super.add(element);
+        link(element);
+        indexedVersion = getVersion();
+        return true;
+    }
+
+    @Override
+    public void add(int position, E element) {
+        checkIndex();
+        super.add(position, element);
+        // Keep the first in list order first in the index
+        if (index.containsKey(element.key())) {
+            reindex();
+        } else {
+            link(element);
+            indexedVersion = getVersion();
+        }
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> elements) {
+        checkIndex();
+        super.addAll(elements);
+        for (E element : elements) {
+            link(element);
+        }
+        indexedVersion = getVersion();
+        return !elements.isEmpty();
+    }
+
+    @Override
+    public E remove(int position) {
+        checkIndex();
+        E element = super.remove(position);
+        unlink(element);
+        indexedVersion = getVersion();
+        return element;
+    }
+
+    @Override
+    public boolean remove(Object element) {
+        checkIndex();
+        int position = indexOf(element);
+        if (position < 0) {
+            return false;
+        }
+        remove(position);
+        return true;
+    }
+
+    @Override
+    public E set(int position, E element) {
+        checkIndex();
+        E old = super.set(position, element);
+        unlink(old);
+        if (index.containsKey(element.key())) {
+            reindex();
+        } else {
+            link(element);
+            indexedVersion = getVersion();
+        }
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        index.clear();
+        indexedVersion = getVersion();
+    }
+
+    /**
+     * Find an element by its key first, then compare the few with it.
+     */
+    @Override
+    public int indexOf(Object element) {
+        if (!(element instanceof Keyed) || count(((Keyed) element).key()) == 0) {
+            return -1;
+        }
+        return super.indexOf(element);
+    }
+
+    @Override
+    public boolean contains(Object element) {
+        return indexOf(element) >= 0;
+    }
+
+    private void checkIndex() {
+        if (indexedVersion != getVersion()) {
+            reindex();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void link(E element) {
+        Long key = element.key();
+        Object value = index.get(key);
+        if (value == null) {
+            index.put(key, element);
+        } else if (value instanceof List) {
+            ((List<E>) value).add(element);
+        } else {
+            List<E> same = new ArrayList<>(2);
+            same.add((E) value);
+            same.add(element);
+            index.put(key, same);
+        }
+    }
+
+    private void unlink(E element) {
+        Long key = element.key();
+        Object value = index.get(key);
+        if (value instanceof List) {
+            List<?> same = (List<?>) value;
+            same.remove(element);
+            if (same.size() == 1) {
+                index.put(key, same.get(0));
+            }
+        } else if (value == element) {
+            index.remove(key);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private E first(Object list) {
+        return ((List<E>) list).get(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private E cast(Object value) {
+        return (E) value;
+    }
+}
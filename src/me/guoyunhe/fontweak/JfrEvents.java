@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of Metrics spans. Record them with
+ * "-XX:StartFlightRecording" or jcmd JFR.start on a running Fontweak.
+ *
+ * Metrics loads this class by name when jdk.jfr exists. The build leaves it
+ * out on older JDKs, Fontweak still runs on Java 7 and 8.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+class JfrEvents implements Metrics.Recorder {
+
+    @Category("Fontweak")
+    @StackTrace(false)
+    abstract static class Operation extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Matches")
+        int matches;
+
+        @Label("Aliases")
+        int aliases;
+
+        @Label("Fonts")
+        int fonts;
+    }
+
+    @Name("fontweak.ConfigRead")
+    @Label("Config Read")
+    @Description("fonts.conf read into the model, parsed or from its snapshot")
+    static class ConfigRead extends Operation {
+    }
+
+    @Name("fontweak.ConfigWrite")
+    @Label("Config Write")
+    static class ConfigWrite extends Operation {
+    }
+
+    @Name("fontweak.ConfigMigrate")
+    @Label("Config Migrate")
+    @Description("Legacy ~/.fonts.conf moved or default config created")
+    static class ConfigMigrate extends Operation {
+    }
+
+    @Name("fontweak.FontList")
+    @Label("Font List")
+    @Description("Installed fonts read from cache or enumerated")
+    static class FontList extends Operation {
+    }
+
+    @Name("fontweak.ModelRebuild")
+    @Label("Model Rebuild")
+    @Description("Swing models filled from the config or font list")
+    static class ModelRebuild extends Operation {
+    }
+
+    @Name("fontweak.Operation")
+    @Label("Other Operation")
+    static class Other extends Operation {
+    }
+
+    @Override
+    public Object begin(String name) {
+        Operation event;
+        if (name.equals("config.read")) {
+            event = new ConfigRead();
+        } else if (name.equals("config.write")) {
+            event = new ConfigWrite();
+        } else if (name.equals("config.migrate")) {
+            event = new ConfigMigrate();
+        } else if (name.startsWith("fonts.")) {
+            event = new FontList();
+        } else if (name.startsWith("ui.")) {
+            event = new ModelRebuild();
+        } else {
+            event = new Other();
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commit(Object started, Metrics.Span span) {
+        Operation event = (Operation) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = span.name;
+            event.bytesRead = span.bytesRead;
+            event.bytesWritten = span.bytesWritten;
+            event.matches = span.matches;
+            event.aliases = span.aliases;
+            event.fonts = span.fonts;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Language coverage summary of fonts, one bit per script. A font supports a
+ * script if it has all sample characters of it, and a language if it supports
+ * all scripts the language needs.
+ *
+ * The bits are stored in FontIndex, change FontIndex.VERSION when changing
+ * them.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+final class LanguageCoverage {
+
+    static final String[] SCRIPTS = {
+        "Latin", "Latin Extended", "Vietnamese", "Greek", "Cyrillic", "Armenian",
+        "Hebrew", "Arabic", "Syriac", "Thaana", "NKo", "Devanagari", "Bengali",
+        "Gurmukhi", "Gujarati", "Oriya", "Tamil", "Telugu", "Kannada", "Malayalam",
+        "Sinhala", "Thai", "Lao", "Tibetan", "Myanmar", "Georgian", "Hangul",
+        "Ethiopic", "Cherokee", "Canadian Syllabics", "Khmer", "Mongolian",
+        "Ol Chiki", "Kana", "Han", "Han Simplified", "Han Traditional", "Yi",
+        "Tifinagh"
+    };
+
+    // Sample characters of each script in SCRIPTS
+    private static final int[][] SAMPLES = {
+        {'A', 'Z', 'a', 'z'},
+        {0x0107, 0x010D, 0x0142, 0x0151, 0x017E},
+        {0x01A1, 0x01B0, 0x1EA1, 0x1EBF},
+        {0x0391, 0x03A9, 0x03B1, 0x03C9},
+        {0x0410, 0x042F, 0x0430, 0x044F},
+        {0x0531, 0x0561},
+        {0x05D0, 0x05EA},
+        {0x0627, 0x0644, 0x064A},
+        {0x0710, 0x072C},
+        {0x0780, 0x07A5},
+        {0x07CA, 0x07EA},
+        {0x0905, 0x0939},
+        {0x0985, 0x09B9},
+        {0x0A05, 0x0A39},
+        {0x0A85, 0x0AB9},
+        {0x0B05, 0x0B39},
+        {0x0B85, 0x0BB9},
+        {0x0C05, 0x0C39},
+        {0x0C85, 0x0CB9},
+        {0x0D05, 0x0D39},
+        {0x0D85, 0x0DC6},
+        {0x0E01, 0x0E2E},
+        {0x0E81, 0x0EAE},
+        {0x0F40, 0x0F66},
+        {0x1000, 0x1021},
+        {0x10D0, 0x10F0},
+        {0x3131, 0xAC00, 0xD7A3},
+        {0x1200, 0x1350},
+        {0x13A0, 0x13F4},
+        {0x1401, 0x1676},
+        {0x1780, 0x17A2},
+        {0x1820, 0x1842},
+        {0x1C5A, 0x1C7D},
+        {0x3042, 0x3093, 0x30A2, 0x30F3},
+        {0x4E00, 0x4E2D, 0x5B57, 0x6587},
+        {0x4E48, 0x4EEC, 0x8BF4, 0x8FD9},
+        {0x5011, 0x8AAA, 0x9019, 0x9EBC},
+        {0xA000, 0xA48C},
+        {0x2D30, 0x2D65}
+    };
+
+    // Languages not written in basic Latin, as "languages=scripts"
+    private static final String[] LANGUAGES = {
+        "cs sk pl hu sl hr bs lt lv ro tr az-az et mt eo ku-tr tk uz csb hsb wen sh sma smj smn sms se=Latin,Latin Extended",
+        "vi=Latin,Vietnamese",
+        "el=Greek",
+        "ab av ba be bg bua ce chm cu cv kk ku-am kum kv ky lez mk mn-mn os ru sah sel sr tg tt tyv uk=Cyrillic",
+        "hy=Armenian",
+        "he yi=Hebrew",
+        "ar fa ur ps-af ps-pk ug ku-iq ku-ir sd ks ota lah pa-pk az-ir=Arabic",
+        "syr=Syriac",
+        "dv=Thaana",
+        "nqo=NKo",
+        "hi mr ne sa bh bho mai hne doi kok brx=Devanagari",
+        "bn as mni=Bengali",
+        "pa=Gurmukhi",
+        "gu=Gujarati",
+        "or=Oriya",
+        "ta=Tamil",
+        "te=Telugu",
+        "kn=Kannada",
+        "ml=Malayalam",
+        "si=Sinhala",
+        "th=Thai",
+        "lo=Lao",
+        "bo dz=Tibetan",
+        "my=Myanmar",
+        "ka=Georgian",
+        "ko=Hangul",
+        "am byn gez sid ti-er ti-et tig wal=Ethiopic",
+        "chr=Cherokee",
+        "iu=Canadian Syllabics",
+        "km=Khmer",
+        "mn-cn=Mongolian",
+        "sat=Ol Chiki",
+        "ja=Kana,Han",
+        "zh-cn zh-sg=Han,Han Simplified",
+        "zh-tw zh-hk zh-mo=Han,Han Traditional",
+        "ii=Yi",
+        "ber-ma=Tifinagh"
+    };
+
+    private static final Map<String, Long> REQUIRED = new HashMap<>();
+
+    static {
+        for (String line : LANGUAGES) {
+            String[] parts = line.split("=");
+            long mask = 0;
+            for (String script : parts[1].split(",")) {
+                mask |= bit(script);
+            }
+            for (String lang : parts[0].split(" ")) {
+                REQUIRED.put(lang, mask);
+            }
+        }
+    }
+
+    private LanguageCoverage() {
+    }
+
+    private static long bit(String script) {
+        for (int i = 0; i < SCRIPTS.length; i++) {
+            if (SCRIPTS[i].equals(script)) {
+                return 1L << i;
+            }
+        }
+        throw new IllegalArgumentException(script);
+    }
+
+    /**
+     * @param face Scanned font face.
+     * @return Bits of scripts the face supports.
+     */
+    static long summarize(FontFace face) {
+        long mask = 0;
+        for (int i = 0; i < SAMPLES.length; i++) {
+            boolean all = true;
+            for (int c : SAMPLES[i]) {
+                if (!face.covers(c)) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @param lang fontconfig language like "zh-cn", case-insensitive.
+     * @return Bits of scripts needed by the language. Basic Latin for
+     * languages not known.
+     */
+    static long required(String lang) {
+        Long mask = REQUIRED.get(lang.toLowerCase(Locale.ROOT).replace('_', '-'));
+        return mask != null ? mask : 1L;
+    }
+
+    /**
+     * @param languages Bits of a font.
+     * @param lang fontconfig language.
+     * @return True if the font supports the language.
+     */
+    static boolean supports(long languages, String lang) {
+        long required = required(lang);
+        return (languages & required) == required;
+    }
+}
@@ -16,16 +16,57 @@
  */
 package me.guoyunhe.fontweak;
 
+import java.awt.Component;
 import java.awt.Desktop;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.swing.AbstractAction;
+import javax.swing.Action;
 import javax.swing.DefaultComboBoxModel;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.DefaultListModel;
 import javax.swing.ImageIcon;
+import javax.swing.InputMap;
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.table.DefaultTableModel;
+import javax.xml.stream.XMLStreamException;
 
 /**
  *
@@ -36,17 +77,46 @@ public class MainWindow extends javax.swing.JFrame {
     private final ImageIcon appIcon;
     private final FontConfig fontconfig;
     private final SystemFontList sysfonts;
+    private final FontResolver resolver;
+    private ConfigWatcher watcher;
+    private final FontChooser.Model aliasFontModel;
+    private final PreviewRenderer previewRenderer;
+    private FontPreview matchPreview;
+    private FontPreview aliasPreview;
+    private ConfigHistory history;
+    // Set while widgets are changed by undo or reload, not by the user
+    private boolean restoring;
+    private JButton undoButton;
+    private JButton redoButton;
+    // Alias rows are added when the alias tab is first shown
+    private boolean aliasesShown;
+    // Baseline merged since the last save, remembered when saved
+    private File mergedBaseline;
+    private final Startup startup;
+    private boolean painted;
+    // Create match dialog, built when first opened
+    private javax.swing.JDialog createMatchDialog;
+    private javax.swing.JPanel createMatchDialogButtonPanel;
+    private javax.swing.JButton createMatchDialogCancelButton;
+    private javax.swing.JComboBox<String> createMatchDialogFamilyComboBox;
+    private javax.swing.JLabel createMatchDialogFamilyLabel;
+    private javax.swing.JComboBox<String> createMatchDialogLanguageComboBox;
+    private javax.swing.JLabel createMatchDialogLanguageLabel;
+    private javax.swing.JButton createMatchDialogOkButton;
+    private javax.swing.JPanel createMatchDialogOptionPanel;
     private final DefaultListModel<String> matchListModel;
     private final DefaultListModel<String> fontListModel;
     private final DefaultTableModel aliasTableModel;
 
     /**
      * Creates new form MainWindow
+     *
+     * @param startup Config, fonts and icon, loaded while the form is built.
      */
-    public MainWindow() {
-        appIcon = new ImageIcon(getClass().getResource("/me/guoyunhe/fontweak/img/icon-256.png"));
-        sysfonts = new SystemFontList();
-        fontconfig = new FontConfig();
+    public MainWindow(Startup startup) {
+        this.startup = startup;
+        appIcon = startup.getIcon();
+        sysfonts = startup.getFontList();
         matchListModel = new DefaultListModel<>();
         fontListModel = new DefaultListModel<>();
         aliasTableModel = new DefaultTableModel(
@@ -65,30 +135,600 @@ public class MainWindow extends javax.swing.JFrame {
             }
         };
 
+        aliasFontModel = new FontChooser.Model(sysfonts.get());
+        previewRenderer = new PreviewRenderer();
+
         initComponents();
+        startup.mark("form built");
+        FontChooser.install(aliasComboBox, aliasFontModel);
+        addPreviews();
+        fontconfig = startup.getConfig();
+        resolver = new FontResolver(fontconfig);
         loadConfig();
+        startup.mark("config shown");
+        history = new ConfigHistory(fontconfig, getOptions());
+        addUndo();
+        addTransfer();
+        updatePreviews();
+
+        // Show what a match resolves to with all rules applied
+        matchList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+                if (index >= 0 && index < fontconfig.matchList.size()) {
+                    FontMatch match = fontconfig.matchList.get(index);
+                    StringBuilder chain = new StringBuilder();
+                    for (String family : resolver.resolve(match.familyTest, match.langTest)) {
+                        if (chain.length() > 0) {
+                            chain.append(", ");
+                        }
+                        chain.append(family);
+                    }
+                    setToolTipText(chain.toString());
+                }
+                return this;
+            }
+        });
+
+        // Cached font list is shown first, refresh if fonts changed
+        sysfonts.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                String[] names = sysfonts.get();
+                Metrics.Span span = Metrics.start("ui.fontModel").fonts(names.length);
+                aliasFontModel.setNames(names);
+                span.end();
+            }
+        });
+        sysfonts.addDirs(fontconfig.dirList);
+        sysfonts.refresh();
+        loadSystemConfig();
+
+        // Reload what others change while the window is open
+        try {
+            watcher = new ConfigWatcher(new ConfigWatcher.Listener() {
+                @Override
+                public void changed(final ConfigWatcher.Change change) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            filesChanged(change);
+                        }
+                    });
+                }
+            });
+            watcher.watchConfig(fontconfig.getFile());
+            watcher.watchFonts(sysfonts.getFontDirs());
+        } catch (IOException ex) {
+            Logger.getLogger(MainWindow.class.getName()).log(Level.WARNING, null, ex);
+        }
+        registerService();
     }
 
-    private void loadConfig() {
-        fontconfig.readConfig();
+    /**
+     * Show the config in JConsole. Operations run on the EDT like the
+     * window's own reload and save. Registered in background, the MBean
+     * server is slow to start.
+     */
+    private void registerService() {
+        final FontConfigService service = new FontConfigService(fontconfig, sysfonts, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                SwingUtilities.invokeLater(task);
+            }
+        }) {
+            @Override
+            protected boolean reloadModel() throws IOException, XMLStreamException {
+                return reloadConfig();
+            }
 
-        if (fontconfig.matchList != null && !fontconfig.matchList.isEmpty()) {
-            for (FontMatch match : fontconfig.matchList) {
-                if (match.langTest != null) {
-                    matchListModel.addElement(match.familyTest + " [" + match.langTest + "]");
-                } else {
-                    matchListModel.addElement(match.familyTest);
+            @Override
+            protected void saveModel() {
+                saveConfig();
+            }
+        };
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws JMException {
+                service.register();
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    Logger.getLogger(MainWindow.class.getName()).log(Level.WARNING, null, ex);
                 }
             }
+        }.execute();
+    }
 
-            matchList.setSelectedIndex(0);
+    @Override
+    public void paint(java.awt.Graphics g) {
+        super.paint(g);
+        if (!painted) {
+            painted = true;
+            startup.firstPaint();
         }
+    }
 
-        if (fontconfig.aliasList != null && !fontconfig.aliasList.isEmpty()) {
-            for (FontAlias alias : fontconfig.aliasList) {
+    /**
+     * Load system rules in background, they only add to the tooltips.
+     */
+    private void loadSystemConfig() {
+        new SwingWorker<SystemFontConfig, Void>() {
+            @Override
+            protected SystemFontConfig doInBackground() {
+                return SystemFontConfig.load(fontconfig.getFile());
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    SystemFontConfig system = get();
+                    resolver.setSystemConfig(system);
+                    matchList.repaint();
+                    if (watcher != null) {
+                        watcher.watchSystem(system);
+                    }
+                } catch (InterruptedException | ExecutionException ex) {
+                    Logger.getLogger(MainWindow.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }.execute();
+    }
+
+    private void filesChanged(ConfigWatcher.Change change) {
+        if (change.config) {
+            try {
+                reloadConfig();
+            } catch (IOException | XMLStreamException ex) {
+                Logger.getLogger(MainWindow.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        if (change.system) {
+            loadSystemConfig();
+        }
+        if (!change.fontDirs.isEmpty()) {
+            sysfonts.refresh(change.fontDirs);
+        }
+    }
+
+    /**
+     * Read fonts.conf again after it was changed by others. Only rows of
+     * changed rules are updated, and options not touched in the window.
+     *
+     * @return True if rules or options changed.
+     */
+    private boolean reloadConfig() throws IOException, XMLStreamException {
+        String[] options = new String[FontConfig.OPTIONS.length];
+        for (int i = 0; i < options.length; i++) {
+            options[i] = fontconfig.getOption(i);
+        }
+        int selected = matchList.getSelectedIndex();
+        FontMatch selectedMatch = selected >= 0 ? fontconfig.matchList.get(selected) : null;
+        if (!fontconfig.reload()) {
+            return false;
+        }
+        showRules(selectedMatch);
+
+        // Options changed in the window win until saved
+        restoring = true;
+        if (String.valueOf(antialiasCheckBox.isSelected()).equals(options[0])) {
+            antialiasCheckBox.setSelected(fontconfig.antialias);
+        }
+        if (String.valueOf(hintingCheckBox.isSelected()).equals(options[1])) {
+            hintingCheckBox.setSelected(fontconfig.hinting);
+        }
+        if (options[2].equals(hintstyleComboBox.getSelectedItem())) {
+            hintstyleComboBox.setSelectedItem(fontconfig.hintstyle);
+        }
+        if (options[3].equals(rgbaComboBox.getSelectedItem())) {
+            rgbaComboBox.setSelectedItem(fontconfig.rgba);
+        }
+        if (options[4].equals(lcdfilterComboBox.getSelectedItem())) {
+            lcdfilterComboBox.setSelectedItem(fontconfig.lcdfilter);
+        }
+        if (String.valueOf(embeddedbitmapCheckBox.isSelected()).equals(options[5])) {
+            embeddedbitmapCheckBox.setSelected(fontconfig.embeddedbitmap);
+        }
+        restoring = false;
+        matchList.repaint();
+        updatePreviews();
+        // Undo can take back what others changed too
+        history.changed(getOptions());
+        updateUndo();
+        return true;
+    }
+
+    /**
+     * Update rows of the match list and alias table to the config, changing
+     * only rows that differ.
+     *
+     * @param selectedMatch Match to keep selected, if still in the config.
+     */
+    private void showRules(FontMatch selectedMatch) {
+        Metrics.Span span = Metrics.start("ui.showRules").matches(fontconfig.matchList.size());
+        for (int i = 0; i < fontconfig.matchList.size(); i++) {
+            String label = matchLabel(fontconfig.matchList.get(i));
+            if (i >= matchListModel.getSize()) {
+                matchListModel.addElement(label);
+            } else if (!label.equals(matchListModel.get(i))) {
+                matchListModel.set(i, label);
+            }
+        }
+        while (matchListModel.getSize() > fontconfig.matchList.size()) {
+            matchListModel.remove(matchListModel.getSize() - 1);
+        }
+        int selected = fontconfig.matchList.indexOf(selectedMatch);
+        if (selected >= 0) {
+            matchList.setSelectedIndex(selected);
+        } else if (!fontconfig.matchList.isEmpty()) {
+            matchList.setSelectedIndex(Math.min(Math.max(matchList.getSelectedIndex(), 0), fontconfig.matchList.size() - 1));
+        }
+        selectMatch();
+        span.end();
+        if (aliasesShown) {
+            showAliases();
+        }
+    }
+
+    /**
+     * Update rows of the alias table to the config, changing only rows that
+     * differ.
+     */
+    private void showAliases() {
+        Metrics.Span span = Metrics.start("ui.showAliases").aliases(fontconfig.aliasList.size());
+        for (int i = 0; i < fontconfig.aliasList.size(); i++) {
+            FontAlias alias = fontconfig.aliasList.get(i);
+            if (i >= aliasTableModel.getRowCount()) {
                 aliasTableModel.addRow(new String[]{alias.family, alias.prefer});
+            } else {
+                if (!alias.family.equals(aliasTableModel.getValueAt(i, 0))) {
+                    aliasTableModel.setValueAt(alias.family, i, 0);
+                }
+                if (!alias.prefer.equals(aliasTableModel.getValueAt(i, 1))) {
+                    aliasTableModel.setValueAt(alias.prefer, i, 1);
+                }
+            }
+        }
+        while (aliasTableModel.getRowCount() > fontconfig.aliasList.size()) {
+            aliasTableModel.removeRow(aliasTableModel.getRowCount() - 1);
+        }
+        span.end();
+    }
+
+    /**
+     * Add undo and redo buttons, with Ctrl+Z, Ctrl+Y and Ctrl+Shift+Z.
+     */
+    private void addUndo() {
+        java.util.ResourceBundle bundle = java.util.ResourceBundle.getBundle("me/guoyunhe/fontweak/lang/main");
+        Action undoAction = new AbstractAction(bundle.getString("UNDO")) {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (history.canUndo()) {
+                    showHistory(history.undo());
+                }
+            }
+        };
+        Action redoAction = new AbstractAction(bundle.getString("REDO")) {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (history.canRedo()) {
+                    showHistory(history.redo());
+                }
+            }
+        };
+        undoButton = new JButton(undoAction);
+        undoButton.setMargin(new java.awt.Insets(0, 10, 0, 10));
+        redoButton = new JButton(redoAction);
+        redoButton.setMargin(new java.awt.Insets(0, 10, 0, 10));
+        int position = java.util.Arrays.asList(buttonPanel.getComponents()).indexOf(helpButton) + 1;
+        buttonPanel.add(new javax.swing.Box.Filler(new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 32767)), position++);
+        buttonPanel.add(undoButton, position++);
+        buttonPanel.add(new javax.swing.Box.Filler(new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 32767)), position++);
+        buttonPanel.add(redoButton, position);
+
+        // getMenuShortcutKeyMaskEx() needs Java 10
+        @SuppressWarnings("deprecation")
+        int menu = java.awt.Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
+        InputMap keys = getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, menu), "undo");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Y, menu), "redo");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, menu | InputEvent.SHIFT_DOWN_MASK), "redo");
+        getRootPane().getActionMap().put("undo", undoAction);
+        getRootPane().getActionMap().put("redo", redoAction);
+        updateUndo();
+    }
+
+    private void updateUndo() {
+        undoButton.setEnabled(history.canUndo());
+        redoButton.setEnabled(history.canRedo());
+    }
+
+    /**
+     * Add import and export buttons for rules in CSV or JSON Lines, and
+     * merge of a baseline config.
+     */
+    private void addTransfer() {
+        final java.util.ResourceBundle bundle = java.util.ResourceBundle.getBundle("me/guoyunhe/fontweak/lang/main");
+        final FileNameExtensionFilter filter = new FileNameExtensionFilter(bundle.getString("RULE FILES"), "csv", "jsonl", "json");
+        JButton importButton = new JButton(new AbstractAction(bundle.getString("IMPORT")) {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser chooser = new JFileChooser();
+                chooser.setFileFilter(filter);
+                if (chooser.showOpenDialog(MainWindow.this) == JFileChooser.APPROVE_OPTION) {
+                    importRules(chooser.getSelectedFile());
+                }
+            }
+        });
+        importButton.setMargin(new java.awt.Insets(0, 10, 0, 10));
+        JButton exportButton = new JButton(new AbstractAction(bundle.getString("EXPORT")) {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser chooser = new JFileChooser();
+                chooser.setFileFilter(filter);
+                chooser.setSelectedFile(new File("fontweak-rules.csv"));
+                if (chooser.showSaveDialog(MainWindow.this) == JFileChooser.APPROVE_OPTION) {
+                    exportRules(chooser.getSelectedFile());
+                }
+            }
+        });
+        exportButton.setMargin(new java.awt.Insets(0, 10, 0, 10));
+        JButton mergeButton = new JButton(new AbstractAction(bundle.getString("MERGE")) {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser chooser = new JFileChooser();
+                if (chooser.showOpenDialog(MainWindow.this) == JFileChooser.APPROVE_OPTION) {
+                    mergeBaseline(chooser.getSelectedFile());
+                }
+            }
+        });
+        mergeButton.setMargin(new java.awt.Insets(0, 10, 0, 10));
+        int position = java.util.Arrays.asList(buttonPanel.getComponents()).indexOf(redoButton) + 1;
+        buttonPanel.add(new javax.swing.Box.Filler(new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 32767)), position++);
+        buttonPanel.add(importButton, position++);
+        buttonPanel.add(new javax.swing.Box.Filler(new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 32767)), position++);
+        buttonPanel.add(exportButton, position++);
+        buttonPanel.add(new javax.swing.Box.Filler(new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 32767)), position++);
+        buttonPanel.add(mergeButton, position);
+    }
+
+    /**
+     * Merge what a baseline config changed since the baseline merged last,
+     * see ConfigMerge. Conflicts keep the values of the window. One undo
+     * step takes the merge back.
+     */
+    private void mergeBaseline(File baseline) {
+        java.util.ResourceBundle bundle = java.util.ResourceBundle.getBundle("me/guoyunhe/fontweak/lang/main");
+        ConfigMerge merge;
+        List<ConfigMerge.Conflict> conflicts;
+        try {
+            FontConfig theirs = new FontConfig(baseline);
+            theirs.load();
+            saveOptions(); // Options of the window are ours
+            merge = new ConfigMerge(ConfigMerge.loadBaseline(fontconfig), fontconfig, theirs);
+            conflicts = merge.merge();
+        } catch (IOException | XMLStreamException ex) {
+            Logger.getLogger(MainWindow.class.getName()).log(Level.WARNING, null, ex);
+            JOptionPane.showMessageDialog(this, ex.getMessage(), bundle.getString("MERGE"), JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        mergedBaseline = baseline;
+
+        int selected = matchList.getSelectedIndex();
+        showRules(selected >= 0 && selected < fontconfig.matchList.size() ? fontconfig.matchList.get(selected) : null);
+        restoring = true;
+        antialiasCheckBox.setSelected(fontconfig.antialias);
+        hintingCheckBox.setSelected(fontconfig.hinting);
+        hintstyleComboBox.setSelectedItem(fontconfig.hintstyle);
+        rgbaComboBox.setSelectedItem(fontconfig.rgba);
+        lcdfilterComboBox.setSelectedItem(fontconfig.lcdfilter);
+        embeddedbitmapCheckBox.setSelected(fontconfig.embeddedbitmap);
+        restoring = false;
+        matchList.repaint();
+        history.changed(getOptions());
+        updateUndo();
+        updatePreviews();
+
+        StringBuilder text = new StringBuilder(merge.getChanges() + " changes, " + conflicts.size() + " conflicts");
+        for (int i = 0; i < conflicts.size() && i < 20; i++) {
+            text.append('\n').append(conflicts.get(i));
+        }
+        if (conflicts.size() > 20) {
+            text.append("\n...");
+        }
+        JOptionPane.showMessageDialog(this, text.toString(), bundle.getString("MERGE"),
+                conflicts.isEmpty() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
+    }
+
+    /**
+     * Import rules into the model, saved with the rest by the OK button.
+     * One undo step takes the whole import back.
+     */
+    private void importRules(File input) {
+        ByteArrayOutputStream problems = new ByteArrayOutputStream();
+        RuleTransfer transfer;
+        try {
+            transfer = new RuleTransfer(fontconfig, new PrintStream(problems, true, "UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+        int selected = matchList.getSelectedIndex();
+        FontMatch selectedMatch = selected >= 0 ? fontconfig.matchList.get(selected) : null;
+        String message;
+        try (Reader reader = Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8)) {
+            transfer.importRules(reader, RuleTransfer.Format.of(input), input.getName());
+            message = transfer.getReport().toString();
+        } catch (IOException ex) {
+            Logger.getLogger(MainWindow.class.getName()).log(Level.WARNING, null, ex);
+            message = transfer.getReport() + "\n" + ex.getMessage();
+        }
+        // Rules read before an error stay, to undo like the rest
+        showRules(selectedMatch);
+        history.changed(getOptions());
+        updateUndo();
+        updatePreviews();
+
+        String[] lines = problems.size() == 0 ? new String[0]
+                : new String(problems.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        StringBuilder text = new StringBuilder(message);
+        for (int i = 0; i < lines.length && i < 20; i++) {
+            text.append('\n').append(lines[i]);
+        }
+        if (lines.length > 20) {
+            text.append("\n...");
+        }
+        java.util.ResourceBundle bundle = java.util.ResourceBundle.getBundle("me/guoyunhe/fontweak/lang/main");
+        JOptionPane.showMessageDialog(this, text.toString(), bundle.getString("IMPORT"),
+                transfer.getReport().errors > 0 ? JOptionPane.WARNING_MESSAGE : JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    private void exportRules(File output) {
+        try (Writer writer = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)) {
+            RuleTransfer.exportRules(fontconfig, writer, RuleTransfer.Format.of(output));
+        } catch (IOException ex) {
+            Logger.getLogger(MainWindow.class.getName()).log(Level.WARNING, null, ex);
+            JOptionPane.showMessageDialog(this, ex.getMessage(), null, JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Show the config after undo or redo.
+     *
+     * @param options Option values to show.
+     */
+    private void showHistory(String[] options) {
+        int selected = matchList.getSelectedIndex();
+        showRules(selected >= 0 && selected < matchListModel.getSize() && selected < fontconfig.matchList.size()
+                ? fontconfig.matchList.get(selected) : null);
+        restoring = true;
+        antialiasCheckBox.setSelected(Boolean.parseBoolean(options[0]));
+        hintingCheckBox.setSelected(Boolean.parseBoolean(options[1]));
+        hintstyleComboBox.setSelectedItem(options[2]);
+        rgbaComboBox.setSelectedItem(options[3]);
+        lcdfilterComboBox.setSelectedItem(options[4]);
+        embeddedbitmapCheckBox.setSelected(Boolean.parseBoolean(options[5]));
+        restoring = false;
+        matchList.repaint();
+        updatePreviews();
+        updateUndo();
+    }
+
+    /**
+     * @return Option values shown, in the order of FontConfig.OPTIONS.
+     */
+    private String[] getOptions() {
+        return new String[]{
+            String.valueOf(antialiasCheckBox.isSelected()),
+            String.valueOf(hintingCheckBox.isSelected()),
+            (String) hintstyleComboBox.getSelectedItem(),
+            (String) rgbaComboBox.getSelectedItem(),
+            (String) lcdfilterComboBox.getSelectedItem(),
+            String.valueOf(embeddedbitmapCheckBox.isSelected())
+        };
+    }
+
+    /**
+     * Show sample text below the font list and the alias table, rendered
+     * with the options of the window.
+     */
+    private void addPreviews() {
+        java.util.ResourceBundle bundle = java.util.ResourceBundle.getBundle("me/guoyunhe/fontweak/lang/main");
+        matchPreview = new FontPreview(previewRenderer, 1);
+        aliasPreview = new FontPreview(previewRenderer, 2);
+        matchFontListPanel.remove(fontListScrollPane);
+        matchFontListPanel.add(previewPanel(fontListScrollPane, matchPreview, bundle), java.awt.BorderLayout.CENTER);
+        aliasPanel.remove(aliasScrollPane);
+        aliasPanel.add(previewPanel(aliasScrollPane, aliasPreview, bundle), java.awt.BorderLayout.CENTER);
+
+        ListSelectionListener selection = new ListSelectionListener() {
+            @Override
+            public void valueChanged(ListSelectionEvent e) {
+                updatePreviews();
             }
+        };
+        fontList.addListSelectionListener(selection);
+        aliasTable.getSelectionModel().addListSelectionListener(selection);
+        ActionListener options = new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (!restoring && history != null) {
+                    history.optionsChanged(getOptions());
+                    updateUndo();
+                }
+                updatePreviews();
+            }
+        };
+        antialiasCheckBox.addActionListener(options);
+        hintingCheckBox.addActionListener(options);
+        hintstyleComboBox.addActionListener(options);
+        rgbaComboBox.addActionListener(options);
+        lcdfilterComboBox.addActionListener(options);
+        embeddedbitmapCheckBox.addActionListener(options);
+    }
+
+    private static JPanel previewPanel(JComponent list, FontPreview preview, java.util.ResourceBundle bundle) {
+        preview.setText(bundle.getString("PREVIEW TEXT"));
+        JPanel panel = new JPanel(new java.awt.BorderLayout());
+        panel.add(list, java.awt.BorderLayout.CENTER);
+        JPanel previewPanel = new JPanel(new java.awt.BorderLayout());
+        previewPanel.setBorder(javax.swing.BorderFactory.createEmptyBorder(0, 5, 0, 5));
+        JLabel label = new JLabel(bundle.getString("PREVIEW"));
+        label.setBorder(javax.swing.BorderFactory.createEmptyBorder(5, 0, 5, 0));
+        previewPanel.add(label, java.awt.BorderLayout.PAGE_START);
+        previewPanel.add(preview, java.awt.BorderLayout.CENTER);
+        panel.add(previewPanel, java.awt.BorderLayout.PAGE_END);
+        return panel;
+    }
+
+    private void updatePreviews() {
+        String[] options = Arrays.copyOf(getOptions(), 5); // Without embeddedbitmap
+        matchPreview.setOptions(options);
+        matchPreview.setFamilies(fontList.getSelectedValue());
+        aliasPreview.setOptions(options);
+        int alias = aliasTable.getSelectedRow();
+        if (alias >= 0) {
+            aliasPreview.setFamilies((String) aliasTableModel.getValueAt(alias, 0),
+                    (String) aliasTableModel.getValueAt(alias, 1));
+        } else {
+            aliasPreview.setFamilies();
         }
+    }
+
+    private static String matchLabel(FontMatch match) {
+        if (match.langTest != null) {
+            return match.familyTest + " [" + match.langTest + "]";
+        } else {
+            return match.familyTest;
+        }
+    }
+
+    private void loadConfig() {
+        Metrics.Span span = Metrics.start("ui.loadConfig").matches(fontconfig.matchList.size());
+        if (fontconfig.matchList != null && !fontconfig.matchList.isEmpty()) {
+            for (FontMatch match : fontconfig.matchList) {
+                matchListModel.addElement(matchLabel(match));
+            }
+
+            matchList.setSelectedIndex(0);
+        }
+
+        // Aliases when their tab is shown
+        tabs.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                if (!aliasesShown && tabs.getSelectedComponent() == aliasPanel) {
+                    aliasesShown = true;
+                    showAliases();
+                }
+            }
+        });
 
         // Options
         this.antialiasCheckBox.setSelected(fontconfig.antialias);
@@ -97,19 +737,29 @@ public class MainWindow extends javax.swing.JFrame {
         this.rgbaComboBox.setSelectedItem(fontconfig.rgba);
         this.lcdfilterComboBox.setSelectedItem(fontconfig.lcdfilter);
         this.embeddedbitmapCheckBox.setSelected(fontconfig.embeddedbitmap);
+        span.end();
     }
 
     private void saveConfig() {
+        saveOptions();
+        fontconfig.writeConfig();
+        if (mergedBaseline != null) {
+            try {
+                ConfigMerge.rememberBaseline(fontconfig.getFile(), mergedBaseline);
+                mergedBaseline = null;
+            } catch (IOException ex) {
+                Logger.getLogger(MainWindow.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
 
-        // Options
+    private void saveOptions() {
         fontconfig.antialias = this.antialiasCheckBox.isSelected();
         fontconfig.hinting = this.hintingCheckBox.isSelected();
         fontconfig.hintstyle = (String) this.hintstyleComboBox.getSelectedItem();
         fontconfig.rgba = (String) this.rgbaComboBox.getSelectedItem();
         fontconfig.lcdfilter = (String) this.lcdfilterComboBox.getSelectedItem();
         fontconfig.embeddedbitmap = this.embeddedbitmapCheckBox.isSelected();
-
-        fontconfig.writeConfig();
     }
 
     private void selectMatch() {
@@ -126,11 +776,31 @@ public class MainWindow extends javax.swing.JFrame {
         }
     }
 
+    /**
+     * Fonts to add to the selected match. For a match of a language, fonts
+     * having all its characters come first.
+     */
+    private String[] getFontChoices() {
+        String[] all = sysfonts.get();
+        CoverageIndex coverage = sysfonts.getCoverage();
+        int selected = matchList.getSelectedIndex();
+        if (coverage == null || selected < 0 || fontconfig.matchList.get(selected).langTest == null) {
+            return all;
+        }
+
+        Set<String> choices = new LinkedHashSet<>(Arrays.asList(coverage.findFamilies(fontconfig.matchList.get(selected).langTest)));
+        choices.addAll(Arrays.asList(all));
+        return choices.toArray(new String[choices.size()]);
+    }
+
     private void saveFontList() {
         int selected = matchList.getSelectedIndex();
         String[] fonts = new String[fontListModel.getSize()];
         fontListModel.copyInto(fonts);
         fontconfig.matchList.get(selected).familyEdit = fonts;
+        fontconfig.rulesChanged();
+        history.matchChanged(selected);
+        updateUndo();
     }
 
     private void openURL(String url) {
@@ -140,13 +810,13 @@ public class MainWindow extends javax.swing.JFrame {
     }
 
     /**
-     * This method is called from within the constructor to initialize the form.
-     * WARNING: Do NOT modify this code. The content of this method is always
-     * regenerated by the Form Editor.
+     * Build the create match dialog the first time it is opened, startup
+     * does not wait for a window that is hidden.
      */
-    @SuppressWarnings("unchecked")
-    // <editor-fold defaultstate="collapsed" desc="Generated Code">//GEN-BEGIN:initComponents
-    private void initComponents() {
+    private javax.swing.JDialog getCreateMatchDialog() {
+        if (createMatchDialog != null) {
+            return createMatchDialog;
+        }
         java.awt.GridBagConstraints gridBagConstraints;
 
         createMatchDialog = new javax.swing.JDialog();
@@ -158,58 +828,6 @@ public class MainWindow extends javax.swing.JFrame {
         createMatchDialogButtonPanel = new javax.swing.JPanel();
         createMatchDialogCancelButton = new javax.swing.JButton();
         createMatchDialogOkButton = new javax.swing.JButton();
-        tabs = new javax.swing.JTabbedPane();
-        matchPanel = new javax.swing.JPanel();
-        matchListPanel = new javax.swing.JPanel();
-        matchListScrollPane = new javax.swing.JScrollPane();
-        matchList = new javax.swing.JList<String>();
-        matchListButtonPanel = new javax.swing.JPanel();
-        matchCreateButton = new javax.swing.JButton();
-        matchDeleteButton = new javax.swing.JButton();
-        matchListLabel = new javax.swing.JLabel();
-        matchFontListPanel = new javax.swing.JPanel();
-        fontListScrollPane = new javax.swing.JScrollPane();
-        fontList = new javax.swing.JList<String>();
-        jPanel4 = new javax.swing.JPanel();
-        fontUpButton = new javax.swing.JButton();
-        fontDownButton = new javax.swing.JButton();
-        fontAddButton = new javax.swing.JButton();
-        fontRemoveButton = new javax.swing.JButton();
-        fontListLabel = new javax.swing.JLabel();
-        aliasPanel = new javax.swing.JPanel();
-        aliasScrollPane = new javax.swing.JScrollPane();
-        aliasTable = new javax.swing.JTable(){
-            public boolean isCellEditable(int row, int column){
-                return false;
-            }
-        };
-        aliasButtonPanel = new javax.swing.JPanel();
-        aliasTextField = new javax.swing.JTextField();
-        aliasComboBox = new javax.swing.JComboBox<String>();
-        aliasAddButton = new javax.swing.JButton();
-        aliasRemoveButton = new javax.swing.JButton();
-        optionPanel = new javax.swing.JPanel();
-        antialiasLabel = new javax.swing.JLabel();
-        antialiasCheckBox = new javax.swing.JCheckBox();
-        hintingLabel = new javax.swing.JLabel();
-        hintingCheckBox = new javax.swing.JCheckBox();
-        hintstyleLabel = new javax.swing.JLabel();
-        rgbaLabel = new javax.swing.JLabel();
-        hintstyleComboBox = new javax.swing.JComboBox<String>();
-        rgbaComboBox = new javax.swing.JComboBox<String>();
-        lcdfilterLabel = new javax.swing.JLabel();
-        lcdfilterComboBox = new javax.swing.JComboBox<>();
-        embeddedbitmapLabel = new javax.swing.JLabel();
-        embeddedbitmapCheckBox = new javax.swing.JCheckBox();
-        buttonPanel = new javax.swing.JPanel();
-        aboutButton = new javax.swing.JButton();
-        filler3 = new javax.swing.Box.Filler(new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 32767));
-        helpButton = new javax.swing.JButton();
-        filler1 = new javax.swing.Box.Filler(new java.awt.Dimension(0, 0), new java.awt.Dimension(0, 0), new java.awt.Dimension(32767, 0));
-        cancelButton = new javax.swing.JButton();
-        filler2 = new javax.swing.Box.Filler(new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 32767));
-        okButton = new javax.swing.JButton();
-
         java.util.ResourceBundle bundle = java.util.ResourceBundle.getBundle("me/guoyunhe/fontweak/lang/main"); // NOI18N
         createMatchDialog.setTitle(bundle.getString("CREATE FONT MATCH")); // NOI18N
         createMatchDialog.setIconImage(appIcon.getImage());
@@ -247,7 +865,7 @@ public class MainWindow extends javax.swing.JFrame {
         gridBagConstraints.anchor = java.awt.GridBagConstraints.LINE_END;
         createMatchDialogOptionPanel.add(createMatchDialogLanguageLabel, gridBagConstraints);
 
-        createMatchDialogLanguageComboBox.setModel(new DefaultComboBoxModel(FontConfig.LANGUAGES));
+        createMatchDialogLanguageComboBox.setModel(new DefaultComboBoxModel<>(FontConfig.LANGUAGES));
         createMatchDialogLanguageComboBox.setPreferredSize(new java.awt.Dimension(150, 28));
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridx = 2;
@@ -283,7 +901,72 @@ public class MainWindow extends javax.swing.JFrame {
         createMatchDialogButtonPanel.add(createMatchDialogOkButton);
 
         createMatchDialog.getContentPane().add(createMatchDialogButtonPanel);
+        return createMatchDialog;
+    }
+
+    /**
+     * This method is called from within the constructor to initialize the form.
+     * WARNING: Do NOT modify this code. The content of this method is always
+     * regenerated by the Form Editor.
+     */
+    @SuppressWarnings("unchecked")
+    // <editor-fold defaultstate="collapsed" desc="Generated Code">//GEN-BEGIN:initComponents
+    private void initComponents() {
+        java.awt.GridBagConstraints gridBagConstraints;
+
+        tabs = new javax.swing.JTabbedPane();
+        matchPanel = new javax.swing.JPanel();
+        matchListPanel = new javax.swing.JPanel();
+        matchListScrollPane = new javax.swing.JScrollPane();
+        matchList = new javax.swing.JList<String>();
+        matchListButtonPanel = new javax.swing.JPanel();
+        matchCreateButton = new javax.swing.JButton();
+        matchDeleteButton = new javax.swing.JButton();
+        matchListLabel = new javax.swing.JLabel();
+        matchFontListPanel = new javax.swing.JPanel();
+        fontListScrollPane = new javax.swing.JScrollPane();
+        fontList = new javax.swing.JList<String>();
+        jPanel4 = new javax.swing.JPanel();
+        fontUpButton = new javax.swing.JButton();
+        fontDownButton = new javax.swing.JButton();
+        fontAddButton = new javax.swing.JButton();
+        fontRemoveButton = new javax.swing.JButton();
+        fontListLabel = new javax.swing.JLabel();
+        aliasPanel = new javax.swing.JPanel();
+        aliasScrollPane = new javax.swing.JScrollPane();
+        aliasTable = new javax.swing.JTable(){
+            public boolean isCellEditable(int row, int column){
+                return false;
+            }
+        };
+        aliasButtonPanel = new javax.swing.JPanel();
+        aliasTextField = new javax.swing.JTextField();
+        aliasComboBox = new javax.swing.JComboBox<String>();
+        aliasAddButton = new javax.swing.JButton();
+        aliasRemoveButton = new javax.swing.JButton();
+        optionPanel = new javax.swing.JPanel();
+        antialiasLabel = new javax.swing.JLabel();
+        antialiasCheckBox = new javax.swing.JCheckBox();
+        hintingLabel = new javax.swing.JLabel();
+        hintingCheckBox = new javax.swing.JCheckBox();
+        hintstyleLabel = new javax.swing.JLabel();
+        rgbaLabel = new javax.swing.JLabel();
+        hintstyleComboBox = new javax.swing.JComboBox<String>();
+        rgbaComboBox = new javax.swing.JComboBox<String>();
+        lcdfilterLabel = new javax.swing.JLabel();
+        lcdfilterComboBox = new javax.swing.JComboBox<>();
+        embeddedbitmapLabel = new javax.swing.JLabel();
+        embeddedbitmapCheckBox = new javax.swing.JCheckBox();
+        buttonPanel = new javax.swing.JPanel();
+        aboutButton = new javax.swing.JButton();
+        filler3 = new javax.swing.Box.Filler(new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 32767));
+        helpButton = new javax.swing.JButton();
+        filler1 = new javax.swing.Box.Filler(new java.awt.Dimension(0, 0), new java.awt.Dimension(0, 0), new java.awt.Dimension(32767, 0));
+        cancelButton = new javax.swing.JButton();
+        filler2 = new javax.swing.Box.Filler(new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 0), new java.awt.Dimension(5, 32767));
+        okButton = new javax.swing.JButton();
 
+        java.util.ResourceBundle bundle = java.util.ResourceBundle.getBundle("me/guoyunhe/fontweak/lang/main"); // NOI18N
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setTitle("Fontweak");
         setIconImage(appIcon.getImage());
@@ -415,7 +1098,7 @@ public class MainWindow extends javax.swing.JFrame {
         aliasTextField.setPreferredSize(new java.awt.Dimension(200, 28));
         aliasButtonPanel.add(aliasTextField);
 
-        aliasComboBox.setModel(new DefaultComboBoxModel(sysfonts.get())
+        aliasComboBox.setModel(aliasFontModel
         );
         aliasComboBox.setMinimumSize(new java.awt.Dimension(100, 28));
         aliasComboBox.setPreferredSize(new java.awt.Dimension(200, 28));
@@ -593,10 +1276,9 @@ public class MainWindow extends javax.swing.JFrame {
     }//GEN-LAST:event_aboutButtonListener
 
     private void fontAddButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_fontAddButtonActionPerformed
-        String font = (String)JOptionPane.showInputDialog(this,
-                java.util.ResourceBundle.getBundle("me/guoyunhe/fontweak/lang/main").getString("CHOOSE FONT"),
+        String font = FontChooser.showDialog(this,
                 java.util.ResourceBundle.getBundle("me/guoyunhe/fontweak/lang/main").getString("CHOOSE FONT"),
-                JOptionPane.PLAIN_MESSAGE, null, sysfonts.get(), appIcon.getImage());
+                getFontChoices());
         if (font != null && !font.isEmpty()) {
             fontListModel.addElement(font);
             saveFontList();
@@ -664,26 +1346,37 @@ public class MainWindow extends javax.swing.JFrame {
     }//GEN-LAST:event_fontUpButtonActionPerformed
 
     private void matchCreateButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_matchCreateButtonActionPerformed
-        createMatchDialog.setVisible(true);
+        getCreateMatchDialog().setVisible(true);
     }//GEN-LAST:event_matchCreateButtonActionPerformed
 
-    private void createMatchDialogCancelButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_createMatchDialogCancelButtonActionPerformed
+    private void createMatchDialogCancelButtonActionPerformed(java.awt.event.ActionEvent evt) {
         createMatchDialog.setVisible(false);
-    }//GEN-LAST:event_createMatchDialogCancelButtonActionPerformed
+    }
 
-    private void createMatchDialogOkButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_createMatchDialogOkButtonActionPerformed
+    private void createMatchDialogOkButtonActionPerformed(java.awt.event.ActionEvent evt) {
         FontMatch match = new FontMatch((String) createMatchDialogFamilyComboBox.getSelectedItem(),
                 (String) createMatchDialogLanguageComboBox.getSelectedItem(), null);
-        fontconfig.matchList.add(match);
-        matchListModel.addElement(match.familyTest + " [" + match.langTest + "]");
+        FontMatch existing = fontconfig.matchList.putIfAbsent(match);
+        if (existing == null) {
+            history.matchAdded(fontconfig.matchList.size() - 1);
+            updateUndo();
+            matchListModel.addElement(match.familyTest + " [" + match.langTest + "]");
+            matchList.setSelectedIndex(matchListModel.getSize() - 1);
+        } else {
+            // Same test as a rule in the list, edit that one
+            matchList.setSelectedIndex(fontconfig.matchList.indexOf(existing));
+        }
+        matchList.ensureIndexIsVisible(matchList.getSelectedIndex());
         createMatchDialog.setVisible(false);
-    }//GEN-LAST:event_createMatchDialogOkButtonActionPerformed
+    }
 
     private void matchDeleteButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_matchDeleteButtonActionPerformed
         int selected = matchList.getSelectedIndex();
         if (selected >= 0) {
             matchListModel.remove(selected);
             fontconfig.matchList.remove(selected);
+            history.matchRemoved(selected);
+            updateUndo();
             if (selected > matchListModel.getSize() - 1) {
                 selected = matchListModel.getSize() - 1;
             }
@@ -696,8 +1389,23 @@ public class MainWindow extends javax.swing.JFrame {
 
     private void aliasAddButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_aliasAddButtonActionPerformed
         FontAlias alias = new FontAlias(aliasTextField.getText(), (String)aliasComboBox.getSelectedItem());
-        fontconfig.aliasList.add(alias);
-        aliasTableModel.addRow(new String[]{alias.family, alias.prefer});
+        FontAlias existing = fontconfig.aliasList.putIfAbsent(alias);
+        int row;
+        if (existing == null) {
+            aliasTableModel.addRow(new String[]{alias.family, alias.prefer});
+            row = aliasTableModel.getRowCount() - 1;
+            history.aliasAdded(row);
+        } else {
+            // One alias per family, change the preferred font of it
+            row = fontconfig.aliasList.indexOf(existing);
+            existing.prefer = alias.prefer;
+            fontconfig.rulesChanged();
+            aliasTableModel.setValueAt(alias.prefer, row, 1);
+            history.aliasChanged(row);
+        }
+        updateUndo();
+        aliasTable.setRowSelectionInterval(row, row);
+        aliasTable.scrollRectToVisible(aliasTable.getCellRect(row, 0, true));
         aliasTextField.setText("");
     }//GEN-LAST:event_aliasAddButtonActionPerformed
 
@@ -706,6 +1414,8 @@ public class MainWindow extends javax.swing.JFrame {
         if (selected > -1) {
             fontconfig.aliasList.remove(selected);
             aliasTableModel.removeRow(selected);
+            history.aliasRemoved(selected);
+            updateUndo();
 
             if (selected > aliasTableModel.getRowCount() - 1) {
                 selected = aliasTableModel.getRowCount() - 1;
@@ -722,9 +1432,20 @@ public class MainWindow extends javax.swing.JFrame {
     }//GEN-LAST:event_helpButtonActionPerformed
 
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments, "--metrics-out FILE" to write
+     * Metrics to a file on exit
      */
     public static void main(String args[]) {
+        if (args.length >= 2 && args[0].equals("--metrics-out")) {
+            Metrics.writeOnExit(new File(args[1]));
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        if (args.length > 0) {
+            // Headless commands, no window
+            System.exit(Command.run(args));
+        }
+        final Startup startup = new Startup();
+
         /* Set the Nimbus look and feel */
         //<editor-fold defaultstate="collapsed" desc=" Look and feel setting code (optional) ">
         /* If Nimbus (introduced in Java SE 6) is not available, stay with the default look and feel.
@@ -747,7 +1468,7 @@ public class MainWindow extends javax.swing.JFrame {
         java.awt.EventQueue.invokeLater(new Runnable() {
             @Override
             public void run() {
-                new MainWindow().setVisible(true);
+                new MainWindow(startup).setVisible(true);
             }
         });
     }
@@ -766,15 +1487,6 @@ public class MainWindow extends javax.swing.JFrame {
     private javax.swing.JLabel antialiasLabel;
     private javax.swing.JPanel buttonPanel;
     private javax.swing.JButton cancelButton;
-    private javax.swing.JDialog createMatchDialog;
-    private javax.swing.JPanel createMatchDialogButtonPanel;
-    private javax.swing.JButton createMatchDialogCancelButton;
-    private javax.swing.JComboBox<String> createMatchDialogFamilyComboBox;
-    private javax.swing.JLabel createMatchDialogFamilyLabel;
-    private javax.swing.JComboBox<String> createMatchDialogLanguageComboBox;
-    private javax.swing.JLabel createMatchDialogLanguageLabel;
-    private javax.swing.JButton createMatchDialogOkButton;
-    private javax.swing.JPanel createMatchDialogOptionPanel;
     private javax.swing.JCheckBox embeddedbitmapCheckBox;
     private javax.swing.JLabel embeddedbitmapLabel;
     private javax.swing.Box.Filler filler1;
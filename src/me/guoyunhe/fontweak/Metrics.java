@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durations, bytes and sizes of slow operations, like reading the config or
+ * enumerating fonts, kept in the process to find out why a start is slow
+ * without a profiler.
+ *
+ * An operation is measured by a Span from start() to end(). Spans of the
+ * same name are summed up in the registry, which can be written to a file
+ * with "--metrics-out FILE". On Java 9 and later each span is also a Java
+ * Flight Recorder event in the "Fontweak" category, see JfrEvents.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public final class Metrics {
+
+    private static final Recorder RECORDER = loadRecorder();
+
+    private static final Map<String, Entry> REGISTRY = new TreeMap<>();
+
+    /**
+     * One run of an operation. Values that are not set are not recorded.
+     */
+    public static final class Span {
+        final String name;
+        final long start;
+        long bytesRead = -1;
+        long bytesWritten = -1;
+        int matches = -1;
+        int aliases = -1;
+        int fonts = -1;
+        private final Object event;
+        private long ended = -1;
+
+        Span(String name) {
+            this.name = name;
+            this.event = RECORDER != null ? RECORDER.begin(name) : null;
+            this.start = System.nanoTime();
+        }
+
+        public Span bytesRead(long bytes) {
+            this.bytesRead = bytes;
+            return this;
+        }
+
+        public Span bytesWritten(long bytes) {
+            this.bytesWritten = bytes;
+            return this;
+        }
+
+        public Span matches(int count) {
+            this.matches = count;
+            return this;
+        }
+
+        public Span aliases(int count) {
+            this.aliases = count;
+            return this;
+        }
+
+        public Span fonts(int count) {
+            this.fonts = count;
+            return this;
+        }
+
+        /**
+         * Record the span. It is recorded once, later calls only return the
+         * duration.
+         *
+         * @return Nanoseconds from start() to the first end().
+         */
+        public long end() {
+            if (ended < 0) {
+                ended = System.nanoTime() - start;
+                if (event != null) {
+                    RECORDER.commit(event, this);
+                }
+                record(this, ended);
+            }
+            return ended;
+        }
+    }
+
+    /**
+     * Events of another recorder for spans, like JfrEvents.
+     */
+    interface Recorder {
+
+        /**
+         * @param name Span name.
+         * @return Event started.
+         */
+        Object begin(String name);
+
+        /**
+         * @param event Event from begin().
+         * @param span Span ended with its values.
+         */
+        void commit(Object event, Span span);
+    }
+
+    // Sum of the spans of one name
+    private static final class Entry {
+        long count;
+        long totalNanos;
+        long maxNanos;
+        long bytesRead = -1;
+        long bytesWritten = -1;
+        int matches = -1;
+        int aliases = -1;
+        int fonts = -1;
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Start measuring an operation.
+     *
+     * @param name Name of the operation, like "config.read".
+     * @return Span to end() when the operation is done.
+     */
+    public static Span start(String name) {
+        return new Span(name);
+    }
+
+    private static synchronized void record(Span span, long time) {
+        Entry entry = REGISTRY.get(span.name);
+        if (entry == null) {
+            entry = new Entry();
+            REGISTRY.put(span.name, entry);
+        }
+        entry.count++;
+        entry.totalNanos += time;
+        entry.maxNanos = Math.max(entry.maxNanos, time);
+        if (span.bytesRead >= 0) {
+            entry.bytesRead = Math.max(entry.bytesRead, 0) + span.bytesRead;
+        }
+        if (span.bytesWritten >= 0) {
+            entry.bytesWritten = Math.max(entry.bytesWritten, 0) + span.bytesWritten;
+        }
+        // Sizes of the last run
+        if (span.matches >= 0) {
+            entry.matches = span.matches;
+        }
+        if (span.aliases >= 0) {
+            entry.aliases = span.aliases;
+        }
+        if (span.fonts >= 0) {
+            entry.fonts = span.fonts;
+        }
+    }
+
+    /**
+     * Write the registry as JSON: an object per operation with count, total
+     * and max milliseconds, bytes summed over all runs and sizes of the last
+     * run.
+     *
+     * @param file File to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static synchronized void write(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(parent.toPath());
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            out.println("{");
+            int i = 0;
+            for (Map.Entry<String, Entry> item : REGISTRY.entrySet()) {
+                Entry entry = item.getValue();
+                StringBuilder line = new StringBuilder();
+                line.append(String.format(Locale.ROOT, "  \"%s\": {\"count\": %d, \"totalMs\": %.3f, \"maxMs\": %.3f",
+                        item.getKey(), entry.count, entry.totalNanos / 1e6, entry.maxNanos / 1e6));
+                append(line, "bytesRead", entry.bytesRead);
+                append(line, "bytesWritten", entry.bytesWritten);
+                append(line, "matches", entry.matches);
+                append(line, "aliases", entry.aliases);
+                append(line, "fonts", entry.fonts);
+                line.append(++i < REGISTRY.size() ? "}," : "}");
+                out.println(line);
+            }
+            out.println("}");
+        }
+    }
+
+    private static void append(StringBuilder line, String name, long value) {
+        if (value >= 0) {
+            line.append(", \"").append(name).append("\": ").append(value);
+        }
+    }
+
+    /**
+     * Write the registry when the JVM exits.
+     *
+     * @param file File to write.
+     */
+    public static void writeOnExit(final File file) {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(file);
+                } catch (IOException ex) {
+                    Logger.getLogger(Metrics.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+        }, "fontweak-metrics"));
+    }
+
+    // JfrEvents by name: it is not compiled and cannot load before Java 9
+    private static Recorder loadRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder) Class.forName(Metrics.class.getPackage().getName() + ".JfrEvents").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Characters needed to write a language, read from config/orthography.txt.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public final class Orthography {
+
+    private static final String RESOURCE = "/me/guoyunhe/fontweak/config/orthography.txt";
+
+    private Orthography() {
+    }
+
+    // Loaded on first use
+    private static class Holder {
+        static final Map<String, CodepointSet> SETS = load();
+    }
+
+    /**
+     * @param lang fontconfig language like "zh-tw", case-insensitive.
+     * @return Characters of the language, null if the language is unknown.
+     */
+    public static CodepointSet get(String lang) {
+        return Holder.SETS.get(FontResolver.langKey(lang));
+    }
+
+    private static Map<String, CodepointSet> load() {
+        Map<String, CodepointSet> sets = new HashMap<>();
+        try (InputStream in = Orthography.class.getResourceAsStream(RESOURCE);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int equals = line.indexOf('=');
+                String name = line.substring(0, equals).trim();
+                sets.put(name, parse(line.substring(equals + 1).trim().split("\\s+"), sets));
+            }
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(Orthography.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        // Shared sets are not languages
+        Map<String, CodepointSet> languages = new HashMap<>();
+        for (Map.Entry<String, CodepointSet> entry : sets.entrySet()) {
+            if (!entry.getKey().startsWith("@")) {
+                languages.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return languages;
+    }
+
+    private static CodepointSet parse(String[] items, Map<String, CodepointSet> sets) {
+        FontScanner.Ranges ranges = new FontScanner.Ranges();
+        CodepointSet result = CodepointSet.EMPTY;
+        for (String item : items) {
+            if (item.startsWith("@")) {
+                CodepointSet shared = sets.get(item);
+                if (shared == null) {
+                    throw new IllegalArgumentException("Unknown set: " + item);
+                }
+                result = result.or(shared);
+                continue;
+            }
+
+            CharsetEncoder encoder = null;
+            int colon = item.indexOf(':');
+            if (colon >= 0) {
+                String charset = item.substring(0, colon);
+                item = item.substring(colon + 1);
+                if (Charset.isSupported(charset)) {
+                    encoder = Charset.forName(charset).newEncoder();
+                } else {
+                    Logger.getLogger(Orthography.class.getName()).log(Level.FINE, "No charset {0}", charset);
+                }
+            }
+
+            int dash = item.indexOf('-');
+            int first = Integer.parseInt(dash < 0 ? item : item.substring(0, dash), 16);
+            int last = dash < 0 ? first : Integer.parseInt(item.substring(dash + 1), 16);
+            if (encoder == null) {
+                ranges.add(first, last);
+            } else {
+                // Characters of a national standard, like the 6763 hanzi of GB2312
+                for (int c = first; c <= last; c++) {
+                    if (encoder.canEncode((char) c)) {
+                        ranges.add(c, c);
+                    }
+                }
+            }
+        }
+        return result.or(CodepointSet.fromRanges(ranges.toArray()));
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable list where changing one element makes a new list in O(log n),
+ * sharing everything else with the old one. Old lists stay valid, so a
+ * history of lists costs only the changed paths.
+ *
+ * It is a treap ordered by position: a binary tree balanced by random
+ * priorities, where each node knows the size of its subtree. A change copies
+ * the nodes on the path to the changed position.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ * @param <E> Element type.
+ */
+public final class PersistentList<E> {
+
+    private static final PersistentList<Object> EMPTY = new PersistentList<>(null);
+
+    private static final class Node<E> {
+        final E value;
+        final int priority;
+        final int size;
+        final Node<E> left;
+        final Node<E> right;
+
+        Node(E value, int priority, Node<E> left, Node<E> right) {
+            this.value = value;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + size(left) + size(right);
+        }
+
+        Node<E> with(Node<E> left, Node<E> right) {
+            return new Node<>(value, priority, left, right);
+        }
+    }
+
+    private final Node<E> root;
+
+    private PersistentList(Node<E> root) {
+        this.root = root;
+    }
+
+    /**
+     * @param <E> Element type.
+     * @return Empty list.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentList<E> empty() {
+        return (PersistentList<E>) EMPTY;
+    }
+
+    /**
+     * Build a list in O(n).
+     *
+     * @param <E> Element type.
+     * @param elements Elements in order.
+     * @return List of the elements.
+     */
+    public static <E> PersistentList<E> of(List<? extends E> elements) {
+        return new PersistentList<>(build(elements, 0, elements.size(), Integer.MAX_VALUE));
+    }
+
+    // Balanced tree, priorities decrease with depth so it is a valid treap
+    private static <E> Node<E> build(List<? extends E> elements, int from, int to, int priority) {
+        if (from >= to) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        int child = priority - 1 - (randomPriority(elements.get(middle), middle) & 0xff);
+        return new Node<E>(elements.get(middle), priority,
+                build(elements, from, middle, child), build(elements, middle + 1, to, child));
+    }
+
+    /**
+     * @return Number of elements.
+     */
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * @param index Position.
+     * @return Element at the position.
+     */
+    public E get(int index) {
+        check(index, size());
+        Node<E> node = root;
+        while (true) {
+            int left = size(node.left);
+            if (index < left) {
+                node = node.left;
+            } else if (index > left) {
+                index -= left + 1;
+                node = node.right;
+            } else {
+                return node.value;
+            }
+        }
+    }
+
+    /**
+     * @param index Position.
+     * @param element New element.
+     * @return List with the element replaced.
+     */
+    public PersistentList<E> set(int index, E element) {
+        check(index, size());
+        return new PersistentList<>(set(root, index, element));
+    }
+
+    private static <E> Node<E> set(Node<E> node, int index, E element) {
+        int left = size(node.left);
+        if (index < left) {
+            return node.with(set(node.left, index, element), node.right);
+        } else if (index > left) {
+            return node.with(node.left, set(node.right, index - left - 1, element));
+        }
+        return new Node<>(element, node.priority, node.left, node.right);
+    }
+
+    /**
+     * @param index Position, size() to add at the end.
+     * @param element New element.
+     * @return List with the element inserted.
+     */
+    public PersistentList<E> insert(int index, E element) {
+        check(index, size() + 1);
+        Node<E> single = new Node<>(element, randomPriority(element, index), null, null);
+        Node<E>[] parts = split(root, index);
+        return new PersistentList<>(merge(merge(parts[0], single), parts[1]));
+    }
+
+    /**
+     * @param element New element.
+     * @return List with the element added at the end.
+     */
+    public PersistentList<E> add(E element) {
+        return insert(size(), element);
+    }
+
+    /**
+     * @param index Position.
+     * @return List without the element.
+     */
+    public PersistentList<E> remove(int index) {
+        check(index, size());
+        Node<E>[] parts = split(root, index);
+        Node<E>[] rest = split(parts[1], 1);
+        return new PersistentList<>(merge(parts[0], rest[1]));
+    }
+
+    /**
+     * @return Elements in order, a new mutable list.
+     */
+    public List<E> toList() {
+        List<E> list = new ArrayList<>(size());
+        collect(root, list);
+        return list;
+    }
+
+    private static <E> void collect(Node<E> node, List<E> list) {
+        while (node != null) {
+            collect(node.left, list);
+            list.add(node.value);
+            node = node.right;
+        }
+    }
+
+    /**
+     * @return First count elements and the others.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E> Node<E>[] split(Node<E> node, int count) {
+        if (node == null) {
+            return (Node<E>[]) new Node<?>[]{null, null};
+        }
+        int left = size(node.left);
+        if (count <= left) {
+            Node<E>[] parts = split(node.left, count);
+            parts[1] = node.with(parts[1], node.right);
+            return parts;
+        } else {
+            Node<E>[] parts = split(node.right, count - left - 1);
+            parts[0] = node.with(node.left, parts[0]);
+            return parts;
+        }
+    }
+
+    private static <E> Node<E> merge(Node<E> a, Node<E> b) {
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        } else if (a.priority >= b.priority) {
+            return a.with(a.left, merge(a.right, b));
+        } else {
+            return b.with(merge(a, b.left), b.right);
+        }
+    }
+
+    private static int size(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    // Mixes the element and its position, no shared random generator needed
+    private static int randomPriority(Object element, int index) {
+        int hash = System.identityHashCode(element) * 0x9E3779B9 + index * 0x85EBCA6B;
+        hash ^= hash >>> 16;
+        hash *= 0x7FEB352D;
+        hash ^= hash >>> 15;
+        return hash & Integer.MAX_VALUE;
+    }
+
+    private static void check(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Render sample text in font families, in background threads.
+ *
+ * Images are kept in a cache of at most CACHE_BYTES, least recently used
+ * images are dropped first. Dropped images are reused for later renders of
+ * the same size, so scrolling through many fonts does not allocate an image
+ * per font.
+ *
+ * All methods except render() are called on the event dispatch thread, and
+ * callbacks are called on it too. The cache is only used on that thread, so
+ * an image is never drawn into while it is painted.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class PreviewRenderer {
+
+    static final long CACHE_BYTES = 32L << 20;
+    // Unused images kept per size
+    static final int POOL_IMAGES = 8;
+
+    public static final Color BACKGROUND = Color.WHITE;
+    public static final Color FOREGROUND = Color.BLACK;
+
+    /**
+     * What to render, also the cache key.
+     */
+    public static final class Request {
+        public final String family;
+        public final int size;
+        // Values of antialias, hinting, hintstyle, rgba and lcdfilter
+        private final String[] options;
+        public final String text;
+        public final int width;
+
+        public Request(String family, int size, String[] options, String text, int width) {
+            this.family = family;
+            this.size = size;
+            this.options = options.clone();
+            this.text = text;
+            this.width = width;
+        }
+
+        /**
+         * @return Height of the image, the same for all fonts of a size.
+         */
+        public int getHeight() {
+            return size * 3 / 2 + 4;
+        }
+
+        long getBytes() {
+            return 4L * width * getHeight();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Request)) {
+                return false;
+            }
+            Request request = (Request) other;
+            return family.equals(request.family) && size == request.size && text.equals(request.text)
+                    && width == request.width && Arrays.equals(options, request.options);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = family.hashCode();
+            hash = 31 * hash + size;
+            hash = 31 * hash + Arrays.hashCode(options);
+            hash = 31 * hash + text.hashCode();
+            hash = 31 * hash + width;
+            return hash;
+        }
+    }
+
+    public interface Callback {
+
+        /**
+         * Called on the event dispatch thread when the image is cached.
+         *
+         * @param request Rendered request.
+         */
+        void rendered(Request request);
+    }
+
+    // A render in the queue or running, with who waits for it
+    private class Task implements Runnable {
+        final Request request;
+        final List<Callback> callbacks = new ArrayList<>();
+        Future<?> future;
+
+        Task(Request request) {
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            final BufferedImage image = render(request, take(request.width, request.getHeight()));
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    tasks.remove(request);
+                    put(request, image);
+                    for (Callback callback : callbacks) {
+                        callback.rendered(request);
+                    }
+                }
+            });
+        }
+    }
+
+    private final ExecutorService workers;
+    private final LinkedHashMap<Request, BufferedImage> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private final long cacheLimit;
+    private long cacheBytes;
+    private final Map<Request, Task> tasks = new HashMap<>();
+    // Width and height to unused images, used by workers too
+    private final Map<Long, Deque<BufferedImage>> pool = new HashMap<>();
+
+    public PreviewRenderer() {
+        this(CACHE_BYTES, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)));
+    }
+
+    /**
+     * @param cacheLimit Bytes of cached images.
+     * @param threads Number of worker threads.
+     */
+    public PreviewRenderer(long cacheLimit, int threads) {
+        this.cacheLimit = cacheLimit;
+        final AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "fontweak-preview-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param request What to render.
+     * @return Cached image, null if not rendered yet.
+     */
+    public BufferedImage get(Request request) {
+        return cache.get(request);
+    }
+
+    /**
+     * Render in background, unless cached or already queued.
+     *
+     * @param request What to render.
+     * @param callback Called when rendered, not if cached now.
+     */
+    public void request(Request request, Callback callback) {
+        if (cache.containsKey(request)) {
+            return;
+        }
+        Task task = tasks.get(request);
+        if (task == null) {
+            task = new Task(request);
+            tasks.put(request, task);
+            task.future = workers.submit(task);
+        }
+        if (!task.callbacks.contains(callback)) {
+            task.callbacks.add(callback);
+        }
+    }
+
+    /**
+     * Not waiting any more for a render. It is dropped if nobody else
+     * waits and it has not started.
+     *
+     * @param request Requested before.
+     * @param callback Given to request().
+     */
+    public void cancel(Request request, Callback callback) {
+        Task task = tasks.get(request);
+        if (task != null && task.callbacks.remove(callback) && task.callbacks.isEmpty()
+                && task.future.cancel(false)) {
+            tasks.remove(request);
+        }
+    }
+
+    /**
+     * @return Bytes of cached images.
+     */
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    private void put(Request request, BufferedImage image) {
+        BufferedImage old = cache.put(request, image);
+        if (old != null) {
+            give(old);
+        } else {
+            cacheBytes += request.getBytes();
+        }
+        Iterator<Map.Entry<Request, BufferedImage>> entries = cache.entrySet().iterator();
+        while (cacheBytes > cacheLimit && entries.hasNext()) {
+            Map.Entry<Request, BufferedImage> eldest = entries.next();
+            if (eldest.getKey().equals(request)) {
+                break; // Keep the newest even if alone too large
+            }
+            entries.remove();
+            cacheBytes -= eldest.getKey().getBytes();
+            give(eldest.getValue());
+        }
+    }
+
+    private BufferedImage take(int width, int height) {
+        synchronized (pool) {
+            Deque<BufferedImage> images = pool.get(((long) width << 32) | height);
+            if (images != null && !images.isEmpty()) {
+                return images.pop();
+            }
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    private void give(BufferedImage image) {
+        synchronized (pool) {
+            long size = ((long) image.getWidth() << 32) | image.getHeight();
+            Deque<BufferedImage> images = pool.get(size);
+            if (images == null) {
+                images = new ArrayDeque<>();
+                pool.put(size, images);
+            }
+            if (images.size() < POOL_IMAGES) {
+                images.push(image);
+            }
+        }
+    }
+
+    /**
+     * Draw a request into an image of its size. LCD text needs an opaque
+     * image, so the background is filled.
+     *
+     * @param request What to render.
+     * @param image Image of request.width and request.getHeight().
+     * @return The image.
+     */
+    static BufferedImage render(Request request, BufferedImage image) {
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setColor(BACKGROUND);
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+            setHints(g, request.options);
+            g.setColor(FOREGROUND);
+            g.setFont(new Font(request.family, Font.PLAIN, request.size));
+            g.drawString(request.text, 2, 2 + request.size);
+        } catch (RuntimeException ex) {
+            Logger.getLogger(PreviewRenderer.class.getName()).log(Level.WARNING, request.family, ex);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * Set the Java 2D hints nearest to fontconfig options. Java 2D has no
+     * hint styles, light and no hinting use unhinted outlines and fractional
+     * metrics. The LCD filter maps to text contrast, from 100 to 250.
+     *
+     * @param options Values of antialias, hinting, hintstyle, rgba and
+     * lcdfilter.
+     */
+    static void setHints(Graphics2D g, String[] options) {
+        boolean antialias = Boolean.parseBoolean(options[0]);
+        boolean hinting = Boolean.parseBoolean(options[1]);
+        String hintstyle = options[2];
+        String rgba = options[3];
+        String lcdfilter = options[4];
+
+        Object text = RenderingHints.VALUE_TEXT_ANTIALIAS_OFF;
+        if (antialias) {
+            switch (rgba) {
+                case "rgb":
+                    text = RenderingHints.VALUE_TEXT_ANTIALIAS_LCD_HRGB;
+                    break;
+                case "bgr":
+                    text = RenderingHints.VALUE_TEXT_ANTIALIAS_LCD_HBGR;
+                    break;
+                case "vrgb":
+                    text = RenderingHints.VALUE_TEXT_ANTIALIAS_LCD_VRGB;
+                    break;
+                case "vbgr":
+                    text = RenderingHints.VALUE_TEXT_ANTIALIAS_LCD_VBGR;
+                    break;
+                default:
+                    text = RenderingHints.VALUE_TEXT_ANTIALIAS_ON;
+            }
+        }
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, text);
+
+        boolean outlines = !hinting || "hintnone".equals(hintstyle) || "hintslight".equals(hintstyle);
+        g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, outlines
+                ? RenderingHints.VALUE_FRACTIONALMETRICS_ON : RenderingHints.VALUE_FRACTIONALMETRICS_OFF);
+        g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, outlines
+                ? RenderingHints.VALUE_STROKE_PURE : RenderingHints.VALUE_STROKE_NORMALIZE);
+
+        int contrast;
+        switch (lcdfilter) {
+            case "lcdnone":
+                contrast = 250;
+                break;
+            case "lcdlight":
+                contrast = 100;
+                break;
+            case "lcdlegacy":
+                contrast = 180;
+                break;
+            default:
+                contrast = 140;
+        }
+        g.setRenderingHint(RenderingHints.KEY_TEXT_LCD_CONTRAST, contrast);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Answer "fontweak resolve" queries over a Unix domain socket, so scripts
+ * do not start a JVM or fc-match per query. The config is read once and
+ * read again when the watcher sees it change; chains are cached by
+ * FontResolver until then.
+ *
+ * Protocol, UTF-8 lines: a query is "FAMILY" or "FAMILY\tLANG", the answer
+ * the chain with families separated by tabs. Answers come in the order of
+ * the queries, so a client can send many queries before reading, as long
+ * as it reads answers while it sends. Queries that arrive together are
+ * answered with one write. Try it with
+ * "printf 'serif\tzh-cn\n' | socat - UNIX-CONNECT:$XDG_RUNTIME_DIR/fontweak.sock".
+ *
+ * Each client is served on its own virtual thread on Java 21, a pooled
+ * thread before. Needs Java 16 for Unix domain sockets, the build leaves
+ * this class out on older JDKs.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+class ResolveDaemon implements Closeable {
+
+    // Longest query line, longer ones close the connection
+    static final int MAX_LINE = 64 * 1024;
+
+    // Results kept per resolver, clients may ask for any name
+    static final int CACHE_LIMIT = 10000;
+
+    private final File file;
+    private final boolean system;
+    private final Path socket;
+    private final ServerSocketChannel server;
+    private final ExecutorService clients;
+    private ConfigWatcher watcher;
+    private volatile File configFile;
+    private volatile SystemFontConfig systemConfig;
+    // Replaced as a whole when files change, never edited
+    private volatile FontResolver resolver;
+
+    /**
+     * Usage: fontweak daemon [--config FILE] [--system] [--socket PATH]
+     *
+     * @param args Arguments after "daemon".
+     * @return Exit code, when the daemon failed to start.
+     */
+    public static int run(String[] args) {
+        File file = null;
+        boolean system = false;
+        Path socket = getDefaultSocket().toPath();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--config") && i + 1 < args.length) {
+                file = new File(args[++i]);
+            } else if (args[i].equals("--system")) {
+                system = true;
+            } else if (args[i].equals("--socket") && i + 1 < args.length) {
+                socket = new File(args[++i]).toPath();
+            } else {
+                System.err.println("Usage: fontweak daemon [--config FILE] [--system] [--socket PATH]");
+                return 2;
+            }
+        }
+
+        final ResolveDaemon daemon;
+        try {
+            daemon = new ResolveDaemon(file, system, socket);
+        } catch (IOException | XMLStreamException ex) {
+            System.err.println(ex.getMessage());
+            return 1;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                daemon.close();
+            }
+        }, "fontweak-daemon-exit"));
+        daemon.serve();
+        return 0;
+    }
+
+    /**
+     * @return "$XDG_RUNTIME_DIR/fontweak.sock", or "daemon.sock" in the cache
+     * directory without a runtime directory.
+     */
+    static File getDefaultSocket() {
+        String runtime = System.getenv("XDG_RUNTIME_DIR");
+        if (runtime == null || runtime.isEmpty()) {
+            return new File(SystemFontList.getCacheDir(), "daemon.sock");
+        }
+        return new File(runtime, "fontweak.sock");
+    }
+
+    /**
+     * Read the config and listen on the socket.
+     *
+     * @param file Config file, null for the one of the user.
+     * @param system Apply the system config too.
+     * @param socket Socket path. A socket left by a daemon that is gone is
+     * replaced.
+     * @throws IOException If the config cannot be read, or the socket is
+     * used by a running daemon.
+     * @throws XMLStreamException If the config is not valid.
+     */
+    ResolveDaemon(File file, boolean system, Path socket) throws IOException, XMLStreamException {
+        this.file = file;
+        this.system = system;
+        this.socket = socket;
+        load();
+
+        if (Files.exists(socket)) {
+            if (isServing(socket)) {
+                throw new IOException("A daemon is running on " + socket);
+            }
+            Files.delete(socket); // Left by a daemon that was killed
+        }
+        Files.createDirectories(socket.toAbsolutePath().getParent());
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        clients = newClientExecutor();
+
+        try {
+            watcher = new ConfigWatcher(new ConfigWatcher.Listener() {
+                @Override
+                public void changed(ConfigWatcher.Change change) {
+                    if (change.config || change.system) {
+                        try {
+                            load();
+                        } catch (IOException | XMLStreamException ex) {
+                            // Keep answering with the rules read before
+                            Logger.getLogger(ResolveDaemon.class.getName()).log(Level.WARNING, null, ex);
+                        }
+                    }
+                }
+            });
+            watcher.watchConfig(configFile);
+            if (systemConfig != null) {
+                watcher.watchSystem(systemConfig);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ResolveDaemon.class.getName()).log(Level.WARNING, "Config changes are not seen", ex);
+        }
+    }
+
+    // Read the config into a new resolver, which has an empty cache
+    private void load() throws IOException, XMLStreamException {
+        FontConfig config = file != null ? new FontConfig(file) : new FontConfig();
+        config.load();
+        FontResolver fresh = new FontResolver(config);
+        fresh.setCacheLimit(CACHE_LIMIT);
+        configFile = config.getFile();
+        if (system) {
+            systemConfig = SystemFontConfig.load(configFile);
+            fresh.setSystemConfig(systemConfig);
+            if (watcher != null) {
+                watcher.watchSystem(systemConfig);
+            }
+        }
+        resolver = fresh;
+        Logger.getLogger(ResolveDaemon.class.getName()).log(Level.INFO, "Resolving with {0} matches and {1} aliases",
+                new Object[]{config.matchList.size(), config.aliasList.size()});
+    }
+
+    /**
+     * Accept clients until closed.
+     */
+    void serve() {
+        while (true) {
+            final SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (ClosedChannelException ex) {
+                return;
+            } catch (IOException ex) {
+                Logger.getLogger(ResolveDaemon.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            }
+            clients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    answer(client);
+                }
+            });
+        }
+    }
+
+    private void answer(SocketChannel client) {
+        ByteBuffer in = ByteBuffer.allocate(8192);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        try (SocketChannel channel = client) {
+            while (channel.read(in) >= 0) {
+                // Queries read so far are one batch of one generation
+                FontResolver current = resolver;
+                byte[] bytes = in.array();
+                int start = 0;
+                for (int i = 0; i < in.position(); i++) {
+                    if (bytes[i] == '\n') {
+                        answer(current, new String(bytes, start, i - start, StandardCharsets.UTF_8), out);
+                        start = i + 1;
+                    }
+                }
+                in.flip();
+                in.position(start);
+                in.compact();
+                if (out.size() > 0) {
+                    ByteBuffer answers = ByteBuffer.wrap(out.toByteArray());
+                    while (answers.hasRemaining()) {
+                        channel.write(answers);
+                    }
+                    out.reset();
+                }
+                if (!in.hasRemaining()) {
+                    if (in.capacity() >= MAX_LINE) {
+                        return; // Not a query
+                    }
+                    in.flip();
+                    in = ByteBuffer.allocate(in.capacity() * 2).put(in);
+                }
+            }
+        } catch (IOException ex) {
+            // Client went away
+            Logger.getLogger(ResolveDaemon.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    private static void answer(FontResolver resolver, String query, ByteArrayOutputStream out) {
+        if (query.endsWith("\r")) {
+            query = query.substring(0, query.length() - 1);
+        }
+        if (!query.isEmpty()) {
+            int tab = query.indexOf('\t');
+            String family = tab < 0 ? query : query.substring(0, tab);
+            String lang = tab < 0 || tab == query.length() - 1 ? null : query.substring(tab + 1);
+            StringBuilder line = new StringBuilder();
+            for (String name : resolver.resolve(family, lang)) {
+                if (line.length() > 0) {
+                    line.append('\t');
+                }
+                line.append(name);
+            }
+            byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.write('\n');
+    }
+
+    /**
+     * Stop serving and remove the socket.
+     */
+    @Override
+    public void close() {
+        try {
+            server.close();
+            Files.deleteIfExists(socket);
+            if (watcher != null) {
+                watcher.close();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ResolveDaemon.class.getName()).log(Level.WARNING, null, ex);
+        }
+        clients.shutdownNow();
+    }
+
+    private static boolean isServing(Path socket) {
+        try (SocketChannel probe = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            return probe.isConnected();
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // Virtual threads are in Java 21, found by name to build on Java 16
+    private static ExecutorService newClientExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "fontweak-daemon-client");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,665 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Import and export match and alias rules as CSV or JSON Lines, for tables
+ * of many rules that are not added one by one in the window.
+ *
+ * <pre>
+ * type,family,lang,families...
+ * match,sans-serif,zh-cn,Noto Sans CJK SC,WenQuanYi Micro Hei
+ * alias,Arial,,Liberation Sans
+ *
+ * {"type":"match","family":"sans-serif","lang":"zh-cn","families":["Noto Sans CJK SC"]}
+ * {"type":"alias","family":"Arial","prefer":"Liberation Sans"}
+ * </pre>
+ *
+ * Like in FontPolicy, a rule without families removes the rule. Generic
+ * matches are emptied instead, they stay in the config. Records are read and
+ * applied to the config one at a time, so only the config grows with the
+ * input. Invalid records and later records of the same rule are reported
+ * and the rest is applied. Other JSON fields are skipped. The config is not
+ * written, save it once after all files are imported.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class RuleTransfer {
+
+    public enum Format {
+        CSV, JSONL;
+
+        /**
+         * @param file File name ending with ".csv", ".jsonl" or ".json".
+         * @return Format of the file, CSV if not known.
+         */
+        public static Format of(File file) {
+            String name = file.getName().toLowerCase();
+            return name.endsWith(".jsonl") || name.endsWith(".json") ? JSONL : CSV;
+        }
+    }
+
+    /**
+     * Counts of an import.
+     */
+    public static class Report {
+        public int added;
+        public int changed;
+        public int removed;
+        public int unchanged;
+        public int duplicates;
+        public int errors;
+
+        @Override
+        public String toString() {
+            return added + " added, " + changed + " changed, " + removed + " removed, " + unchanged + " unchanged, "
+                    + duplicates + " duplicates, " + errors + " errors";
+        }
+    }
+
+    private final FontConfig config;
+    private final PrintStream problems;
+    private final Report report = new Report();
+    // Rules imported so far by key, with where they were
+    private final Map<Long, String> matchesSeen = new HashMap<>();
+    private final Map<Long, String> aliasesSeen = new HashMap<>();
+
+    /**
+     * @param config Config to import into.
+     * @param problems Where errors and duplicates are printed, one line
+     * each with file and line.
+     */
+    public RuleTransfer(FontConfig config, PrintStream problems) {
+        this.config = config;
+        this.problems = problems;
+    }
+
+    /**
+     * @return Counts of all imports so far.
+     */
+    public Report getReport() {
+        return report;
+    }
+
+    /**
+     * Import rules. Rules of earlier imports of this object count as
+     * duplicates too.
+     *
+     * @param reader Records.
+     * @param format Format of the records.
+     * @param name File name for problems.
+     * @throws IOException If the reader fails.
+     */
+    public void importRules(Reader reader, Format format, String name) throws IOException {
+        RecordReader records = format == Format.CSV ? new CsvReader(reader) : new JsonReader(reader);
+        boolean first = true;
+        while (true) {
+            String[] record;
+            try {
+                record = records.next();
+                if (record == null) {
+                    break;
+                }
+                String where = name + ":" + records.start;
+                if (first && format == Format.CSV && record[0].equals("type")) {
+                    first = false;
+                    continue; // Header
+                }
+                first = false;
+                apply(record, where);
+            } catch (IllegalArgumentException ex) {
+                report.errors++;
+                problems.println(name + ":" + records.start + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    // Record: type, family, lang or null, families...
+    private void apply(String[] record, String where) {
+        String family = record[1];
+        if (family == null || family.isEmpty()) {
+            throw new IllegalArgumentException("Empty family");
+        }
+        String[] families = Arrays.copyOfRange(record, 3, record.length);
+        for (String value : families) {
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("Empty family in the list");
+            }
+        }
+        String lang = record[2] == null || record[2].isEmpty() ? null : record[2];
+
+        switch (record[0]) {
+            case "match":
+                FontMatch match = new FontMatch(family, lang, families.length == 0 ? null : families);
+                if (seen(matchesSeen, match.key(), where)) {
+                    applyMatch(match);
+                }
+                break;
+            case "alias":
+                if (lang != null) {
+                    throw new IllegalArgumentException("Alias with a language");
+                } else if (families.length > 1) {
+                    throw new IllegalArgumentException("Alias with more than one family");
+                }
+                FontAlias alias = new FontAlias(family, families.length == 0 ? null : families[0]);
+                if (seen(aliasesSeen, alias.key(), where)) {
+                    applyAlias(alias);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown type: " + record[0]);
+        }
+    }
+
+    // False for a duplicate, which is reported and left out
+    private boolean seen(Map<Long, String> seen, long key, String where) {
+        String before = seen.get(key);
+        if (before == null) {
+            seen.put(key, where);
+            return true;
+        }
+        report.duplicates++;
+        problems.println(where + ": Same rule as " + before + ", left out");
+        return false;
+    }
+
+    private void applyMatch(FontMatch match) {
+        FontMatch existing = config.matchList.find(match.key());
+        if (match.familyEdit == null) {
+            if (existing != null && !existing.isEmpty() && isGeneric(existing)) {
+                // The window edits them in place, they must stay in the list
+                existing.familyEdit = null;
+                config.rulesChanged();
+                report.removed++;
+            } else if (existing != null && !existing.isEmpty()) {
+                config.matchList.remove(existing);
+                report.removed++;
+            } else {
+                report.unchanged++;
+            }
+        } else if (existing == null) {
+            config.matchList.add(match);
+            report.added++;
+        } else if (!Arrays.equals(existing.familyEdit, match.familyEdit)) {
+            existing.familyEdit = match.familyEdit;
+            config.rulesChanged();
+            report.changed++;
+        } else {
+            report.unchanged++;
+        }
+    }
+
+    private boolean isGeneric(FontMatch match) {
+        return match == config.sansMatch || match == config.serifMatch || match == config.monoMatch;
+    }
+
+    private void applyAlias(FontAlias alias) {
+        FontAlias existing = config.aliasList.find(alias.key());
+        if (alias.prefer == null) {
+            if (existing == null) {
+                report.unchanged++;
+            }
+            while (existing != null) {
+                config.aliasList.remove(existing);
+                report.removed++;
+                existing = config.aliasList.find(alias.key());
+            }
+        } else if (existing == null) {
+            config.aliasList.add(alias);
+            report.added++;
+        } else if (!existing.prefer.equals(alias.prefer)) {
+            existing.prefer = alias.prefer;
+            config.rulesChanged();
+            report.changed++;
+        } else {
+            report.unchanged++;
+        }
+    }
+
+    /**
+     * Export the rules of a config in file order, one record each.
+     *
+     * @param config Config to export.
+     * @param writer Where records are written.
+     * @param format Format of the records.
+     * @return Number of records.
+     * @throws IOException If the writer fails.
+     */
+    public static int exportRules(FontConfig config, Writer writer, Format format) throws IOException {
+        int count = 0;
+        if (format == Format.CSV) {
+            writer.write("type,family,lang,families\n");
+        }
+        for (FontMatch match : config.matchList) {
+            if (!match.isEmpty()) {
+                String[] record = new String[3 + match.familyEdit.length];
+                record[0] = "match";
+                record[1] = match.familyTest;
+                record[2] = match.langTest;
+                System.arraycopy(match.familyEdit, 0, record, 3, match.familyEdit.length);
+                write(writer, format, record, "families");
+                count++;
+            }
+        }
+        for (FontAlias alias : config.aliasList) {
+            if (!alias.isEmpty()) {
+                write(writer, format, new String[]{"alias", alias.family, null, alias.prefer}, "prefer");
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void write(Writer writer, Format format, String[] record, String familiesName) throws IOException {
+        StringBuilder line = new StringBuilder();
+        if (format == Format.CSV) {
+            for (int i = 0; i < record.length; i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                String value = record[i] == null ? "" : record[i];
+                if (value.matches("(?s).*[,\"\r\n].*|\\s.*|.*\\s")) {
+                    line.append('"').append(value.replace("\"", "\"\"")).append('"');
+                } else {
+                    line.append(value);
+                }
+            }
+        } else {
+            line.append("{\"type\":");
+            quote(line, record[0]);
+            line.append(",\"family\":");
+            quote(line, record[1]);
+            if (record[2] != null) {
+                line.append(",\"lang\":");
+                quote(line, record[2]);
+            }
+            if (familiesName.equals("prefer")) {
+                line.append(",\"prefer\":");
+                quote(line, record[3]);
+            } else {
+                line.append(",\"families\":[");
+                for (int i = 3; i < record.length; i++) {
+                    if (i > 3) {
+                        line.append(',');
+                    }
+                    quote(line, record[i]);
+                }
+                line.append(']');
+            }
+            line.append('}');
+        }
+        line.append('\n');
+        writer.write(line.toString());
+    }
+
+    private static void quote(StringBuilder line, String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    // Reads records from a stream, keeping only the current one
+    private abstract static class RecordReader {
+
+        final Reader reader;
+        // Lines read, and the first line of the current record
+        int line;
+        int start;
+        private int peeked = -2;
+
+        RecordReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        int read() throws IOException {
+            if (peeked != -2) {
+                int c = peeked;
+                peeked = -2;
+                return c;
+            }
+            return reader.read();
+        }
+
+        int peek() throws IOException {
+            if (peeked == -2) {
+                peeked = reader.read();
+            }
+            return peeked;
+        }
+
+        /**
+         * @return Next record: type, family, lang or null, families. Null at
+         * the end.
+         * @throws IllegalArgumentException If the record is not valid. The
+         * reader is at the next record.
+         */
+        abstract String[] next() throws IOException;
+    }
+
+    private static class CsvReader extends RecordReader {
+
+        CsvReader(Reader reader) {
+            super(reader);
+        }
+
+        @Override
+        String[] next() throws IOException {
+            List<String> cells = new ArrayList<>();
+            StringBuilder cell = new StringBuilder();
+            boolean quoted = false;
+            boolean empty = true;
+            start = line + 1;
+            int c;
+            while (true) {
+                c = read();
+                if (c < 0) {
+                    if (empty) {
+                        return null;
+                    }
+                    break;
+                }
+                empty = false;
+                if (quoted) {
+                    if (c == '"') {
+                        if (peek() == '"') {
+                            cell.append((char) read());
+                        } else {
+                            quoted = false;
+                        }
+                    } else {
+                        if (c == '\n') {
+                            line++;
+                        }
+                        cell.append((char) c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    cells.add(cell.toString());
+                    cell.setLength(0);
+                } else if (c == '\n') {
+                    line++;
+                    if (cells.isEmpty() && cell.length() == 0) {
+                        empty = true; // Blank line
+                        start = line + 1;
+                        continue;
+                    }
+                    break;
+                } else if (c != '\r') {
+                    cell.append((char) c);
+                }
+            }
+            cells.add(cell.toString());
+            if (quoted) {
+                throw new IllegalArgumentException("Quote is not closed");
+            }
+            if (cells.size() < 3) {
+                throw new IllegalArgumentException("Less than 3 columns");
+            }
+            // Empty cells at the end are from spreadsheets, not families
+            int size = cells.size();
+            while (size > 3 && cells.get(size - 1).isEmpty()) {
+                size--;
+            }
+            String[] record = cells.subList(0, size).toArray(new String[size]);
+            for (int i = 0; i < record.length; i++) {
+                record[i] = record[i].trim();
+            }
+            return record;
+        }
+    }
+
+    private static class JsonReader extends RecordReader {
+
+        private String text;
+        private int pos;
+
+        JsonReader(Reader reader) {
+            super(reader);
+        }
+
+        @Override
+        String[] next() throws IOException {
+            StringBuilder builder = new StringBuilder();
+            int c;
+            do {
+                builder.setLength(0);
+                while ((c = read()) >= 0 && c != '\n') {
+                    builder.append((char) c);
+                }
+                if (c < 0 && builder.toString().trim().isEmpty()) {
+                    return null;
+                }
+                line++;
+            } while (builder.toString().trim().isEmpty());
+            start = line;
+
+            text = builder.toString();
+            pos = 0;
+            Map<String, Object> object = parseObject();
+            skipBlanks();
+            if (pos < text.length()) {
+                throw new IllegalArgumentException("Text after the object");
+            }
+
+            String type = string(object, "type");
+            String family = string(object, "family");
+            String lang = string(object, "lang");
+            List<String> families = new ArrayList<>();
+            if ("alias".equals(type)) {
+                if (object.containsKey("families")) {
+                    throw new IllegalArgumentException("Alias with families, use prefer");
+                }
+                String prefer = string(object, "prefer");
+                if (prefer != null && !prefer.isEmpty()) {
+                    families.add(prefer);
+                }
+            } else {
+                if (object.containsKey("prefer")) {
+                    throw new IllegalArgumentException("Match with prefer, use families");
+                }
+                Object value = object.get("families");
+                if (value instanceof List) {
+                    for (Object item : (List<?>) value) {
+                        if (!(item instanceof String)) {
+                            throw new IllegalArgumentException("families is not a list of strings");
+                        }
+                        families.add((String) item);
+                    }
+                } else if (value != null) {
+                    throw new IllegalArgumentException("families is not a list");
+                }
+            }
+            if (type == null) {
+                throw new IllegalArgumentException("No type");
+            }
+            List<String> record = new ArrayList<>(Arrays.asList(type, family, lang));
+            record.addAll(families);
+            return record.toArray(new String[record.size()]);
+        }
+
+        private static String string(Map<String, Object> object, String key) {
+            Object value = object.get(key);
+            if (value != null && !(value instanceof String)) {
+                throw new IllegalArgumentException(key + " is not a string");
+            }
+            return (String) value;
+        }
+
+        private Map<String, Object> parseObject() {
+            Map<String, Object> object = new HashMap<>();
+            expect('{');
+            skipBlanks();
+            if (peekChar() == '}') {
+                pos++;
+                return object;
+            }
+            while (true) {
+                skipBlanks();
+                String key = parseString();
+                skipBlanks();
+                expect(':');
+                object.put(key, parseValue());
+                skipBlanks();
+                if (peekChar() == ',') {
+                    pos++;
+                } else {
+                    expect('}');
+                    return object;
+                }
+            }
+        }
+
+        private Object parseValue() {
+            skipBlanks();
+            char c = peekChar();
+            if (c == '"') {
+                return parseString();
+            } else if (c == '[') {
+                pos++;
+                List<Object> list = new ArrayList<>();
+                skipBlanks();
+                if (peekChar() == ']') {
+                    pos++;
+                    return list;
+                }
+                while (true) {
+                    list.add(parseValue());
+                    skipBlanks();
+                    if (peekChar() == ',') {
+                        pos++;
+                    } else {
+                        expect(']');
+                        return list;
+                    }
+                }
+            } else if (c == '{') {
+                return parseObject();
+            } else if (text.startsWith("null", pos)) {
+                pos += 4;
+                return null;
+            } else if (text.startsWith("true", pos)) {
+                pos += 4;
+                return Boolean.TRUE;
+            } else if (text.startsWith("false", pos)) {
+                pos += 5;
+                return Boolean.FALSE;
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                return parseNumber();
+            }
+            throw new IllegalArgumentException("Unexpected " + (pos < text.length() ? "'" + c + "'" : "end") + " at column " + (pos + 1));
+        }
+
+        private Double parseNumber() {
+            int begin = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+            try {
+                return Double.valueOf(text.substring(begin, pos));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Bad number at column " + (begin + 1));
+            }
+        }
+
+        private String parseString() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                if (pos >= text.length()) {
+                    throw new IllegalArgumentException("String is not closed");
+                }
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return value.toString();
+                } else if (c != '\\') {
+                    value.append(c);
+                } else if (pos < text.length()) {
+                    char escape = text.charAt(pos++);
+                    switch (escape) {
+                        case 'b':
+                            value.append('\b');
+                            break;
+                        case 'f':
+                            value.append('\f');
+                            break;
+                        case 'n':
+                            value.append('\n');
+                            break;
+                        case 'r':
+                            value.append('\r');
+                            break;
+                        case 't':
+                            value.append('\t');
+                            break;
+                        case 'u':
+                            if (pos + 4 > text.length()) {
+                                throw new IllegalArgumentException("Bad escape at column " + pos);
+                            }
+                            try {
+                                value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                            } catch (NumberFormatException ex) {
+                                throw new IllegalArgumentException("Bad escape at column " + pos);
+                            }
+                            pos += 4;
+                            break;
+                        default:
+                            value.append(escape); // " \ /
+                            break;
+                    }
+                }
+            }
+        }
+
+        private void expect(char c) {
+            if (peekChar() != c) {
+                throw new IllegalArgumentException("Expected '" + c + "' at column " + (pos + 1));
+            }
+            pos++;
+        }
+
+        private char peekChar() {
+            return pos < text.length() ? text.charAt(pos) : '\0';
+        }
+
+        private void skipBlanks() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
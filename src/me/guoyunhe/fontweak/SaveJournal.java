@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of config saves, in "~/.cache/fontweak/journal".
+ *
+ * A save first appends the new content of the file to the journal and waits
+ * until the journal is on disk. Then the content goes to a temporary file
+ * that replaces the config file by an atomic rename, without waiting for the
+ * disk again. If the computer crashes before the new file is on disk, the
+ * next start finds the save in the journal and writes the file again.
+ *
+ * Saves from many threads at once, like in batch mode, share one fsync of
+ * the journal: the first waiting thread syncs everything appended so far and
+ * the others only wait for it. Files are synced in checkpoints, which empty
+ * the journal, when it grows big, when a command is done and on exit.
+ *
+ * Each process takes a journal file of its own by a file lock, "journal",
+ * "journal.1" and so on. Journals left by a crash are recovered when a
+ * process can lock them.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class SaveJournal {
+
+    private static final int SAVE = 1;
+    private static final int FILES = 8;
+    // Journal size that starts a checkpoint
+    private static final long CHECKPOINT_SIZE = 4 * 1024 * 1024;
+
+    private static SaveJournal defaultJournal;
+
+    private final File file;
+    // Not a FileChannel, an interrupted save must not close it for others
+    private RandomAccessFile data;
+    private FileLock lock;
+
+    private final Object mutex = new Object();
+    // Records appended and records known on disk
+    private long appended;
+    private long synced;
+    private boolean syncing;
+    // Saves between their record and their rename
+    private int publishing;
+    // Files renamed since the last checkpoint
+    private final Set<Path> unsynced = new HashSet<>();
+
+    private SaveJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Journal of this process in the cache directory. Opening it recovers
+     * saves cut off by a crash, so entry points that save call it before
+     * reading configs. If no journal can be opened, saves sync each file
+     * instead. It is closed on exit.
+     *
+     * @return Journal.
+     */
+    public static synchronized SaveJournal getDefault() {
+        if (defaultJournal == null) {
+            defaultJournal = open(SystemFontList.getCacheDir());
+            final SaveJournal journal = defaultJournal;
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    journal.close();
+                }
+            }, "fontweak-journal"));
+        }
+        return defaultJournal;
+    }
+
+    /**
+     * Recover journals in a directory that no other process uses and take
+     * one of them.
+     *
+     * @param dir Directory of journals.
+     * @return Journal, without a file if none could be locked.
+     */
+    static SaveJournal open(File dir) {
+        SaveJournal mine = null;
+        dir.mkdirs();
+        for (int i = 0; i < FILES; i++) {
+            SaveJournal journal = new SaveJournal(new File(dir, i == 0 ? "journal" : "journal." + i));
+            if (i > 0 && mine != null && !journal.file.exists()) {
+                continue;
+            }
+            try {
+                if (!journal.lock()) {
+                    continue; // Used by a running process
+                }
+                journal.recover();
+                if (mine == null) {
+                    mine = journal;
+                } else {
+                    journal.close();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(SaveJournal.class.getName()).log(Level.WARNING, null, ex);
+                journal.release();
+            }
+        }
+        return mine != null ? mine : new SaveJournal(null);
+    }
+
+    private boolean lock() throws IOException {
+        data = new RandomAccessFile(file, "rw");
+        try {
+            lock = data.getChannel().tryLock();
+        } catch (OverlappingFileLockException ex) {
+            lock = null; // Taken by this process
+        }
+        if (lock == null) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    private void release() {
+        try {
+            if (data != null) {
+                data.close(); // Releases the lock too
+            }
+        } catch (IOException ex) {
+            // Ignore
+        }
+        data = null;
+        lock = null;
+    }
+
+    /**
+     * @return Journal file, null if saves are not journaled.
+     */
+    public File getFile() {
+        return data != null ? file : null;
+    }
+
+    /**
+     * Replace a file with new content, durably.
+     *
+     * @param target File to replace or create.
+     * @param content New content.
+     * @throws IOException If the content cannot be written. The file is not
+     * touched in this case.
+     */
+    public void save(Path target, byte[] content) throws IOException {
+        target = target.toAbsolutePath();
+        if (data == null) {
+            publish(target, content, true);
+            return;
+        }
+
+        File old = target.toFile();
+        long sequence = append(record(target.toString(), old.length(), old.lastModified(), content));
+        try {
+            sync(sequence);
+            publish(target, content, false);
+        } finally {
+            boolean full;
+            synchronized (mutex) {
+                publishing--;
+                unsynced.add(target);
+                full = data.length() > CHECKPOINT_SIZE;
+            }
+            if (full) {
+                checkpoint();
+            }
+        }
+    }
+
+    private static ByteBuffer record(String path, long oldLength, long oldModified, byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length + path.length() + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // Length and checksum, set below
+        out.writeLong(0);
+        out.writeByte(SAVE);
+        out.writeUTF(path);
+        out.writeLong(oldLength);
+        out.writeLong(oldModified);
+        out.writeLong(crc(content, 0, content.length));
+        out.writeInt(content.length);
+        out.write(content);
+        out.flush();
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        int length = buffer.capacity() - 12;
+        buffer.putInt(0, length);
+        buffer.putLong(4, crc(buffer.array(), 12, length));
+        return buffer;
+    }
+
+    private long append(ByteBuffer record) throws IOException {
+        synchronized (mutex) {
+            data.seek(data.length());
+            data.write(record.array());
+            publishing++;
+            return ++appended;
+        }
+    }
+
+    // Group commit, one fsync for all records appended while waiting
+    private void sync(long sequence) throws IOException {
+        long upTo;
+        synchronized (mutex) {
+            while (syncing && synced < sequence) {
+                try {
+                    mutex.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while saving");
+                }
+            }
+            if (synced >= sequence) {
+                return;
+            }
+            syncing = true;
+            upTo = appended;
+        }
+        boolean done = false;
+        try {
+            data.getFD().sync(); // Others append and wait meanwhile
+            done = true;
+        } finally {
+            synchronized (mutex) {
+                syncing = false;
+                if (done) {
+                    synced = Math.max(synced, upTo);
+                }
+                mutex.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Write content to a temporary file next to target and rename it over
+     * target.
+     *
+     * @param sync If the file and the rename must be on disk on return.
+     */
+    private static void publish(Path target, byte[] content, boolean sync) throws IOException {
+        Path dir = target.getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+        boolean moved = false;
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                if (sync) {
+                    out.force(true);
+                }
+            }
+            copyAttributes(target, temp);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        if (sync) {
+            syncDirectory(dir);
+        }
+    }
+
+    private static void copyAttributes(Path from, Path to) {
+        if (!Files.exists(from)) {
+            return;
+        }
+        try {
+            PosixFileAttributes attributes = Files.readAttributes(from, PosixFileAttributes.class);
+            PosixFileAttributeView view = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+            view.setPermissions(attributes.permissions());
+            // When root saves a user's config, the user must keep owning it
+            if (!attributes.owner().equals(Files.getOwner(to))) {
+                view.setOwner(attributes.owner());
+                view.setGroup(attributes.group());
+            }
+        } catch (IOException | UnsupportedOperationException ex) {
+            // Not a POSIX file system or not allowed, keep defaults
+        }
+    }
+
+    private static void syncFile(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            // Removed since, nothing to keep
+        }
+    }
+
+    private static void syncDirectory(Path dir) {
+        // Make the rename itself durable. Not possible on every platform.
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Put all saved files on disk and empty the journal. Skipped while
+     * saves are between their record and their rename.
+     */
+    public void checkpoint() {
+        synchronized (mutex) {
+            if (data == null || publishing > 0 || syncing) {
+                return;
+            }
+            try {
+                Set<Path> dirs = new HashSet<>();
+                for (Path path : unsynced) {
+                    syncFile(path);
+                    dirs.add(path.getParent());
+                }
+                for (Path dir : dirs) {
+                    syncDirectory(dir);
+                }
+                unsynced.clear();
+                data.setLength(0);
+                data.getFD().sync();
+            } catch (IOException ex) {
+                Logger.getLogger(SaveJournal.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Checkpoint and give the journal file up.
+     */
+    public void close() {
+        checkpoint();
+        synchronized (mutex) {
+            release();
+        }
+    }
+
+    private static class Record {
+        String path;
+        long oldLength;
+        long oldModified;
+        long crc;
+        byte[] content;
+    }
+
+    /**
+     * Finish the saves in the journal whose file did not reach the disk,
+     * then empty the journal. A file changed by others since is left alone.
+     */
+    private void recover() throws IOException {
+        Map<String, List<Record>> saves = new LinkedHashMap<>();
+        long valid = 0;
+        long size = data.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length = in.readInt();
+                long crc = in.readLong();
+                if (length <= 0 || length > size - valid - 12) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (crc(payload, 0, length) != crc) {
+                    break; // Torn write at the end
+                }
+                Record record = parse(payload);
+                if (record != null) {
+                    List<Record> records = saves.get(record.path);
+                    if (records == null) {
+                        records = new ArrayList<>();
+                        saves.put(record.path, records);
+                    }
+                    records.add(record);
+                }
+                valid += 12 + length;
+            }
+        } catch (EOFException ex) {
+            // End of journal
+        }
+        if (valid < size) {
+            Logger.getLogger(SaveJournal.class.getName()).log(Level.INFO,
+                    "Dropping {0} bytes of unfinished journal record", size - valid);
+        }
+
+        for (List<Record> records : saves.values()) {
+            recover(records);
+        }
+        data.setLength(0);
+        data.getFD().sync();
+    }
+
+    private static Record parse(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        if (in.readByte() != SAVE) {
+            return null;
+        }
+        Record record = new Record();
+        record.path = in.readUTF();
+        record.oldLength = in.readLong();
+        record.oldModified = in.readLong();
+        record.crc = in.readLong();
+        record.content = new byte[in.readInt()];
+        in.readFully(record.content);
+        return record;
+    }
+
+    /**
+     * @param records Saves of one file, oldest first.
+     */
+    private static void recover(List<Record> records) {
+        Record last = records.get(records.size() - 1);
+        Path target = Paths.get(last.path);
+        File file = target.toFile();
+        boolean lost = !file.isFile() || file.length() == 0;
+        if (!lost) {
+            long crc;
+            try {
+                byte[] current = Files.readAllBytes(target);
+                crc = crc(current, 0, current.length);
+            } catch (IOException ex) {
+                Logger.getLogger(SaveJournal.class.getName()).log(Level.WARNING, null, ex);
+                return;
+            }
+            if (crc == last.crc) {
+                syncFile(target); // Saved, maybe not on disk yet
+                syncDirectory(target.getParent());
+                return;
+            }
+            // Still one of the versions before the last save?
+            for (Record record : records) {
+                if (crc == record.crc || file.length() == record.oldLength && file.lastModified() == record.oldModified) {
+                    lost = true;
+                    break;
+                }
+            }
+        }
+        if (!lost) {
+            Logger.getLogger(SaveJournal.class.getName()).log(Level.WARNING,
+                    "{0} was changed after an unfinished save, keeping it", target);
+            return;
+        }
+        try {
+            publish(target, last.content, true);
+            Logger.getLogger(SaveJournal.class.getName()).log(Level.INFO, "Recovered save of {0}", target);
+        } catch (IOException ex) {
+            Logger.getLogger(SaveJournal.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    private static long crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.ImageIcon;
+
+/**
+ * What the main window needs before it can show, loaded on background
+ * threads while the look and feel is set and the frame is built on the EDT.
+ *
+ * It also records a timeline of startup, from the start of the JVM to the
+ * first paint of the window, which is logged at INFO.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class Startup {
+
+    private final long start = System.nanoTime();
+    // Milliseconds from JVM start to the creation of this object
+    private final long offset;
+    private final List<String> names = new ArrayList<>();
+    private final List<Long> times = new ArrayList<>();
+
+    private final ExecutorService pool;
+    private final Future<FontConfig> config;
+    private final Future<SystemFontList> fonts;
+    private final Future<ImageIcon> icon;
+
+    /**
+     * Start loading.
+     */
+    public Startup() {
+        long uptime;
+        try {
+            uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        } catch (RuntimeException | LinkageError ex) {
+            uptime = 0; // No management, count from here
+        }
+        offset = uptime;
+        mark("main");
+
+        pool = Executors.newFixedThreadPool(3, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "fontweak-startup");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        config = pool.submit(new Callable<FontConfig>() {
+            @Override
+            public FontConfig call() {
+                SaveJournal.getDefault(); // Finish saves cut off by a crash first
+                FontConfig config = new FontConfig();
+                config.readConfig();
+                mark("config read");
+                return config;
+            }
+        });
+        fonts = pool.submit(new Callable<SystemFontList>() {
+            @Override
+            public SystemFontList call() {
+                SystemFontList fonts = new SystemFontList();
+                mark("font list read");
+                return fonts;
+            }
+        });
+        icon = pool.submit(new Callable<ImageIcon>() {
+            @Override
+            public ImageIcon call() {
+                ImageIcon icon = new ImageIcon(getClass().getResource("/me/guoyunhe/fontweak/img/icon-256.png"));
+                mark("icon loaded");
+                ResourceBundle.getBundle("me/guoyunhe/fontweak/lang/main"); // Cached for the EDT
+                mark("bundle loaded");
+                return icon;
+            }
+        });
+        pool.shutdown();
+    }
+
+    /**
+     * @return Config of the user, read.
+     */
+    public FontConfig getConfig() {
+        return get(config);
+    }
+
+    /**
+     * @return Font list with the cached fonts, not refreshed yet.
+     */
+    public SystemFontList getFontList() {
+        return get(fonts);
+    }
+
+    /**
+     * @return Application icon.
+     */
+    public ImageIcon getIcon() {
+        return get(icon);
+    }
+
+    private <T> T get(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Record that a step of startup is done.
+     *
+     * @param name Step.
+     */
+    public synchronized void mark(String name) {
+        names.add(name + " [" + Thread.currentThread().getName() + "]");
+        times.add(System.nanoTime());
+    }
+
+    /**
+     * Record the first paint of the window and log the timeline.
+     */
+    public synchronized void firstPaint() {
+        mark("first paint");
+        StringBuilder timeline = new StringBuilder("Startup timeline, ms since JVM start:");
+        for (int i = 0; i < names.size(); i++) {
+            timeline.append(String.format("%n%8.1f  %s", offset + (times.get(i) - start) / 1e6, names.get(i)));
+        }
+        Logger.getLogger(Startup.class.getName()).log(Level.INFO, timeline.toString());
+    }
+}
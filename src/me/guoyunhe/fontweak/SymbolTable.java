@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Numbers font family names, so each name is one String in the heap and
+ * rules can be compared and hashed as ints.
+ *
+ * Configs repeat a few hundred families many times. Names read from files
+ * are replaced by the one String of the table, and saved values and compiled
+ * rules keep ids. Each id also knows the id of its FontResolver.familyKey(),
+ * so families are compared ignoring case and blanks without building keys.
+ *
+ * Ids are never freed, the table only grows with new names. It is safe to
+ * use from any thread.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public final class SymbolTable {
+
+    /**
+     * Table of font families and languages.
+     */
+    public static final SymbolTable FAMILIES = new SymbolTable();
+
+    // Id used for null names
+    public static final int NONE = -1;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[256];
+    private int[] keys = new int[256];
+    private int size;
+
+    /**
+     * @param name Name, may be null.
+     * @return Id of name, the same for equal names. NONE for null.
+     */
+    public synchronized int id(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        return add(name);
+    }
+
+    /**
+     * Look a name up without adding it, for names from outside that may be
+     * anything.
+     *
+     * @param name Name, may be null.
+     * @return Id of name, NONE if it is not in the table or null.
+     */
+    public synchronized int find(String name) {
+        Integer id = name != null ? ids.get(name) : null;
+        return id != null ? id : NONE;
+    }
+
+    private int add(String name) {
+        int id = size++;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, id * 2);
+            keys = Arrays.copyOf(keys, id * 2);
+        }
+        names[id] = name;
+        ids.put(name, id);
+        String key = FontResolver.familyKey(name);
+        int keyId = key.equals(name) ? id : id(key); // May grow the arrays
+        keys[id] = keyId;
+        return id;
+    }
+
+    /**
+     * @param id Id from id().
+     * @return Name, null for NONE.
+     */
+    public synchronized String name(int id) {
+        return id == NONE ? null : names[id];
+    }
+
+    /**
+     * @param id Id from id().
+     * @return Id of the name in lower case without blanks.
+     */
+    public synchronized int key(int id) {
+        return id == NONE ? NONE : keys[id];
+    }
+
+    /**
+     * @param name Name, may be null.
+     * @return The equal name kept by the table.
+     */
+    public String intern(String name) {
+        return name(id(name));
+    }
+
+    /**
+     * @param names Names, may be null.
+     * @return Ids of names, null if names is null.
+     */
+    public synchronized int[] ids(String[] names) {
+        if (names == null) {
+            return null;
+        }
+        int[] result = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            result[i] = id(names[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @param ids Ids from id(), may be null.
+     * @return Names, null if ids is null.
+     */
+    public synchronized String[] names(int[] ids) {
+        if (ids == null) {
+            return null;
+        }
+        String[] result = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            result[i] = name(ids[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @param names Names, may be null.
+     * @return New array of the names kept by the table, null if names is
+     * null.
+     */
+    public String[] intern(String[] names) {
+        return names(ids(names));
+    }
+
+    /**
+     * @return Number of names.
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
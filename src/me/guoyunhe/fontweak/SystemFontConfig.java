@@ -0,0 +1,760 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The effective fontconfig configuration of the system: "/etc/fonts/fonts.conf"
+ * and everything it includes, usually "conf.d" with dozens of files and the
+ * user's fonts.conf.
+ *
+ * Files are parsed in parallel. A file is scheduled as soon as the file
+ * including it is parsed, while the include graph is walked in order. Only
+ * rules on font families are kept. Parsed files are cached in
+ * "~/.cache/fontweak/fragments", keyed by path, size and modification time,
+ * and by content hash when the time changed but the content did not, so
+ * loading again only parses the files that changed.
+ *
+ * An include leading back to a file that is being included is a cycle. It is
+ * skipped and reported in cycles. A file included twice is only loaded once.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class SystemFontConfig {
+
+    private static final int MAGIC = 0x46574346; // "FWCF"
+    private static final int VERSION = 1;
+
+    // Item types in the cache
+    private static final int RULE = 0;
+    private static final int INCLUDE = 1;
+    private static final int DIR = 2;
+
+    /**
+     * A change of the family list, like an edit of a match or a list of an
+     * alias.
+     */
+    public static class Rule {
+        // Tested family and language, null if not tested
+        public String family;
+        public String lang;
+        // fontconfig edit mode: prepend, prepend_first, append, append_last,
+        // assign or assign_replace
+        public String mode;
+        public String[] families;
+
+        @Override
+        public String toString() {
+            return family + (lang != null ? " [" + lang + "]" : "") + " " + mode + " " + Arrays.toString(families);
+        }
+    }
+
+    // Include or dir element
+    private static class Path {
+        String path;
+        String prefix;
+        boolean ignoreMissing;
+    }
+
+    // A parsed file, items are Rule, include or dir Path in file order
+    private static class Fragment {
+        String path;
+        long size;
+        long modified;
+        byte[] hash;
+        List<Object> items = new ArrayList<>();
+    }
+
+    // Rules in order of the include graph
+    public List<Rule> rules = new ArrayList<>();
+    // Where the left out user config would be included in rules, -1 if not
+    public int userPosition = -1;
+    // Files loaded, in order
+    public List<File> files = new ArrayList<>();
+    // Directories of include elements, like conf.d
+    public List<File> includeDirs = new ArrayList<>();
+    // Font directories of dir elements
+    public List<File> dirList = new ArrayList<>();
+    // Include cycles like "a.conf -> b.conf -> a.conf"
+    public List<String> cycles = new ArrayList<>();
+
+    private final File root;
+    private final File user;
+    private final ConcurrentMap<String, Future<Fragment>> tasks = new ConcurrentHashMap<>();
+    private final Map<String, Fragment> cached = new HashMap<>();
+    private final AtomicInteger parsed = new AtomicInteger();
+    private final AtomicInteger reused = new AtomicInteger();
+    private final Set<String> loaded = new HashSet<>();
+    private final List<String> stack = new ArrayList<>();
+    private ForkJoinPool pool;
+
+    // Factories are not thread safe, one per parsing thread
+    private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+            // Empty DTD reference, since it is missing in most system
+            factory.setXMLResolver(new XMLResolver() {
+                @Override
+                public Object resolveEntity(String publicId, String systemId, String baseURI, String namespace) {
+                    if (systemId != null && systemId.contains("fonts.dtd")) {
+                        return new ByteArrayInputStream(new byte[0]);
+                    } else {
+                        return null;
+                    }
+                }
+            });
+            return factory;
+        }
+    };
+
+    private SystemFontConfig(File root, File user) {
+        this.root = root;
+        this.user = user != null ? canonical(user) : null;
+    }
+
+    /**
+     * @return "$FONTCONFIG_FILE" or "/etc/fonts/fonts.conf".
+     */
+    public static File getDefaultFile() {
+        String path = System.getenv("FONTCONFIG_FILE");
+        return new File(path != null && !path.isEmpty() ? path : "/etc/fonts/fonts.conf");
+    }
+
+    /**
+     * @return Default cache file, "$XDG_CACHE_HOME/fontweak/fragments".
+     */
+    public static File getCacheFile() {
+        return new File(SystemFontList.getCacheDir(), "fragments");
+    }
+
+    /**
+     * Load the default system configuration, leaving out the user config.
+     *
+     * @param user The user's fonts.conf, read by FontConfig instead.
+     * @return Configuration, empty if there is none.
+     */
+    public static SystemFontConfig load(File user) {
+        return load(getDefaultFile(), user, getCacheFile());
+    }
+
+    /**
+     * Load a configuration and everything it includes.
+     *
+     * @param root Main config file.
+     * @param user File to leave out, its place is userPosition. Null to load
+     * all.
+     * @param cache Cache of parsed files, null for none.
+     * @return Configuration, empty if root is missing.
+     */
+    public static SystemFontConfig load(File root, File user, File cache) {
+        long start = System.nanoTime();
+        SystemFontConfig config = new SystemFontConfig(root, user);
+        if (cache != null && cache.isFile()) {
+            try {
+                for (Fragment fragment : read(cache)) {
+                    config.cached.put(fragment.path, fragment);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(SystemFontConfig.class.getName()).log(Level.INFO, "Rebuilding fragment cache", ex);
+            }
+        }
+
+        if (root.isFile()) {
+            config.pool = new ForkJoinPool();
+            try {
+                File file = canonical(root);
+                config.schedule(file);
+                config.expand(file);
+            } finally {
+                config.pool.shutdown();
+            }
+        }
+
+        if (cache != null && config.cacheChanged()) {
+            try {
+                config.write(cache);
+            } catch (IOException ex) {
+                Logger.getLogger(SystemFontConfig.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        Logger.getLogger(SystemFontConfig.class.getName()).log(Level.INFO,
+                "Loaded {0} config files ({1} parsed, {2} cached) in {3} ms",
+                new Object[]{config.files.size(), config.parsed.get(), config.reused.get(),
+                    (System.nanoTime() - start) / 1000000});
+        return config;
+    }
+
+    /**
+     * @return Number of files parsed by the last load.
+     */
+    public int getParsedCount() {
+        return parsed.get();
+    }
+
+    /**
+     * @return Number of files taken from the cache by the last load.
+     */
+    public int getCachedCount() {
+        return reused.get();
+    }
+
+    private void schedule(final File file) {
+        String key = file.getPath();
+        if (tasks.containsKey(key)) {
+            return;
+        }
+        FutureTask<Fragment> task = new FutureTask<>(new Callable<Fragment>() {
+            @Override
+            public Fragment call() throws IOException {
+                Fragment fragment = fetch(file);
+                // Parse included files while this one is walked
+                for (Object item : fragment.items) {
+                    if (item instanceof Path && !(item instanceof DirPath)) {
+                        List<File> targets = targets((Path) item, file);
+                        if (targets != null) {
+                            for (File target : targets) {
+                                if (!target.equals(user)) {
+                                    schedule(target);
+                                }
+                            }
+                        }
+                    }
+                }
+                return fragment;
+            }
+        });
+        if (tasks.putIfAbsent(key, task) == null) {
+            pool.execute(task);
+        }
+    }
+
+    // Dir element, told apart from include by its class
+    private static class DirPath extends Path {
+    }
+
+    /**
+     * Parse a file or take it from the cache.
+     */
+    private Fragment fetch(File file) throws IOException {
+        Fragment old = cached.get(file.getPath());
+        long size = file.length();
+        long modified = file.lastModified();
+        if (old != null && old.size == size && old.modified == modified) {
+            reused.incrementAndGet();
+            return old;
+        }
+
+        byte[] data = Files.readAllBytes(file.toPath());
+        byte[] hash = hash(data);
+        Fragment fragment;
+        if (old != null && Arrays.equals(old.hash, hash)) {
+            // Touched but not changed
+            fragment = new Fragment();
+            fragment.items = old.items;
+            reused.incrementAndGet();
+        } else {
+            fragment = parse(data, file);
+            parsed.incrementAndGet();
+        }
+        fragment.path = file.getPath();
+        fragment.size = data.length;
+        fragment.modified = modified;
+        fragment.hash = hash;
+        return fragment;
+    }
+
+    /**
+     * Walk a file in order, loading included files where they are included.
+     */
+    private void expand(File file) {
+        Fragment fragment;
+        try {
+            fragment = tasks.get(file.getPath()).get();
+        } catch (InterruptedException | ExecutionException ex) {
+            Logger.getLogger(SystemFontConfig.class.getName()).log(Level.WARNING, file.getPath(), ex);
+            return;
+        }
+        loaded.add(file.getPath());
+        files.add(file);
+        stack.add(file.getPath());
+
+        for (Object item : fragment.items) {
+            if (item instanceof Rule) {
+                rules.add((Rule) item);
+            } else if (item instanceof DirPath) {
+                File dir = resolve(((Path) item).path, ((Path) item).prefix, "XDG_DATA_HOME", ".local/share", root);
+                if (dir != null) {
+                    dirList.add(dir);
+                }
+            } else {
+                Path include = (Path) item;
+                File dir = resolve(include.path, include.prefix, "XDG_CONFIG_HOME", ".config", root);
+                if (dir != null && dir.isDirectory() && !includeDirs.contains(dir)) {
+                    includeDirs.add(dir);
+                }
+                List<File> targets = targets(include, file);
+                if (targets == null) {
+                    if (!include.ignoreMissing) {
+                        Logger.getLogger(SystemFontConfig.class.getName()).log(Level.WARNING,
+                                "Missing include {0} in {1}", new Object[]{include.path, file});
+                    }
+                    continue;
+                }
+                for (File target : targets) {
+                    if (target.equals(user)) {
+                        userPosition = rules.size();
+                    } else if (stack.contains(target.getPath())) {
+                        StringBuilder cycle = new StringBuilder();
+                        for (String path : stack.subList(stack.indexOf(target.getPath()), stack.size())) {
+                            cycle.append(path).append(" -> ");
+                        }
+                        cycles.add(cycle.append(target.getPath()).toString());
+                        Logger.getLogger(SystemFontConfig.class.getName()).log(Level.WARNING,
+                                "Include cycle: {0}", cycles.get(cycles.size() - 1));
+                    } else if (!loaded.contains(target.getPath())) {
+                        expand(target);
+                    }
+                }
+            }
+        }
+        stack.remove(stack.size() - 1);
+    }
+
+    /**
+     * Files of an include: the file itself, or the files of a directory
+     * starting with a digit and ending with ".conf", sorted.
+     *
+     * @return Canonical files, null if missing.
+     */
+    private List<File> targets(Path include, File from) {
+        File target = resolve(include.path, include.prefix, "XDG_CONFIG_HOME", ".config", root);
+        if (target == null) {
+            return null;
+        }
+        List<File> targets = new ArrayList<>();
+        if (target.isDirectory()) {
+            String[] names = target.list();
+            if (names != null) {
+                Arrays.sort(names);
+                for (String name : names) {
+                    File child = new File(target, name);
+                    if (!name.isEmpty() && Character.isDigit(name.charAt(0)) && name.endsWith(".conf")
+                            && child.isFile()) {
+                        targets.add(canonical(child));
+                    }
+                }
+            }
+        } else if (target.isFile()) {
+            targets.add(canonical(target));
+        } else {
+            return null;
+        }
+        return targets;
+    }
+
+    /**
+     * Resolve a path of a config file like fontconfig does: "~" is the home
+     * directory, prefix "xdg" is an XDG base directory and relative paths are
+     * relative to the directory of the main config file.
+     *
+     * @param path Element text.
+     * @param prefix Value of prefix attribute, empty if not set.
+     * @param xdgVariable XDG environment variable for prefix "xdg".
+     * @param xdgDefault Default of the variable, relative to home.
+     * @param config Main config file.
+     * @return Path, null if path is empty.
+     */
+    static File resolve(String path, String prefix, String xdgVariable, String xdgDefault, File config) {
+        if (path.isEmpty()) {
+            return null;
+        }
+        if (path.equals("~") || path.startsWith("~/")) {
+            return new File(System.getProperty("user.home") + path.substring(1));
+        }
+        if (prefix.equals("xdg")) {
+            String base = System.getenv(xdgVariable);
+            if (base == null || base.isEmpty()) {
+                base = System.getProperty("user.home") + "/" + xdgDefault;
+            }
+            return new File(base, path);
+        }
+        File file = new File(path);
+        if (!file.isAbsolute()) {
+            file = new File(config.getAbsoluteFile().getParentFile(), path);
+        }
+        return file;
+    }
+
+    private static File canonical(File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException ex) {
+            return file.getAbsoluteFile();
+        }
+    }
+
+    private static byte[] hash(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Parse a config file. A broken file is logged and loaded as empty, like
+     * fontconfig ignores it.
+     */
+    private static Fragment parse(byte[] data, File file) {
+        Fragment fragment = new Fragment();
+        try {
+            XMLStreamReader reader = INPUT_FACTORY.get().createXMLStreamReader(new ByteArrayInputStream(data));
+            try {
+                while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                }
+                if (!reader.getLocalName().equals("fontconfig")) {
+                    throw new XMLStreamException("Root element is not fontconfig", reader.getLocation());
+                }
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        parseElement(reader, fragment.items);
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        break; // </fontconfig>
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            Logger.getLogger(SystemFontConfig.class.getName()).log(Level.WARNING, file.getPath(), ex);
+            fragment.items.clear();
+        }
+        return fragment;
+    }
+
+    private static void parseElement(XMLStreamReader reader, List<Object> items) throws XMLStreamException {
+        switch (reader.getLocalName()) {
+            case "include":
+            case "dir":
+                Path path = reader.getLocalName().equals("dir") ? new DirPath() : new Path();
+                path.prefix = attribute(reader, "prefix");
+                path.ignoreMissing = attribute(reader, "ignore_missing").equals("yes");
+                path.path = reader.getElementText().trim();
+                items.add(path);
+                break;
+            case "match":
+                parseMatch(reader, items);
+                break;
+            case "alias":
+                parseAlias(reader, items);
+                break;
+            default:
+                skip(reader);
+                break;
+        }
+    }
+
+    /**
+     * A match on patterns with a family edit becomes a rule, if its tests are
+     * on family and language only.
+     */
+    private static void parseMatch(XMLStreamReader reader, List<Object> items) throws XMLStreamException {
+        String target = attribute(reader, "target");
+        if (!target.isEmpty() && !target.equals("pattern")) {
+            skip(reader);
+            return;
+        }
+        String family = null;
+        String lang = null;
+        boolean understood = true;
+        List<Rule> edits = new ArrayList<>();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String element = reader.getLocalName();
+            String name = attribute(reader, "name");
+            String compare = attribute(reader, "compare");
+            String mode = attribute(reader, "mode");
+            List<String> strings = new ArrayList<>();
+            boolean plain = readStrings(reader, strings);
+
+            if (element.equals("test")) {
+                if (plain && strings.size() == 1 && name.equals("family")
+                        && (compare.isEmpty() || compare.equals("eq"))) {
+                    family = strings.get(0);
+                } else if (plain && strings.size() == 1 && name.equals("lang")
+                        && (compare.isEmpty() || compare.equals("eq") || compare.equals("contains"))) {
+                    lang = strings.get(0);
+                } else {
+                    understood = false;
+                }
+            } else if (element.equals("edit") && name.equals("family") && plain && !strings.isEmpty()) {
+                Rule rule = new Rule();
+                rule.mode = mode.isEmpty() ? "assign" : mode;
+                rule.families = strings.toArray(new String[strings.size()]);
+                edits.add(rule);
+            }
+        }
+        if (understood) {
+            for (Rule rule : edits) {
+                rule.family = family;
+                rule.lang = lang;
+                items.add(rule);
+            }
+        }
+    }
+
+    /**
+     * An alias is prepend for prefer, append for accept and append_last for
+     * default.
+     */
+    private static void parseAlias(XMLStreamReader reader, List<Object> items) throws XMLStreamException {
+        String family = null;
+        List<Rule> rules = new ArrayList<>();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String element = reader.getLocalName();
+            if (element.equals("family")) {
+                String text = reader.getElementText().trim();
+                if (family == null) {
+                    family = SymbolTable.FAMILIES.intern(text);
+                }
+                continue;
+            }
+            List<String> families = new ArrayList<>();
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (reader.getLocalName().equals("family")) {
+                    families.add(SymbolTable.FAMILIES.intern(reader.getElementText().trim()));
+                } else {
+                    skip(reader);
+                }
+            }
+            if (!families.isEmpty()) {
+                Rule rule = new Rule();
+                switch (element) {
+                    case "prefer":
+                        rule.mode = "prepend";
+                        break;
+                    case "accept":
+                        rule.mode = "append";
+                        break;
+                    case "default":
+                        rule.mode = "append_last";
+                        break;
+                    default:
+                        continue;
+                }
+                rule.families = families.toArray(new String[families.size()]);
+                rules.add(rule);
+            }
+        }
+        if (family != null) {
+            for (Rule rule : rules) {
+                rule.family = family;
+                items.add(rule);
+            }
+        }
+    }
+
+    /**
+     * Read the string children of a test or edit element.
+     *
+     * @return False if it has other children, like const or name.
+     */
+    private static boolean readStrings(XMLStreamReader reader, List<String> strings) throws XMLStreamException {
+        boolean plain = true;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (reader.getLocalName().equals("string")) {
+                strings.add(SymbolTable.FAMILIES.intern(reader.getElementText()));
+            } else {
+                plain = false;
+                skip(reader);
+            }
+        }
+        return plain;
+    }
+
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static String attribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value != null ? value : "";
+    }
+
+    /**
+     * @return True if a file was parsed, or a cached file is gone.
+     */
+    private boolean cacheChanged() {
+        if (parsed.get() > 0 || tasks.size() != cached.size()) {
+            return true;
+        }
+        for (Future<Fragment> task : tasks.values()) {
+            try {
+                Fragment fragment = task.get();
+                if (cached.get(fragment.path) != fragment) {
+                    return true; // Modification time changed
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Fragment> read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a fragment cache of this version");
+            }
+            int count = in.readInt();
+            List<Fragment> fragments = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                Fragment fragment = new Fragment();
+                fragment.path = in.readUTF();
+                fragment.size = in.readLong();
+                fragment.modified = in.readLong();
+                fragment.hash = new byte[in.readUnsignedByte()];
+                in.readFully(fragment.hash);
+                int items = in.readInt();
+                for (int j = 0; j < items; j++) {
+                    int type = in.readUnsignedByte();
+                    if (type == RULE) {
+                        Rule rule = new Rule();
+                        rule.family = in.readBoolean() ? SymbolTable.FAMILIES.intern(in.readUTF()) : null;
+                        rule.lang = in.readBoolean() ? SymbolTable.FAMILIES.intern(in.readUTF()) : null;
+                        rule.mode = in.readUTF();
+                        rule.families = new String[in.readInt()];
+                        for (int k = 0; k < rule.families.length; k++) {
+                            rule.families[k] = SymbolTable.FAMILIES.intern(in.readUTF());
+                        }
+                        fragment.items.add(rule);
+                    } else {
+                        Path path = type == DIR ? new DirPath() : new Path();
+                        path.path = in.readUTF();
+                        path.prefix = in.readUTF();
+                        path.ignoreMissing = in.readBoolean();
+                        fragment.items.add(path);
+                    }
+                }
+                fragments.add(fragment);
+            }
+            return fragments;
+        }
+    }
+
+    private void write(File file) throws IOException {
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        List<Fragment> fragments = new ArrayList<>();
+        for (Future<Fragment> task : tasks.values()) {
+            try {
+                fragments.add(task.get());
+            } catch (InterruptedException | ExecutionException ex) {
+                // Not readable, nothing to cache
+            }
+        }
+
+        File temp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), "." + file.getName(), ".tmp").toFile();
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(fragments.size());
+                for (Fragment fragment : fragments) {
+                    out.writeUTF(fragment.path);
+                    out.writeLong(fragment.size);
+                    out.writeLong(fragment.modified);
+                    out.writeByte(fragment.hash.length);
+                    out.write(fragment.hash);
+                    out.writeInt(fragment.items.size());
+                    for (Object item : fragment.items) {
+                        if (item instanceof Rule) {
+                            Rule rule = (Rule) item;
+                            out.writeByte(RULE);
+                            out.writeBoolean(rule.family != null);
+                            if (rule.family != null) {
+                                out.writeUTF(rule.family);
+                            }
+                            out.writeBoolean(rule.lang != null);
+                            if (rule.lang != null) {
+                                out.writeUTF(rule.lang);
+                            }
+                            out.writeUTF(rule.mode);
+                            out.writeInt(rule.families.length);
+                            for (String family : rule.families) {
+                                out.writeUTF(family);
+                            }
+                        } else {
+                            Path path = (Path) item;
+                            out.writeByte(path instanceof DirPath ? DIR : INCLUDE);
+                            out.writeUTF(path.path);
+                            out.writeUTF(path.prefix);
+                            out.writeBoolean(path.ignoreMissing);
+                        }
+                    }
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath()); // Only left if writing failed
+        }
+    }
+}
@@ -17,21 +17,335 @@
 package me.guoyunhe.fontweak;
 
 import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingWorker;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 /**
+ * Font families installed in system.
+ *
+ * Enumerating fonts can take seconds with big font collections. The list of
+ * last run is cached in "~/.cache/fontweak/fontlist" together with a key made
+ * of font directory modification times. get() returns the cached list at once,
+ * refresh() checks the key in background and only enumerates fonts again if
+ * something changed.
+ *
+ * Fonts are enumerated from FontIndex, which reads font files directly and
+ * needs no display. Java2D is only asked if no font file is found.
  *
  * @author Guo Yunhe <guoyunhebrave@gmail.com>
  */
 public class SystemFontList {
 
-    private final String[] list;
+    private static final String CACHE_HEADER = "fontweak-fontlist 1";
+
+    /**
+     * Directories fonts are installed to. Subdirectories are included.
+     */
+    static final String[] FONT_DIRS = {
+        "~/.fonts", "~/.local/share/fonts", "/usr/share/fonts", "/usr/local/share/fonts"
+    };
+
+    private volatile String[] list;
+    private volatile String key;
+    private volatile FontIndex index;
+    private volatile CoverageIndex coverage;
+    private final File cacheFile;
+    private final List<File> extraDirs = new CopyOnWriteArrayList<>();
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    // Refreshes run one at a time, they write the same index and caches
+    private final Object refreshLock = new Object();
+    // refresh() calls, and those that found the cached list current
+    final AtomicInteger refreshes = new AtomicInteger();
+    final AtomicInteger refreshHits = new AtomicInteger();
 
     public SystemFontList() {
-        GraphicsEnvironment env = GraphicsEnvironment.getLocalGraphicsEnvironment();
-        list = env.getAvailableFontFamilyNames();
+        cacheFile = new File(getCacheDir(), "fontlist");
+        list = new String[0];
+        readCache();
     }
 
+    /**
+     * @return Font family names, cached ones until refresh() is done.
+     */
     public String[] get() {
         return list;
     }
+
+    /**
+     * Check font directories in background and enumerate fonts again if they
+     * changed. A refresh waits for the one running. Listeners are notified on
+     * event dispatch thread.
+     */
+    public void refresh() {
+        refresh(Collections.<File>emptySet());
+    }
+
+    /**
+     * Like refresh(), but font files in some directories are known to have
+     * changed, like when ConfigWatcher saw them change. Only those and the
+     * directories with a new modification time are read again.
+     *
+     * @param dirty Changed font directories.
+     */
+    public void refresh(final Set<File> dirty) {
+        new SwingWorker<String[], Void>() {
+            @Override
+            protected String[] doInBackground() {
+                synchronized (refreshLock) {
+                    String newKey = computeKey();
+                    String[] names = null; // Nothing changed
+                    refreshes.incrementAndGet();
+                    if (!dirty.isEmpty() || !newKey.equals(key) || list.length == 0) {
+                        names = enumerate(dirty);
+                        key = newKey;
+                        writeCache(names);
+                        if (Arrays.equals(names, list)) {
+                            names = null; // Same families in changed files
+                        }
+                    } else {
+                        refreshHits.incrementAndGet();
+                    }
+                    updateCoverage();
+                    return names;
+                }
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    String[] names = get();
+                    if (names != null) {
+                        list = names;
+                        fireChanged();
+                    }
+                } catch (InterruptedException | ExecutionException ex) {
+                    Logger.getLogger(SystemFontList.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Scan more font directories, like those of dir elements in fonts.conf.
+     * Call before refresh().
+     *
+     * @param dirs Font directories.
+     */
+    public void addDirs(List<File> dirs) {
+        for (File dir : dirs) {
+            if (!extraDirs.contains(dir)) {
+                extraDirs.add(dir);
+            }
+        }
+    }
+
+    /**
+     * Characters of installed fonts, to find fonts of a language.
+     *
+     * @return Index of last refresh(), null until refresh() is done.
+     */
+    public CoverageIndex getCoverage() {
+        return coverage;
+    }
+
+    private void updateCoverage() {
+        FontIndex fonts = getIndex();
+        if (fonts == null) {
+            return;
+        }
+        try {
+            coverage = CoverageIndex.update(CoverageIndex.getDefaultFile(), fonts);
+        } catch (IOException ex) {
+            Logger.getLogger(SystemFontList.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Listen to list changes after refresh().
+     *
+     * @param listener Listener called on event dispatch thread.
+     */
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireChanged() {
+        ChangeEvent event = new ChangeEvent(this);
+        for (ChangeListener listener : listeners) {
+            listener.stateChanged(event);
+        }
+    }
+
+    /**
+     * Enumerate font families. Slow the first time, then only changed font
+     * directories are scanned again.
+     *
+     * @param dirty Directories to scan again even if their time is the same.
+     */
+    String[] enumerate(Set<File> dirty) {
+        Metrics.Span span = Metrics.start("fonts.enumerate");
+        String[] families = new String[0];
+        try {
+            FontIndex updated = FontIndex.update(FontIndex.getDefaultFile(), getFontDirs(), dirty);
+            index = updated;
+            families = updated.getFamilies();
+        } catch (IOException ex) {
+            Logger.getLogger(SystemFontList.class.getName()).log(Level.WARNING, null, ex);
+        }
+        if (families.length == 0) {
+            // Fonts somewhere else, ask Java2D
+            GraphicsEnvironment env = GraphicsEnvironment.getLocalGraphicsEnvironment();
+            families = env.getAvailableFontFamilyNames();
+        }
+        span.fonts(families.length).end();
+        return families;
+    }
+
+    /**
+     * Index of installed fonts, for queries by family and language.
+     *
+     * @return Index of last refresh() or from disk, null if there is none.
+     */
+    public FontIndex getIndex() {
+        if (index == null) {
+            try {
+                index = FontIndex.open(FontIndex.getDefaultFile());
+            } catch (IOException ex) {
+                // Not built yet
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Key of installed fonts: paths and modification times of all font
+     * directories. Adding or removing a font changes the time of its
+     * directory.
+     */
+    String computeKey() {
+        Metrics.Span span = Metrics.start("fonts.computeKey");
+        long hash = 1125899906842597L;
+        for (File dir : getFontDirs()) {
+            hash = hashDir(dir, hash);
+        }
+        span.end();
+        return Long.toHexString(hash);
+    }
+
+    private static long hashDir(File dir, long hash) {
+        hash = 31 * hash + dir.getPath().hashCode();
+        hash = 31 * hash + dir.lastModified();
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    hash = hashDir(child, hash);
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return Existing font directories, "~" expanded.
+     */
+    List<File> getFontDirs() {
+        List<File> dirs = new ArrayList<>();
+        for (String path : FONT_DIRS) {
+            File dir = new File(path.replaceFirst("^~", System.getProperty("user.home")));
+            if (dir.isDirectory()) {
+                dirs.add(dir);
+            }
+        }
+        for (File dir : extraDirs) {
+            if (dir.isDirectory()) {
+                dirs.add(dir);
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * @return Cache directory of Fontweak, "$XDG_CACHE_HOME/fontweak".
+     */
+    static File getCacheDir() {
+        String base = System.getenv("XDG_CACHE_HOME");
+        if (base == null || base.isEmpty()) {
+            base = System.getProperty("user.home") + "/.cache";
+        }
+        return new File(base, "fontweak");
+    }
+
+    private void readCache() {
+        if (!cacheFile.isFile()) {
+            return;
+        }
+        Metrics.Span span = Metrics.start("fonts.readCache").bytesRead(cacheFile.length());
+        try (BufferedReader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+            if (!CACHE_HEADER.equals(reader.readLine())) {
+                return; // Other version, enumerate again
+            }
+            String cacheKey = reader.readLine();
+            List<String> names = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                names.add(line);
+            }
+            key = cacheKey;
+            list = names.toArray(new String[names.size()]);
+            span.fonts(list.length);
+        } catch (IOException ex) {
+            Logger.getLogger(SystemFontList.class.getName()).log(Level.WARNING, null, ex);
+        }
+        span.end();
+    }
+
+    private void writeCache(String[] names) {
+        Metrics.Span span = Metrics.start("fonts.writeCache").fonts(names.length);
+        try {
+            Files.createDirectories(cacheFile.getParentFile().toPath());
+            File temp = Files.createTempFile(cacheFile.getAbsoluteFile().getParentFile().toPath(), "." + cacheFile.getName(), ".tmp").toFile();
+            try {
+                try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+                    writer.write(CACHE_HEADER);
+                    writer.newLine();
+                    writer.write(key);
+                    writer.newLine();
+                    for (String name : names) {
+                        writer.write(name);
+                        writer.newLine();
+                    }
+                }
+                Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp.toPath()); // Only left if writing failed
+            }
+            span.bytesWritten(cacheFile.length());
+        } catch (IOException ex) {
+            Logger.getLogger(SystemFontList.class.getName()).log(Level.WARNING, null, ex);
+        }
+        span.end();
+    }
 }
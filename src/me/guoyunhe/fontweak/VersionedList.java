@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.util.ArrayList;
+
+/**
+ * List that counts its changes, so results computed from it can be cached
+ * until it changes.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ * @param <E> Element type.
+ */
+public class VersionedList<E> extends ArrayList<E> {
+
+    private static final long serialVersionUID = 1L;
+
+    private int sets;
+
+    /**
+     * @return Number that is different after every change of the list.
+     */
+    public int getVersion() {
+        // modCount counts adds and removes, but not set()
+        return modCount + sets;
+    }
+
+    @Override
+    public E set(int index, E element) {
+        sets++;
+        return super.set(index, element);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+
+/**
+ * Check that FontConfig.load(), which streams the file, reads the same model
+ * as the DOM reader it replaced: matches, aliases, the generic matches and
+ * options. Configs checked are the bundled default config and generated ones
+ * of growing size, with comments, entities, languages, unknown elements and
+ * rules the model does not take.
+ *
+ * Run with "ant check". Differences are printed, the exit code is 1 if
+ * there are any.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class ReaderEquivalenceTest {
+
+    private static final String[] GENERICS = {"sans-serif", "serif", "monospace"};
+    private static final String[] OPTIONS = {
+        "antialias", "bool", "true", "false",
+        "hinting", "bool", "true", "false",
+        "hintstyle", "const", "hintslight", "hintfull",
+        "rgba", "const", "rgb", "vbgr",
+        "lcdfilter", "const", "lcdlight", "lcdnone",
+        "embeddedbitmap", "bool", "false", "true"
+    };
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("fontweak-check").toFile();
+        int failed = 0;
+        try {
+            File defaults = new File(dir, "default.conf");
+            try (InputStream in = FontConfig.class.getResourceAsStream("/me/guoyunhe/fontweak/config/default.conf")) {
+                Files.copy(in, defaults.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            failed += check(defaults);
+
+            for (int size : new int[]{10, 100, 1000, 5000}) {
+                File generated = new File(dir, "generated-" + size + ".conf");
+                generate(generated, size, new Random(size));
+                failed += check(generated);
+            }
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    /**
+     * @return 1 if the readers differ, else 0.
+     */
+    private static int check(File file) throws Exception {
+        long start = System.nanoTime();
+        FontConfig dom = new FontConfig(file);
+        readDom(dom, file);
+        long domTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        FontConfig stream = new FontConfig(file);
+        stream.load();
+        long streamTime = System.nanoTime() - start;
+
+        String difference = compare(dom, stream);
+        if (difference != null) {
+            System.out.println("FAIL " + file.getName() + ": " + difference);
+            return 1;
+        }
+        System.out.printf("OK   %s: %d matches, %d aliases, DOM %.1f ms, StAX %.1f ms%n", file.getName(),
+                stream.matchList.size(), stream.aliasList.size(), domTime / 1e6, streamTime / 1e6);
+        return 0;
+    }
+
+    /**
+     * The reader before StAX: parse the whole document, then take matches
+     * and aliases out of it until none is left.
+     */
+    private static void readDom(FontConfig config, File file) throws Exception {
+        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        builder.setEntityResolver(new EntityResolver() {
+            @Override
+            public InputSource resolveEntity(String publicId, String systemId) {
+                return systemId.contains("fonts.dtd") ? new InputSource(new StringReader("")) : null;
+            }
+        });
+        Document doc = builder.parse(file);
+        Element root = (Element) doc.getElementsByTagName("fontconfig").item(0);
+        NodeList matchElements = root.getElementsByTagName("match");
+        NodeList aliasElements = root.getElementsByTagName("alias");
+
+        config.antialias = true;
+        config.hinting = true;
+        config.hintstyle = "hintnone";
+        config.rgba = "none";
+        config.lcdfilter = "lcddefault";
+        config.embeddedbitmap = true;
+        config.matchList.clear();
+        config.aliasList.clear();
+
+        while (matchElements.getLength() > 0) {
+            Element element = (Element) matchElements.item(0);
+            if (element.getAttribute("target").equals("font")) {
+                Element edit = (Element) element.getElementsByTagName("edit").item(0);
+                int option = Arrays.asList(FontConfig.OPTIONS).indexOf(edit.getAttribute("name"));
+                if (option >= 0) {
+                    String type = option == 0 || option == 1 || option == 5 ? "bool" : "const";
+                    NodeList values = edit.getElementsByTagName(type);
+                    if (values.getLength() > 0) {
+                        config.setOption(option, values.item(0).getTextContent());
+                    }
+                }
+            } else {
+                FontMatch match = new FontMatch();
+                match.parseDOM(element);
+                if (!match.isEmpty()) {
+                    config.matchList.add(match);
+                    if (match.langTest == null) {
+                        if (match.familyTest.equalsIgnoreCase("sans-serif")) {
+                            config.sansMatch = match;
+                        } else if (match.familyTest.equalsIgnoreCase("serif")) {
+                            config.serifMatch = match;
+                        } else if (match.familyTest.equalsIgnoreCase("monospace")) {
+                            config.monoMatch = match;
+                        }
+                    }
+                }
+            }
+            if (element.getParentNode() != null) {
+                element.getParentNode().removeChild(element); // Empty ones stayed before
+            }
+        }
+
+        if (config.sansMatch == null) {
+            config.sansMatch = new FontMatch("sans-serif", null, null);
+            config.matchList.add(config.sansMatch);
+        }
+        if (config.serifMatch == null) {
+            config.serifMatch = new FontMatch("serif", null, null);
+            config.matchList.add(config.serifMatch);
+        }
+        if (config.monoMatch == null) {
+            config.monoMatch = new FontMatch("monospace", null, null);
+            config.matchList.add(config.monoMatch);
+        }
+
+        while (aliasElements.getLength() > 0) {
+            Element element = (Element) aliasElements.item(0);
+            FontAlias alias = new FontAlias();
+            alias.parseDOM(element);
+            if (!alias.isEmpty()) {
+                config.aliasList.add(alias);
+            }
+            if (element.getParentNode() != null) {
+                element.getParentNode().removeChild(element);
+            }
+        }
+    }
+
+    /**
+     * @return First difference, null if none.
+     */
+    private static String compare(FontConfig expected, FontConfig actual) {
+        List<FontMatch> a = expected.matchList;
+        List<FontMatch> b = actual.matchList;
+        for (int i = 0; i < Math.max(a.size(), b.size()); i++) {
+            if (i >= a.size() || i >= b.size()) {
+                return "match count " + a.size() + " != " + b.size();
+            }
+            FontMatch x = a.get(i);
+            FontMatch y = b.get(i);
+            if (!equal(x.familyTest, y.familyTest) || !equal(x.langTest, y.langTest) || !Arrays.equals(x.familyEdit, y.familyEdit)) {
+                return "match " + i + ": " + describe(x) + " != " + describe(y);
+            }
+        }
+        List<FontAlias> c = expected.aliasList;
+        List<FontAlias> d = actual.aliasList;
+        for (int i = 0; i < Math.max(c.size(), d.size()); i++) {
+            if (i >= c.size() || i >= d.size()) {
+                return "alias count " + c.size() + " != " + d.size();
+            }
+            if (!equal(c.get(i).family, d.get(i).family) || !equal(c.get(i).prefer, d.get(i).prefer)) {
+                return "alias " + i + ": " + c.get(i).family + " -> " + c.get(i).prefer
+                        + " != " + d.get(i).family + " -> " + d.get(i).prefer;
+            }
+        }
+        FontMatch[] x = {expected.sansMatch, expected.serifMatch, expected.monoMatch};
+        FontMatch[] y = {actual.sansMatch, actual.serifMatch, actual.monoMatch};
+        for (int i = 0; i < GENERICS.length; i++) {
+            if (a.indexOf(x[i]) != b.indexOf(y[i])) {
+                return GENERICS[i] + " match at " + a.indexOf(x[i]) + " != " + b.indexOf(y[i]);
+            }
+        }
+        for (int i = 0; i < FontConfig.OPTIONS.length; i++) {
+            if (!expected.getOption(i).equals(actual.getOption(i))) {
+                return FontConfig.OPTIONS[i] + " " + expected.getOption(i) + " != " + actual.getOption(i);
+            }
+        }
+        return null;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static String describe(FontMatch match) {
+        return match.familyTest + " [" + match.langTest + "] " + Arrays.toString(match.familyEdit);
+    }
+
+    /**
+     * Write a config of random rules.
+     */
+    private static void generate(File file, int size, Random random) throws IOException {
+        String[] langs = {"zh-cn", "ja", "ko", "en", "zh_TW"};
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            out.println("<?xml version=\"1.0\"?>");
+            out.println("<!DOCTYPE fontconfig SYSTEM \"fonts.dtd\">");
+            out.println("<!-- Generated, " + size + " rules -->");
+            out.println("<fontconfig>");
+            for (int i = 0; i < size; i++) {
+                int kind = random.nextInt(20);
+                if (kind < 10) {
+                    String family = family(random);
+                    if (kind == 0) {
+                        family = GENERICS[random.nextInt(GENERICS.length)];
+                        if (random.nextBoolean()) {
+                            family = family.toUpperCase();
+                        }
+                    }
+                    out.print("  <match target=\"pattern\">");
+                    out.print("<test name=\"family\" qual=\"any\"><string>" + family + "</string></test>");
+                    if (random.nextInt(3) == 0) {
+                        out.print("\n    <!-- language -->\n    <test name=\"lang\" compare=\"contains\"><string>"
+                                + langs[random.nextInt(langs.length)] + "</string></test>");
+                    }
+                    if (kind != 1) { // Without edit, not a rule of the model
+                        out.print("<edit name=\"family\" mode=\"prepend\" binding=\"strong\">");
+                        for (int j = random.nextInt(4); j >= 0; j--) {
+                            out.print("\n      <string>" + family(random) + "</string>");
+                        }
+                        out.print("</edit>");
+                    }
+                    out.println("</match>");
+                } else if (kind < 16) {
+                    out.println("  <alias>\n    <family>" + family(random) + "</family>\n    <prefer><family>"
+                            + family(random) + "</family></prefer>\n  </alias>");
+                } else if (kind == 16) {
+                    out.println("  <alias><family>" + family(random) + "</family><default><family>sans-serif</family></default></alias>");
+                } else if (kind == 17) {
+                    int option = random.nextInt(OPTIONS.length / 4) * 4;
+                    out.println("  <match target=\"font\">\n    <edit name=\"" + OPTIONS[option] + "\" mode=\"assign\"><"
+                            + OPTIONS[option + 1] + ">" + OPTIONS[option + 2 + random.nextInt(2)] + "</"
+                            + OPTIONS[option + 1] + "></edit>\n  </match>");
+                } else if (kind == 18) {
+                    out.println("  <match target=\"font\"><edit name=\"autohint\" mode=\"assign\"><bool>true</bool></edit></match>");
+                } else {
+                    out.println(random.nextBoolean() ? "  <dir prefix=\"xdg\">fonts-" + i + "</dir>"
+                            : "  <include ignore_missing=\"yes\">conf-" + i + ".d</include>");
+                }
+            }
+            out.println("</fontconfig>");
+        }
+    }
+
+    private static String family(Random random) {
+        int n = random.nextInt(300);
+        switch (n % 10) {
+            case 0:
+                return "Family &amp; Co " + n;
+            case 1:
+                return "family" + n + " sans";
+            default:
+                return "Family " + n + " Sans";
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 Guo Yunhe guoyunhebrave@gmail.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.guoyunhe.fontweak;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Check that saving over a file changed by others since it was read keeps
+ * what the model does not own: options, matches and aliases the model does
+ * not parse, and rules added by others.
+ *
+ * Run with "ant check". Failures are printed, the exit code is 1 if there
+ * are any.
+ *
+ * @author Guo Yunhe guoyunhebrave@gmail.com
+ */
+public class WriterMergeTest {
+
+    private static final String CONFIG = "<?xml version=\"1.0\"?>\n"
+            + "<!DOCTYPE fontconfig SYSTEM \"fonts.dtd\">\n"
+            + "<fontconfig>\n"
+            + "  <match target=\"font\">\n"
+            + "    <edit name=\"antialias\" mode=\"assign\"><bool>false</bool></edit>\n"
+            + "  </match>\n"
+            + "  <match target=\"pattern\">\n"
+            + "    <test name=\"family\"><string>Weighty</string></test>\n"
+            + "    <edit name=\"weight\" mode=\"assign\"><const>bold</const></edit>\n"
+            + "  </match>\n"
+            + "  <match target=\"pattern\">\n"
+            + "    <test name=\"family\"><string>Kept</string></test>\n"
+            + "    <edit name=\"family\" mode=\"prepend\" binding=\"strong\"><string>Kept Sans</string></edit>\n"
+            + "  </match>\n"
+            + "  <alias>\n"
+            + "    <family>Old</family>\n"
+            + "    <prefer><family>Old Sans</family></prefer>\n"
+            + "  </alias>\n"
+            + "  <alias>\n"
+            + "    <family>Fallback</family>\n"
+            + "    <default><family>sans-serif</family></default>\n"
+            + "  </alias>\n"
+            + "</fontconfig>\n";
+
+    private static int failed = 0;
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("fontweak-check").toFile();
+        File file = new File(dir, "fonts.conf");
+        try {
+            // Unchanged model, a comment added by others
+            FontConfig config = load(file, CONFIG);
+            changeOnDisk(file, "<!-- Edited by hand -->\n");
+            config.aliasList.add(new FontAlias("New", "New Sans"));
+            config.store();
+            String saved = read(file);
+            FontConfig reread = reread(file);
+            check("option kept", !reread.antialias);
+            check("option written once", count(saved, "name=\"antialias\"") == 1);
+            check("unknown match kept", saved.contains("<const>bold</const>"));
+            check("default alias kept", saved.contains("<default>"));
+            check("comment kept", saved.contains("Edited by hand"));
+            check("aliases", reread.aliasList.size() == 2);
+            check("match written once", count(saved, "Kept Sans") == 1);
+
+            // Rules and options added and changed on both sides
+            config = load(file, CONFIG);
+            changeOnDisk(file, "<alias><family>Theirs</family><prefer><family>Theirs Sans</family></prefer></alias>\n"
+                    + "<match target=\"font\"><edit name=\"hinting\" mode=\"assign\"><bool>false</bool></edit></match>\n");
+            config.antialias = true;
+            config.matchList.add(new FontMatch("Mine", null, new String[]{"Mine Sans"}));
+            config.store();
+            saved = read(file);
+            reread = reread(file);
+            check("changed option written", reread.antialias && count(saved, "name=\"antialias\"") == 1);
+            check("option of others kept", !reread.hinting);
+            check("alias of others kept", saved.contains("Theirs Sans"));
+            check("new match written", saved.contains("Mine Sans"));
+            check("unknown match kept after change", saved.contains("<const>bold</const>"));
+            check("match count", reread.matchList.size() == 5); // 2 rules, 3 generic placeholders
+        } finally {
+            for (File child : dir.listFiles()) {
+                child.delete();
+            }
+            dir.delete();
+        }
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    private static FontConfig load(File file, String content) throws Exception {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        FontConfig config = new FontConfig(file);
+        config.load();
+        return config;
+    }
+
+    /**
+     * Insert elements before the end of root, as another tool would.
+     */
+    private static void changeOnDisk(File file, String elements) throws Exception {
+        String content = read(file);
+        int end = content.lastIndexOf("</fontconfig>");
+        content = content.substring(0, end) + elements + content.substring(end);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.TRUNCATE_EXISTING);
+        file.setLastModified(file.lastModified() + 2000); // Even on coarse clocks
+    }
+
+    private static FontConfig reread(File file) throws Exception {
+        FontConfig config = new FontConfig(file);
+        config.load();
+        return config;
+    }
+
+    private static String read(File file) throws Exception {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static void check(String name, boolean ok) {
+        System.out.println((ok ? "OK   " : "FAIL ") + name);
+        if (!ok) {
+            failed++;
+        }
+    }
+}